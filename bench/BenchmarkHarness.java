@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code BenchmarkHarness} class runs benchmarks the way JMH does: a number of warmup iterations whose results are
+ * thrown away, then measurement iterations whose scores are averaged, with a 99.9% confidence interval. Results are
+ * printed as a table and can be written to a file in JMH's JSON result format, so the usual JMH tooling can be used to
+ * compare builds.
+ *
+ * <p>JMH itself can't be used, because its generated code has to live in a named package and the plant classes are in
+ * the default package, which a named package can't import.</p>
+ */
+public class BenchmarkHarness {
+    /**
+     * A single iteration of a benchmark.
+     */
+    public interface Iteration {
+        /**
+         * Runs one iteration.
+         *
+         * @return Score of the iteration, in the benchmark's unit.
+         * @throws Exception If the iteration fails.
+         */
+        double run() throws Exception;
+    }
+
+    /** Student's t values for a two-sided 99.9% interval, indexed by degrees of freedom - 1. */
+    private static final double[] T_999 = {
+            636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850
+    };
+
+    /** t value used once there are more degrees of freedom than in {@link #T_999}. */
+    private static final double T_999_LARGE = 3.291;
+
+    /** Number of warmup iterations per benchmark. */
+    private final int warmupIterations;
+
+    /** Number of measured iterations per benchmark. */
+    private final int measurementIterations;
+
+    /** Only benchmarks whose name matches are run. */
+    private final Pattern filter;
+
+    /** Results of every benchmark run so far, as JSON objects. */
+    private final List<String> results;
+
+    /**
+     * Creates a new BenchmarkHarness object.
+     *
+     * @param warmupIterations      Number of warmup iterations per benchmark.
+     * @param measurementIterations Number of measured iterations per benchmark.
+     * @param filter                Regular expression, only benchmarks whose name contains a match are run.
+     */
+    public BenchmarkHarness(int warmupIterations, int measurementIterations, String filter) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = Math.max(1, measurementIterations);
+        this.filter = Pattern.compile(filter);
+        this.results = new ArrayList<>();
+        System.out.printf("%-36s %-70s %6s %14s %12s  %s%n", "Benchmark", "Params", "Mode", "Score", "Error", "Units");
+    }
+
+    /**
+     * Runs a benchmark, unless it is filtered out.
+     *
+     * @param name      Name of the benchmark.
+     * @param mode      JMH mode of the benchmark, thrpt or avgt.
+     * @param unit      Unit of the score.
+     * @param params    Parameters of this run, shown with the result.
+     * @param iteration What one iteration does.
+     */
+    public void run(String name, String mode, String unit, Map<String, String> params, Iteration iteration) {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                iteration.run();
+            }
+            final double[] scores = new double[measurementIterations];
+            for (int i = 0; i < measurementIterations; i++) {
+                scores[i] = iteration.run();
+            }
+            record(name, mode, unit, params, scores);
+        } catch (Exception e) {
+            System.err.println(name + " " + params + " failed: " + e);
+        }
+    }
+
+    /**
+     * Prints the result of a benchmark and keeps it for {@link #writeJson(Path)}.
+     *
+     * @param name   Name of the benchmark.
+     * @param mode   JMH mode of the benchmark.
+     * @param unit   Unit of the score.
+     * @param params Parameters of this run.
+     * @param scores Score of each measured iteration.
+     */
+    private void record(String name, String mode, String unit, Map<String, String> params, double[] scores) {
+        double mean = 0;
+        for (double s : scores) {
+            mean += s;
+        }
+        mean /= scores.length;
+        double error = Double.NaN;
+        if (scores.length > 1) {
+            double variance = 0;
+            for (double s : scores) {
+                variance += (s - mean) * (s - mean);
+            }
+            variance /= scores.length - 1;
+            final int df = scores.length - 1;
+            final double t = df <= T_999.length ? T_999[df - 1] : T_999_LARGE;
+            error = t * Math.sqrt(variance / scores.length);
+        }
+        System.out.printf("%-36s %-70s %6s %14.3f %12s  %s%n", name, params, mode, mean,
+                Double.isNaN(error) ? "" : String.format("+- %.3f", error), unit);
+
+        final StringBuilder json = new StringBuilder();
+        json.append("  {\n");
+        json.append("    \"jmhVersion\" : \"harness\",\n");
+        json.append("    \"benchmark\" : \"").append(name).append("\",\n");
+        json.append("    \"mode\" : \"").append(mode).append("\",\n");
+        json.append("    \"threads\" : 1,\n");
+        json.append("    \"forks\" : 1,\n");
+        json.append("    \"jvm\" : \"").append(escape(System.getProperty("java.home"))).append("\",\n");
+        json.append("    \"jdkVersion\" : \"").append(Runtime.version()).append("\",\n");
+        json.append("    \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+        json.append("    \"measurementIterations\" : ").append(scores.length).append(",\n");
+        json.append("    \"params\" : {");
+        String separator = "\n";
+        for (Map.Entry<String, String> e : params.entrySet()) {
+            json.append(separator).append("      \"").append(escape(e.getKey())).append("\" : \"")
+                    .append(escape(e.getValue())).append('"');
+            separator = ",\n";
+        }
+        json.append(params.isEmpty() ? "},\n" : "\n    },\n");
+        json.append("    \"primaryMetric\" : {\n");
+        json.append("      \"score\" : ").append(number(mean)).append(",\n");
+        json.append("      \"scoreError\" : ").append(number(error)).append(",\n");
+        json.append("      \"scoreConfidence\" : [ ").append(number(mean - error)).append(", ")
+                .append(number(mean + error)).append(" ],\n");
+        json.append("      \"scoreUnit\" : \"").append(unit).append("\",\n");
+        json.append("      \"rawData\" : [ [ ");
+        for (int i = 0; i < scores.length; i++) {
+            json.append(i == 0 ? "" : ", ").append(number(scores[i]));
+        }
+        json.append(" ] ]\n");
+        json.append("    },\n");
+        json.append("    \"secondaryMetrics\" : {}\n");
+        json.append("  }");
+        results.add(json.toString());
+    }
+
+    /**
+     * Writes every result so far to a file, in JMH's JSON result format.
+     *
+     * @param file File to write to.
+     * @throws IOException If the file can't be written.
+     */
+    public void writeJson(Path file) throws IOException {
+        final Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("[");
+            out.println(String.join(",\n", results));
+            out.println("]");
+        }
+        System.out.println("Results written to " + file);
+    }
+
+    /**
+     * Builds an ordered map of parameters from key, value pairs.
+     *
+     * @param keysAndValues Alternating keys and values.
+     * @return The parameters.
+     */
+    public static Map<String, String> params(Object... keysAndValues) {
+        final Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            params.put(String.valueOf(keysAndValues[i]), String.valueOf(keysAndValues[i + 1]));
+        }
+        return params;
+    }
+
+    /**
+     * Formats a number for JSON, which has no NaN.
+     *
+     * @param value Number to format.
+     * @return The number, or "NaN" in quotes like JMH writes it.
+     */
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : Double.toString(value);
+    }
+
+    /**
+     * Escapes a string for JSON.
+     *
+     * @param s String to escape.
+     * @return The escaped string.
+     */
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,396 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code PipelineBenchmarks} class is the benchmark suite of the juice pipeline, run with {@code ant bench}.
+ * <ul>
+ *     <li>{@code stageLatency}: time of one {@link Orange#runProcess()} for each stage.</li>
+ *     <li>{@code handoff}: cost of passing an orange through a {@link StageChannel} between worker threads, one at a
+ *     time or in batches.</li>
+ *     <li>{@code endToEnd}: bottles per second of whole {@link Plant plants} for different configurations.</li>
+ *     <li>{@code fusion}: bottles per second of the pipelined plant against plants with fused stages, with the same
+ *     number of workers.</li>
+ *     <li>{@code allocation}: bytes allocated per orange by a running plant, for each kind of channel, with and
+ *     without an {@link OrangePool}.</li>
+ *     <li>{@code unevenLoad}: bottles per second of a busy and a quiet plant, with and without work stealing.</li>
+ * </ul>
+ *
+ * <p>Usage: {@code java PipelineBenchmarks [-wi warmups] [-i iterations] [-r seconds] [-rff results.json] [filter]}</p>
+ */
+public class PipelineBenchmarks {
+    /** Number of oranges timed in each stage latency iteration. */
+    private static final int ORANGES_PER_LATENCY_ITERATION = 10;
+
+    /** Number of oranges passed through a channel in each handoff iteration. */
+    private static final int ORANGES_PER_HANDOFF_ITERATION = 200_000;
+
+    /** Number of distinct oranges passed around in the handoff benchmark, fetching one takes a while. */
+    private static final int HANDOFF_ORANGES = 16;
+
+    /** Batch sizes used by the handoff benchmark. */
+    private static final int[] BATCH_SIZES = {1, 8};
+
+    /** Queue capacities used by the handoff and end to end benchmarks. */
+    private static final int[] CAPACITIES = {10, 100};
+
+    /** Worker splits (peelers, squeezers, bottlers) used by the end to end benchmark. */
+    private static final int[][] SPLITS = {{6, 4, 3}, {5, 5, 3}, {4, 4, 4}};
+
+    /** Plant counts used by the end to end benchmark. */
+    private static final int[] PLANT_COUNTS = {1, 2};
+
+    /** Orange pool sizes used by the allocation benchmark, big enough to hold every orange in a default plant. */
+    private static final int[] POOL_SIZES = {0, 64};
+
+    /** Time a plant runs before its allocations are measured, so the queues and the pool have filled up. */
+    private static final long ALLOCATION_WARMUP_MILLIS = 1000;
+
+    /** Fetchers of the busy and the quiet plant in the uneven load benchmark. */
+    private static final int[] UNEVEN_FETCHERS = {6, 1};
+
+    /**
+     * Main method, parses the options and runs every benchmark matching the filter.
+     *
+     * @param args Options, see the class description.
+     * @throws Exception If the results can't be written.
+     */
+    public static void main(String[] args) throws Exception {
+        int warmups = 1;
+        int iterations = 5;
+        long iterationMillis = 2000;
+        String resultFile = null;
+        String filter = "";
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-wi":
+                    warmups = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-r":
+                    iterationMillis = (long) (Double.parseDouble(args[++i]) * 1000);
+                    break;
+                case "-rff":
+                    resultFile = args[++i];
+                    break;
+                default:
+                    filter = args[i];
+                    break;
+            }
+        }
+
+        final BenchmarkHarness harness = new BenchmarkHarness(warmups, iterations, filter);
+        stageLatency(harness);
+        handoff(harness);
+        endToEnd(harness, iterationMillis);
+        fusion(harness, iterationMillis);
+        allocation(harness, iterationMillis);
+        unevenLoad(harness, iterationMillis);
+        if (resultFile != null) {
+            harness.writeJson(Paths.get(resultFile));
+        }
+    }
+
+    /**
+     * Measures how long one {@link Orange#runProcess()} takes for each stage a worker does.
+     *
+     * @param harness Harness to run with.
+     */
+    private static void stageLatency(BenchmarkHarness harness) {
+        for (Orange.State stage : new Orange.State[]{Orange.State.Peeled, Orange.State.Squeezed, Orange.State.Bottled}) {
+            harness.run("PipelineBenchmarks.stageLatency", "avgt", "ms/op", BenchmarkHarness.params("stage", stage), () -> {
+                long total = 0;
+                for (int i = 0; i < ORANGES_PER_LATENCY_ITERATION; i++) {
+                    // Bring an orange up to the stage before, only the last step is timed
+                    final Orange o = new Orange();
+                    while (o.getState().ordinal() < stage.ordinal() - 1) {
+                        o.runProcess();
+                    }
+                    final long start = System.nanoTime();
+                    o.runProcess();
+                    total += System.nanoTime() - start;
+                }
+                return total / 1e6 / ORANGES_PER_LATENCY_ITERATION;
+            });
+        }
+    }
+
+    /**
+     * Measures the cost of passing an orange between threads through each kind of channel, with no processing time,
+     * for one and several producers and consumers, passing oranges one at a time and in batches.
+     *
+     * @param harness Harness to run with.
+     */
+    private static void handoff(BenchmarkHarness harness) {
+        final Orange[] oranges = new Orange[HANDOFF_ORANGES];
+        for (int i = 0; i < oranges.length; i++) {
+            oranges[i] = new Orange();
+        }
+        final int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[]{1, 4}) {
+            for (int capacity : CAPACITIES) {
+                for (ChannelType type : ChannelType.values()) {
+                    for (WaitStrategy strategy : type != ChannelType.RING ? new WaitStrategy[]{WaitStrategy.PARK} : WaitStrategy.values()) {
+                        // Spinning threads only make progress if each has its own core
+                        if (strategy == WaitStrategy.SPIN && cores < threads * 2) {
+                            continue;
+                        }
+                        for (int batch : BATCH_SIZES) {
+                            harness.run("PipelineBenchmarks.handoff", "avgt", "ns/op",
+                                    BenchmarkHarness.params("channel", type, "waitStrategy", type != ChannelType.RING ? "-" : strategy,
+                                            "threads", threads + "x" + threads, "capacity", capacity, "batch", batch),
+                                    () -> handoffIteration(type.create(capacity, threads == 1, threads == 1, strategy),
+                                            threads, batch, oranges));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes {@link #ORANGES_PER_HANDOFF_ITERATION} oranges through a channel.
+     *
+     * @param channel Channel to pass the oranges through.
+     * @param threads Number of producer threads, and of consumer threads.
+     * @param batch   Number of oranges passed at once.
+     * @param oranges Oranges to pass around.
+     * @return Nanoseconds per orange.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static double handoffIteration(StageChannel channel, int threads, int batch, Orange[] oranges)
+            throws InterruptedException {
+        final int perProducer = ORANGES_PER_HANDOFF_ITERATION / threads;
+        final long total = (long) perProducer * threads;
+        final AtomicLong received = new AtomicLong();
+        final CountDownLatch startLine = new CountDownLatch(1);
+        final Thread[] all = new Thread[threads * 2];
+        for (int t = 0; t < threads; t++) {
+            all[t] = new Thread(() -> {
+                final List<Orange> out = new ArrayList<>(batch);
+                try {
+                    startLine.await();
+                    for (int i = 0; i < perProducer; i++) {
+                        out.add(oranges[i % oranges.length]);
+                        if (out.size() == batch || i == perProducer - 1) {
+                            while (!out.isEmpty()) {
+                                // Keep trying until there is space
+                                channel.offerAll(out, 1, TimeUnit.SECONDS);
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    System.err.println("Handoff producer interrupted");
+                }
+            });
+            all[threads + t] = new Thread(() -> {
+                final List<Orange> in = new ArrayList<>(batch);
+                try {
+                    startLine.await();
+                    while (received.get() < total) {
+                        if (channel.poll(10, TimeUnit.MILLISECONDS) != null) {
+                            final int more = batch > 1 ? channel.drainTo(in, batch - 1) : 0;
+                            in.clear();
+                            received.addAndGet(1 + more);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    System.err.println("Handoff consumer interrupted");
+                }
+            });
+        }
+        for (Thread t : all) {
+            t.start();
+        }
+        final long start = System.nanoTime();
+        startLine.countDown();
+        for (Thread t : all) {
+            t.join();
+        }
+        return (double) (System.nanoTime() - start) / total;
+    }
+
+    /**
+     * Measures bottles per second of whole plants for each worker split, queue capacity and plant count.
+     *
+     * @param harness         Harness to run with.
+     * @param iterationMillis How long each iteration runs the plants for.
+     */
+    private static void endToEnd(BenchmarkHarness harness, long iterationMillis) {
+        for (int[] split : SPLITS) {
+            for (int capacity : CAPACITIES) {
+                for (int numPlants : PLANT_COUNTS) {
+                    final PlantConfig config = new PlantConfig()
+                            .setNumPeelers(split[0]).setNumSqueezers(split[1]).setNumBottlers(split[2])
+                            .setQueueCapacity(capacity).setNumPlants(numPlants).setRebalanceWorkers(false);
+                    harness.run("PipelineBenchmarks.endToEnd", "thrpt", "bottles/s",
+                            BenchmarkHarness.params("workers", split[0] + "/" + split[1] + "/" + split[2],
+                                    "capacity", capacity, "plants", numPlants),
+                            () -> endToEndIteration(config, iterationMillis));
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures bottles per second of one plant for each way of fusing its stages, with the default workers.
+     *
+     * @param harness         Harness to run with.
+     * @param iterationMillis How long each iteration runs the plant for.
+     */
+    private static void fusion(BenchmarkHarness harness, long iterationMillis) {
+        for (boolean fusePeelSqueeze : new boolean[]{false, true}) {
+            for (boolean fuseSqueezeBottle : new boolean[]{false, true}) {
+                final PlantConfig config = new PlantConfig().setNumPlants(1).setRebalanceWorkers(false)
+                        .setFusePeelSqueeze(fusePeelSqueeze).setFuseSqueezeBottle(fuseSqueezeBottle);
+                final StringBuilder topology = new StringBuilder("peel");
+                topology.append(fusePeelSqueeze ? "+" : "|").append("squeeze");
+                topology.append(fuseSqueezeBottle ? "+" : "|").append("bottle");
+                harness.run("PipelineBenchmarks.fusion", "thrpt", "bottles/s",
+                        BenchmarkHarness.params("stages", topology, "workers", config.getTotalWorkers()),
+                        () -> endToEndIteration(config, iterationMillis));
+            }
+        }
+    }
+
+    /**
+     * Measures how many bytes a running plant allocates per orange, for each kind of channel with and without an
+     * orange pool. Only works on JVMs that count allocated bytes per thread.
+     *
+     * @param harness         Harness to run with.
+     * @param iterationMillis How long each iteration measures the plant for.
+     */
+    private static void allocation(BenchmarkHarness harness, long iterationMillis) {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            System.err.println("PipelineBenchmarks.allocation skipped, this JVM doesn't count allocated bytes");
+            return;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        for (ChannelType type : ChannelType.values()) {
+            for (int poolSize : POOL_SIZES) {
+                final PlantConfig config = new PlantConfig().setNumPlants(1).setChannelType(type)
+                        .setOrangePoolSize(poolSize).setRebalanceWorkers(false).setJmxEnabled(false);
+                harness.run("PipelineBenchmarks.allocation", "avgt", "B/orange",
+                        BenchmarkHarness.params("channel", type, "pool", poolSize),
+                        () -> allocationIteration(threads, config, iterationMillis));
+            }
+        }
+    }
+
+    /**
+     * Runs a plant and measures the bytes allocated by every thread but this one while it works.
+     *
+     * @param threads         Bean that counts allocated bytes per thread.
+     * @param config          Settings of the plant.
+     * @param iterationMillis How long to measure the plant for.
+     * @return Bytes allocated per orange processed.
+     * @throws InterruptedException If interrupted while the plant runs.
+     */
+    private static double allocationIteration(com.sun.management.ThreadMXBean threads, PlantConfig config,
+                                              long iterationMillis) throws InterruptedException {
+        final Plant plant = new Plant(1, config);
+        plant.startPlant();
+        Thread.sleep(ALLOCATION_WARMUP_MILLIS);
+
+        final long[] ids = threads.getAllThreadIds();
+        final long[] before = threads.getThreadAllocatedBytes(ids);
+        final int processedBefore = plant.getOrangesProcessed();
+        Thread.sleep(iterationMillis);
+        final long[] after = threads.getThreadAllocatedBytes(ids);
+        final int processed = plant.getOrangesProcessed() - processedBefore;
+
+        plant.stopPlant();
+        plant.waitToStop();
+
+        final long self = Thread.currentThread().getId();
+        long bytes = 0;
+        for (int i = 0; i < ids.length; i++) {
+            // -1 means the thread has died or isn't counted
+            if (ids[i] != self && before[i] >= 0 && after[i] >= 0) {
+                bytes += after[i] - before[i];
+            }
+        }
+        return (double) bytes / Math.max(1, processed);
+    }
+
+    /**
+     * Measures bottles per second of two plants where one gets far more oranges than it can handle and the other far
+     * fewer, with and without work stealing between them.
+     *
+     * @param harness         Harness to run with.
+     * @param iterationMillis How long each iteration runs the plants for.
+     */
+    private static void unevenLoad(BenchmarkHarness harness, long iterationMillis) {
+        for (boolean stealing : new boolean[]{false, true}) {
+            final PlantConfig[] configs = new PlantConfig[UNEVEN_FETCHERS.length];
+            for (int i = 0; i < configs.length; i++) {
+                configs[i] = new PlantConfig().setNumFetchers(UNEVEN_FETCHERS[i])
+                        .setRebalanceWorkers(false).setWorkStealing(stealing);
+            }
+            harness.run("PipelineBenchmarks.unevenLoad", "thrpt", "bottles/s",
+                    BenchmarkHarness.params("fetchers", UNEVEN_FETCHERS[0] + "/" + UNEVEN_FETCHERS[1], "stealing", stealing),
+                    () -> runPlants(configs, iterationMillis));
+        }
+    }
+
+    /**
+     * Runs plants for a while and counts the bottles they make.
+     *
+     * @param config          Settings of the plants.
+     * @param iterationMillis How long to run the plants for.
+     * @return Bottles per second.
+     * @throws InterruptedException If interrupted while the plants run.
+     */
+    static double endToEndIteration(PlantConfig config, long iterationMillis) throws InterruptedException {
+        final PlantConfig[] configs = new PlantConfig[config.getNumPlants()];
+        Arrays.fill(configs, config);
+        return runPlants(configs, iterationMillis);
+    }
+
+    /**
+     * Runs one plant per config for a while and counts the bottles they make. The plants share work if the first
+     * config has {@link PlantConfig#isWorkStealing() work stealing} on.
+     *
+     * @param configs         Settings of each plant.
+     * @param iterationMillis How long to run the plants for.
+     * @return Bottles per second.
+     * @throws InterruptedException If interrupted while the plants run.
+     */
+    static double runPlants(PlantConfig[] configs, long iterationMillis) throws InterruptedException {
+        final Plant[] plants = new Plant[configs.length];
+        for (int i = 0; i < plants.length; i++) {
+            plants[i] = new Plant(i + 1, configs[i]);
+        }
+        if (configs[0].isWorkStealing()) {
+            Plant.enableWorkStealing(plants);
+        }
+        final long start = System.nanoTime();
+        for (Plant p : plants) {
+            p.startPlant();
+        }
+        Thread.sleep(iterationMillis);
+        for (Plant p : plants) {
+            p.stopPlant();
+        }
+        for (Plant p : plants) {
+            p.waitToStop();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        long bottles = 0;
+        for (Plant p : plants) {
+            bottles += p.getOrangesBottled();
+        }
+        return bottles / seconds;
+    }
+}
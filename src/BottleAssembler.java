@@ -0,0 +1,214 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code BottleAssembler} class is the last stage of a {@link Plant}. It consumes fully processed oranges
+ * from the {@link #takeQueue} as they arrive and groups them into bottles of {@link #orangesPerBottle} oranges.
+ *
+ * <p>Oranges are not kept once they have been counted, the assembler only keeps counters and the number of
+ * oranges in the current partial bottle, so memory use doesn't grow with how long the plant runs.</p>
+ *
+ * <p>Oranges that arrive after their {@link Orange#getDeadlineNanos() deadline} are still bottled, and counted as
+ * {@link #getOrangesLate() late}.</p>
+ *
+ * <p>The assembler finishes once it takes an {@link Orange#POISON_PILL poison pill}, which the plant hands off after
+ * the last bottler has stopped.</p>
+ */
+public class BottleAssembler implements Runnable {
+    /** Max amount of time the assembler will wait to get an orange from a queue. */
+    private static final int MAX_TIMEOUT_TIME_MILLIS = 100;
+
+    /** Thread for the assembler. */
+    private final Thread thread;
+
+    /** When true, the assembler should keep assembling bottles. */
+    private volatile boolean timeToWork;
+
+    /** Queue to get bottled oranges from. */
+    private final StageChannel takeQueue;
+
+    /** Number of oranges put in each bottle. */
+    private final int orangesPerBottle;
+
+    /** Metrics of the plant, records how long it took each orange to get here. */
+    private final PlantMetrics metrics;
+
+    /** Pool bottled oranges are given back to, or null if oranges aren't recycled. */
+    private final OrangePool pool;
+
+    /** Oranges taken from the {@link #takeQueue} in one go, only used by the assembler's thread. */
+    private final List<Orange> arrived;
+
+    /** Number of oranges consumed by the assembler. Only written by the assembler thread. */
+    private volatile int orangesProcessed;
+
+    /** Number of oranges consumed after they had gone off. Only written by the assembler thread. */
+    private volatile int orangesLate;
+
+    /** Number of full bottles assembled. Only written by the assembler thread. */
+    private volatile int bottles;
+
+    /** Number of oranges in the current, partially filled bottle. Only written by the assembler thread. */
+    private volatile int orangesInPartialBottle;
+
+    /**
+     * Creates a new BottleAssembler object.
+     *
+     * @param plantNum         Number of plant this assembler is working in, used to name assembler thread.
+     * @param takeQueue        Queue to take bottled oranges from.
+     * @param orangesPerBottle Number of oranges put in each bottle.
+     * @param metrics          Metrics of the plant.
+     * @param pool             Pool to give bottled oranges back to, or null if oranges aren't recycled.
+     * @param threadFactory    Factory used to create the assembler's thread.
+     */
+    public BottleAssembler(int plantNum, StageChannel takeQueue, int orangesPerBottle, PlantMetrics metrics,
+                           OrangePool pool, ThreadFactory threadFactory) {
+        this.metrics = metrics;
+        this.pool = pool;
+        this.arrived = new ArrayList<>();
+        this.takeQueue = takeQueue;
+        this.orangesPerBottle = orangesPerBottle;
+        this.thread = ExecutionMode.newThread(threadFactory, this, "Assembler[" + plantNum + "]");
+    }
+
+    /** Starts thread by setting {@link #timeToWork} to true and calling {@link Thread#start()}. */
+    public void start() {
+        timeToWork = true;
+        thread.start();
+    }
+
+    /**
+     * Stops thread from waiting for more oranges by setting {@link #timeToWork} to false and waking it. Oranges already in the
+     * {@link #takeQueue} are still assembled before the thread finishes.
+     * (To wait for the thread to finish, call {@link #waitToStop()})
+     */
+    public void stop() {
+        timeToWork = false;
+        thread.interrupt();
+    }
+
+    /**
+     * Runs this thread. While {@link #timeToWork} is true, the thread will take oranges from it's {@link #takeQueue}
+     * and add them to the current bottle, until it takes a {@link Orange#POISON_PILL poison pill}. Once stopped,
+     * whatever is left in the queue is assembled too.
+     */
+    @Override
+    public void run() {
+        boolean finished = false;
+        while (timeToWork && !finished) {
+            try {
+                // Attempt to get an orange from the takeQueue, waits up to 100 milliseconds if none available
+                final Orange o = takeQueue.poll(MAX_TIMEOUT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+                if (o != null) {
+                    finished = assemble(o);
+                    // Take everything else that has arrived in one go
+                    takeQueue.drainTo(arrived, Integer.MAX_VALUE);
+                    for (int i = 0; i < arrived.size(); i++) {
+                        finished |= assemble(arrived.get(i));
+                    }
+                    arrived.clear();
+                }
+            } catch (InterruptedException e) {
+                if (timeToWork) {
+                    System.err.println(Thread.currentThread().getName() + " interrupted when waiting to get orange from queue.");
+                }
+            }
+        }
+
+        // Assemble anything the bottlers handed off before they stopped
+        Orange o;
+        while ((o = takeQueue.poll()) != null) {
+            assemble(o);
+        }
+    }
+
+    /**
+     * Adds an orange to the current bottle, and starts a new bottle once the current one is full. The orange is
+     * given back to the {@link #pool} afterwards.
+     *
+     * @param o Orange to add to the bottle.
+     * @return {@code true} if it was the {@link Orange#POISON_PILL poison pill} rather than an orange.
+     */
+    private boolean assemble(Orange o) {
+        if (o == Orange.POISON_PILL) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        metrics.getEndToEnd().record(now - o.getFetchedNanos());
+        if (o.isExpired(now)) {
+            orangesLate++;
+        }
+        orangesProcessed++;
+        orangesInPartialBottle++;
+        if (orangesInPartialBottle == orangesPerBottle) {
+            bottles++;
+            orangesInPartialBottle = 0;
+        }
+        if (pool != null) {
+            pool.release(o);
+        }
+        return false;
+    }
+
+    /** Waits for thread to stop by calling {@link Thread#join()}. */
+    public void waitToStop() {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            System.err.println(thread.getName() + " stop malfunction");
+        }
+    }
+
+    /**
+     * Sets the counters to what they were before the plant was restarted, see {@link PlantCheckpoint}. Every
+     * orange consumed went into a bottle in turn, so the full and partial bottles follow from the count. Has to be
+     * called before the assembler is started.
+     *
+     * @param processed Number of oranges consumed before.
+     * @param late      Number of those that had gone off.
+     */
+    void restore(long processed, long late) {
+        orangesProcessed = Math.toIntExact(processed);
+        orangesLate = Math.toIntExact(late);
+        bottles = (int) (processed / orangesPerBottle);
+        orangesInPartialBottle = (int) (processed % orangesPerBottle);
+    }
+
+    /**
+     * Gets the number of oranges consumed by the assembler.
+     *
+     * @return Number of oranges processed.
+     */
+    public int getOrangesProcessed() {
+        return orangesProcessed;
+    }
+
+    /**
+     * Gets the number of oranges consumed after their deadline, which are in the bottles anyway.
+     *
+     * @return Number of oranges late.
+     */
+    public int getOrangesLate() {
+        return orangesLate;
+    }
+
+    /**
+     * Gets the number of full bottles assembled.
+     *
+     * @return Number of bottles.
+     */
+    public int getBottles() {
+        return bottles;
+    }
+
+    /**
+     * Gets the number of oranges in the current bottle, which isn't full yet.
+     *
+     * @return Number of oranges not bottled.
+     */
+    public int getOrangesInPartialBottle() {
+        return orangesInPartialBottle;
+    }
+}
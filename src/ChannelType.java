@@ -0,0 +1,41 @@
+/**
+ * Enumeration used to define which kind of {@link StageChannel} a {@link Plant} passes oranges through.
+ */
+public enum ChannelType {
+    /** A {@link LinkedStageChannel}, the default. */
+    LINKED,
+
+    /**
+     * A lock free {@link RingChannel}. The variant is picked from the number of threads on each side:
+     * {@link SpscRingChannel}, {@link MpscRingChannel} or {@link MpmcRingChannel}.
+     */
+    RING,
+
+    /**
+     * A {@link DeadlineStageChannel}, which hands out the orange with the earliest deadline first instead of the
+     * oldest, see {@link PlantConfig#getFreshnessMillis()}.
+     */
+    DEADLINE;
+
+    /**
+     * Creates a new channel of this type.
+     *
+     * @param capacity       Maximum number of oranges in the channel.
+     * @param singleProducer True if only one thread will ever add to the channel.
+     * @param singleConsumer True if only one thread will ever take from the channel.
+     * @param waitStrategy   What a thread does while it waits on a ring channel, not used by other channels.
+     * @return The new channel.
+     */
+    public StageChannel create(int capacity, boolean singleProducer, boolean singleConsumer, WaitStrategy waitStrategy) {
+        if (this == LINKED) {
+            return new LinkedStageChannel(capacity);
+        }
+        if (this == DEADLINE) {
+            return new DeadlineStageChannel(capacity);
+        }
+        if (singleConsumer) {
+            return singleProducer ? new SpscRingChannel(capacity, waitStrategy) : new MpscRingChannel(capacity, waitStrategy);
+        }
+        return new MpmcRingChannel(capacity, waitStrategy);
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The {@code CheckpointFile} class writes {@link PlantCheckpoint checkpoints} to a memory-mapped file, so writing one
+ * is a copy into memory the operating system flushes to disk, rather than a system call per field.
+ *
+ * <p>The file has two slots, and checkpoints are written to each in turn, so the last complete checkpoint is never
+ * overwritten. Each slot starts with the checkpoint's sequence number, length and CRC-32. The sequence number is
+ * written last, so a checkpoint cut short by a crash fails its check and {@link #readLatest(Path)} takes the other
+ * slot.</p>
+ */
+public class CheckpointFile implements Closeable {
+    /** Size of each slot in bytes, large enough for a checkpoint of a plant with every state a stage. */
+    private static final int SLOT_BYTES = 512;
+
+    /** Size of the header of each slot: sequence number, length and CRC-32. */
+    private static final int HEADER_BYTES = Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    /** Channel of the file, kept open so the mapping stays valid. */
+    private final FileChannel channel;
+
+    /** The whole file, mapped into memory. */
+    private final MappedByteBuffer mapped;
+
+    /** Checkpoint being written, before it is copied into a slot. */
+    private final ByteBuffer scratch;
+
+    /** Computes the CRC-32 of each checkpoint. */
+    private final CRC32 crc;
+
+    /** Sequence number of the last checkpoint written. */
+    private long sequence;
+
+    /**
+     * Opens a checkpoint file for writing, creating it and its directory if they don't exist. Checkpoints already in
+     * the file are kept until they are overwritten.
+     *
+     * @param path Path of the file.
+     * @throws IOException If the file can't be created or mapped.
+     */
+    public CheckpointFile(Path path) throws IOException {
+        final Path dir = path.toAbsolutePath().getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * SLOT_BYTES);
+        this.scratch = ByteBuffer.allocate(SLOT_BYTES - HEADER_BYTES);
+        this.crc = new CRC32();
+        this.sequence = Math.max(validSequence(mapped, 0), validSequence(mapped, 1));
+    }
+
+    /**
+     * Writes a checkpoint to the slot that doesn't hold the last one, and flushes it to disk.
+     *
+     * @param checkpoint Checkpoint to write.
+     */
+    public void write(PlantCheckpoint checkpoint) {
+        scratch.clear();
+        checkpoint.writeTo(scratch);
+        scratch.flip();
+        crc.reset();
+        crc.update(scratch.duplicate());
+
+        sequence++;
+        final int slot = (int) (sequence % 2) * SLOT_BYTES;
+        // Invalidate the slot first, so a crash part way through can't leave the old sequence on new contents
+        mapped.putLong(slot, 0);
+        mapped.putInt(slot + Long.BYTES, scratch.remaining());
+        mapped.putInt(slot + Long.BYTES + Integer.BYTES, (int) crc.getValue());
+        mapped.put(slot + HEADER_BYTES, scratch, 0, scratch.remaining());
+        mapped.putLong(slot, sequence);
+        mapped.force();
+    }
+
+    /**
+     * Reads the last complete checkpoint of a file.
+     *
+     * @param path Path of the file.
+     * @return The checkpoint with the highest sequence number, or null if the file doesn't exist or has none.
+     * @throws IOException If the file can't be read.
+     */
+    public static PlantCheckpoint readLatest(Path path) throws IOException {
+        final ByteBuffer file;
+        try {
+            file = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (file.capacity() < 2 * SLOT_BYTES) {
+            return null;
+        }
+        final long first = validSequence(file, 0);
+        final long second = validSequence(file, 1);
+        if (first == 0 && second == 0) {
+            return null;
+        }
+        final int slot = first > second ? 0 : SLOT_BYTES;
+        final int length = file.getInt(slot + Long.BYTES);
+        return PlantCheckpoint.readFrom(file.slice(slot + HEADER_BYTES, length));
+    }
+
+    /**
+     * Gets the sequence number of a slot, if its checkpoint is complete.
+     *
+     * @param file Contents of the file.
+     * @param slot Index of the slot, 0 or 1.
+     * @return Sequence number, or 0 if the slot holds no complete checkpoint.
+     */
+    private static long validSequence(ByteBuffer file, int slot) {
+        final int start = slot * SLOT_BYTES;
+        final long sequence = file.getLong(start);
+        final int length = file.getInt(start + Long.BYTES);
+        if (sequence <= 0 || length <= 0 || length > SLOT_BYTES - HEADER_BYTES) {
+            return 0;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(file.slice(start + HEADER_BYTES, length));
+        return (int) crc.getValue() == file.getInt(start + Long.BYTES + Integer.BYTES) ? sequence : 0;
+    }
+
+    /**
+     * Closes the file. Checkpoints written are already on disk.
+     *
+     * @throws IOException If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,344 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The {@code Coordinator} class runs one plant spread over several JVMs: each {@link PlantNode} runs some of the
+ * plant's stages, and passes oranges on to the next node over TCP. The coordinator assigns the stages to the nodes,
+ * starts them, stops them after {@link PlantConfig#getProcessingTimeMillis()}, and adds up their counters.
+ *
+ * <p>Usage: {@code java Coordinator [options] [settings]}</p>
+ * <ul>
+ *     <li>{@code --nodes=<n>}: number of nodes, at most one per stage. Defaults to one per stage.</li>
+ *     <li>{@code --port=<port>}: port the nodes connect to. Default 0, any free port.</li>
+ *     <li>{@code --spawn=true|false}: start the nodes as JVMs on this machine, or wait for nodes started by hand
+ *     with {@code java PlantNode --coordinator=<host>:<port>}, on this machine or any other. Default true.</li>
+ * </ul>
+ *
+ * <p>Any other argument is a setting of the plant, see {@link PlantConfig#fromArgs(String[])}. Stages are split
+ * evenly between nodes in pipeline order, the first node also fetches and the last also bottles.</p>
+ *
+ * <p>The coordinator talks to each node over its own connection: the node says {@link #HELLO} with the port it takes
+ * oranges on, the coordinator sends {@link #ASSIGN} with its stages, settings and next node, the node says
+ * {@link #READY}, and the coordinator sends {@link #START} and later {@link #STOP}, after which the node sends its
+ * {@link #STATS}.</p>
+ */
+public class Coordinator {
+    /** Sent by a node once connected, followed by the port it takes oranges on. */
+    static final String HELLO = "HELLO";
+
+    /**
+     * Sent to a node with its number, its first stage, the stage after its last, the host and port of the next node
+     * (empty and -1 for the last node), and the settings of the plant as properties.
+     */
+    static final String ASSIGN = "ASSIGN";
+
+    /** Sent by a node once it has connected to the next node. */
+    static final String READY = "READY";
+
+    /** Sent to a node to start working. */
+    static final String START = "START";
+
+    /** Sent to a node to stop, once it has finished its oranges. */
+    static final String STOP = "STOP";
+
+    /** Sent by a stopped node, followed by its {@link PlantNode#getStats() counters} as properties. */
+    static final String STATS = "STATS";
+
+    /** Longest the coordinator waits for the nodes to connect, in milliseconds. */
+    private static final int CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+
+    /** Extra time given to the nodes to report after the drain deadline, in milliseconds. */
+    private static final int REPORT_GRACE_MILLIS = 10 * 1000;
+
+    /**
+     * Connection to one node.
+     */
+    private static class Node {
+        /** Control connection to the node. */
+        private final Socket socket;
+
+        /** Messages from the node. */
+        private final DataInputStream in;
+
+        /** Messages to the node. */
+        private final DataOutputStream out;
+
+        /** Port the node takes oranges on. */
+        private final int dataPort;
+
+        /**
+         * Accepts a node and reads its {@link #HELLO}.
+         *
+         * @param server Socket the nodes connect to.
+         * @throws IOException If no node connects in time, or it doesn't say hello.
+         */
+        private Node(ServerSocket server) throws IOException {
+            this.socket = server.accept();
+            this.socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = new DataOutputStream(socket.getOutputStream());
+            expect(in, HELLO);
+            this.dataPort = in.readInt();
+        }
+
+        /**
+         * Gets the address other nodes reach this node at, the one it connected to the coordinator from.
+         *
+         * @return Host address of the node.
+         */
+        private String host() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
+        /**
+         * Sends a message without fields.
+         *
+         * @param message Message to send.
+         * @throws IOException If the node can't be reached.
+         */
+        private void send(String message) throws IOException {
+            out.writeUTF(message);
+            out.flush();
+        }
+    }
+
+    /**
+     * Main method, runs a distributed plant and prints its totals.
+     *
+     * @param args Options and settings, see {@link Coordinator}.
+     */
+    public static void main(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        options.put("nodes", "0");
+        options.put("port", "0");
+        options.put("spawn", "true");
+        final PlantConfig config;
+        final int numNodes;
+        final int port;
+        final boolean spawn;
+        try {
+            config = PlantConfig.fromArgs(args, options).setJmxEnabled(false);
+            final int numStages = config.getHandoffStates().length - 1;
+            final int nodes = Integer.parseInt(options.get("nodes"));
+            numNodes = nodes == 0 ? numStages : nodes;
+            port = Integer.parseInt(options.get("port"));
+            spawn = Boolean.parseBoolean(options.get("spawn"));
+            if (numNodes < 1 || numNodes > numStages) {
+                throw new IllegalArgumentException("nodes must be from 1 to " + numStages + ", got " + numNodes);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        try {
+            run(config, numNodes, port, spawn);
+        } catch (IOException e) {
+            System.err.println("Coordinator failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the plant on a number of nodes and prints its totals.
+     *
+     * @param config   Settings of the plant.
+     * @param numNodes Number of nodes.
+     * @param port     Port the nodes connect to, 0 for any free port.
+     * @param spawn    {@code true} to start the nodes as JVMs on this machine.
+     * @throws IOException If a node can't be reached.
+     */
+    private static void run(PlantConfig config, int numNodes, int port, boolean spawn) throws IOException {
+        final Orange.State[] handoffStates = config.getHandoffStates();
+        final int numStages = handoffStates.length - 1;
+        final List<Process> processes = new ArrayList<>();
+        final Node[] nodes = new Node[numNodes];
+        try (ServerSocket server = new ServerSocket(port)) {
+            server.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            final String nodeArg = "--coordinator=localhost:" + server.getLocalPort();
+            if (spawn) {
+                for (int i = 0; i < numNodes; i++) {
+                    processes.add(spawnNode(nodeArg));
+                }
+            } else {
+                System.out.println("Waiting for " + numNodes + " nodes: java PlantNode " + nodeArg);
+            }
+            for (int i = 0; i < numNodes; i++) {
+                nodes[i] = new Node(server);
+            }
+
+            // Assign stages in pipeline order, each node sends its oranges to the next
+            final StringWriter settings = new StringWriter();
+            config.toProperties().store(settings, null);
+            for (int i = 0; i < numNodes; i++) {
+                final int first = i * numStages / numNodes;
+                final int end = (i + 1) * numStages / numNodes;
+                final DataOutputStream out = nodes[i].out;
+                out.writeUTF(ASSIGN);
+                out.writeInt(i + 1);
+                out.writeInt(first);
+                out.writeInt(end);
+                out.writeUTF(i + 1 < numNodes ? nodes[i + 1].host() : "");
+                out.writeInt(i + 1 < numNodes ? nodes[i + 1].dataPort : -1);
+                out.writeUTF(settings.toString());
+                out.flush();
+                final StringBuilder stages = new StringBuilder();
+                for (int s = first; s < end; s++) {
+                    stages.append(' ').append(Plant.stageName(handoffStates, s));
+                }
+                System.out.println("Node[" + (i + 1) + "] at " + nodes[i].host() + ":" + stages);
+            }
+            for (Node n : nodes) {
+                expect(n.in, READY);
+            }
+
+            // Start the last node first, so nobody sends oranges to a node that isn't working yet
+            for (int i = numNodes - 1; i >= 0; i--) {
+                nodes[i].send(START);
+            }
+            try {
+                Thread.sleep(config.getProcessingTimeMillis());
+            } catch (InterruptedException e) {
+                System.err.println("Coordinator malfunction");
+            }
+            for (Node n : nodes) {
+                n.send(STOP);
+            }
+
+            final Properties[] stats = new Properties[numNodes];
+            for (int i = 0; i < numNodes; i++) {
+                nodes[i].socket.setSoTimeout((int) config.getDrainDeadlineMillis() + REPORT_GRACE_MILLIS);
+                expect(nodes[i].in, STATS);
+                stats[i] = new Properties();
+                stats[i].load(new StringReader(nodes[i].in.readUTF()));
+            }
+            printTotals(stats, handoffStates);
+        } finally {
+            for (Node n : nodes) {
+                if (n != null) {
+                    n.socket.close();
+                }
+            }
+            for (Process p : processes) {
+                try {
+                    p.waitFor();
+                } catch (InterruptedException e) {
+                    p.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a node in a new JVM on this machine, with the same Java and class path as the coordinator. Its output
+     * goes to the coordinator's.
+     *
+     * @param nodeArg Argument telling the node where the coordinator is.
+     * @return The node's process.
+     * @throws IOException If the JVM can't be started.
+     */
+    private static Process spawnNode(String nodeArg) throws IOException {
+        final String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "PlantNode", nodeArg)
+                .directory(new File(System.getProperty("user.dir")))
+                .inheritIO()
+                .start();
+    }
+
+    /**
+     * Reads a message and checks it is the one expected.
+     *
+     * @param in       Stream to read from.
+     * @param expected Message expected.
+     * @throws IOException If the stream can't be read, or has another message.
+     */
+    static void expect(DataInputStream in, String expected) throws IOException {
+        final String message = in.readUTF();
+        if (!message.equals(expected)) {
+            throw new IOException("Expected " + expected + ", got " + message);
+        }
+    }
+
+    /**
+     * Adds up the counters of every node and prints them like {@link Plant#main(String[])} does.
+     *
+     * @param stats         Counters of each node, in pipeline order.
+     * @param handoffStates States oranges are handed off in.
+     */
+    private static void printTotals(Properties[] stats, Orange.State[] handoffStates) {
+        long provided = 0;
+        long processed = 0;
+        long bottles = 0;
+        long notBottled = 0;
+        long left = 0;
+        long removed = 0;
+        long expired = 0;
+        long dropped = 0;
+        long late = 0;
+        long lost = 0;
+        final StringBuilder completed = new StringBuilder();
+        for (int i = 0; i < stats.length; i++) {
+            provided += count(stats[i], "provided");
+            processed += count(stats[i], "processed");
+            bottles += count(stats[i], "bottles");
+            notBottled += count(stats[i], "notBottled");
+            left += count(stats[i], "leftInQueue");
+            removed += count(stats[i], "removed");
+            expired += count(stats[i], "expired");
+            dropped += count(stats[i], "dropped");
+            late += count(stats[i], "late");
+            if (i + 1 < stats.length) {
+                lost += count(stats[i], "sent") - count(stats[i + 1], "received");
+            }
+        }
+        for (int s = 0; s < handoffStates.length - 1; s++) {
+            for (Properties p : stats) {
+                final String c = p.getProperty("completed." + s);
+                if (c != null) {
+                    completed.append(' ').append(Plant.stageName(handoffStates, s)).append('=').append(c);
+                }
+            }
+        }
+        System.out.println();
+        System.out.println("=".repeat(10) + "Results" + "=".repeat(10));
+        System.out.println("Total provided/processed = " + provided + "/" + processed);
+        System.out.println("Total completed per stage =" + completed);
+        System.out.println("Total left in queues = " + left);
+        System.out.println("Total lost between nodes = " + lost);
+        System.out.println("Total leftover after bottling oranges = " + notBottled);
+        System.out.println("Total removed from queues = " + removed);
+        if (dropped > 0) {
+            System.out.println("Total dropped by halted workers = " + dropped);
+        }
+        if (expired + late > 0) {
+            System.out.println("Total deadline misses = " + (expired + late) + "/" + (processed + expired) + " ("
+                    + expired + " thrown away, " + late + " bottled late)");
+        }
+        System.out.println("Created " + bottles + ", wasted " + (notBottled + left + removed + expired + dropped + lost)
+                + " oranges");
+    }
+
+    /**
+     * Gets a counter of a node.
+     *
+     * @param stats Counters of the node.
+     * @param name  Name of the counter.
+     * @return Value of the counter, 0 if the node didn't report it.
+     */
+    private static long count(Properties stats, String name) {
+        return Long.parseLong(stats.getProperty(name, "0"));
+    }
+}
@@ -0,0 +1,269 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@code DeadlineStageChannel} class is a {@link StageChannel} that hands out the orange with the earliest
+ * {@link Orange#getDeadlineNanos() deadline} first, rather than the one that arrived first. Workers taking from it
+ * always work on the orange closest to going off, which lets more oranges make their deadline when some are fresher
+ * than others, see {@link PlantConfig#getFreshnessSpreadMillis()}. Oranges with the same deadline, and oranges that
+ * never go off, come out in the order they went in, so a {@link Orange#POISON_PILL poison pill} stays behind every
+ * real orange.
+ *
+ * <p>The oranges are kept in a binary heap in arrays sized to the capacity, so nothing is allocated per orange. Both
+ * ends share one lock, and {@link #drainTo(List, int)} and {@link #offerAll(List, long, TimeUnit)} pass a whole batch
+ * under it.</p>
+ */
+public class DeadlineStageChannel implements StageChannel {
+    /** Oranges in the channel, a heap ordered by {@link #deadlines} and then {@link #sequences}. */
+    private final Orange[] heap;
+
+    /** Deadline of the orange in the same slot of the {@link #heap}, read once when it is added. */
+    private final long[] deadlines;
+
+    /** Order the orange in the same slot of the {@link #heap} was added in. */
+    private final long[] sequences;
+
+    /** Guards every field below, and the arrays. */
+    private final ReentrantLock lock;
+
+    /** Signalled when an orange is added. */
+    private final Condition notEmpty;
+
+    /** Signalled when oranges are taken. */
+    private final Condition notFull;
+
+    /** Number of oranges in the channel. */
+    private int size;
+
+    /** Sequence number of the next orange added. */
+    private long nextSequence;
+
+    /**
+     * Creates a new DeadlineStageChannel object.
+     *
+     * @param capacity Maximum number of oranges in the channel.
+     */
+    public DeadlineStageChannel(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, got " + capacity);
+        }
+        this.heap = new Orange[capacity];
+        this.deadlines = new long[capacity];
+        this.sequences = new long[capacity];
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.notFull = lock.newCondition();
+    }
+
+    @Override
+    public boolean offer(Orange o, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == heap.length) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            push(o);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int offerAll(List<Orange> oranges, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        int added = 0;
+        lock.lockInterruptibly();
+        try {
+            while (added < oranges.size()) {
+                if (size == heap.length) {
+                    if (nanos <= 0) {
+                        break;
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                    continue;
+                }
+                push(oranges.get(added++));
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (added == oranges.size()) {
+            oranges.clear();
+        } else {
+            oranges.subList(0, added).clear();
+        }
+        return added;
+    }
+
+    @Override
+    public Orange poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            final Orange o = pop();
+            notFull.signal();
+            return o;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Orange poll() {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+            final Orange o = pop();
+            notFull.signal();
+            return o;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(List<Orange> to, int max) {
+        lock.lock();
+        try {
+            int taken = 0;
+            while (taken < max && size > 0) {
+                to.add(pop());
+                taken++;
+            }
+            if (taken > 0) {
+                notFull.signalAll();
+            }
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return heap.length;
+    }
+
+    /**
+     * Adds an orange to the heap. The lock must be held and there must be room.
+     *
+     * @param o Orange to add.
+     */
+    private void push(Orange o) {
+        final long deadline = o.getDeadlineNanos();
+        final long sequence = nextSequence++;
+        int i = size++;
+        // Move parents down until the orange's slot is found
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (!before(deadline, sequence, parent)) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        set(i, o, deadline, sequence);
+    }
+
+    /**
+     * Takes the orange with the earliest deadline from the heap. The lock must be held and the heap not empty.
+     *
+     * @return The orange.
+     */
+    private Orange pop() {
+        final Orange first = heap[0];
+        final int last = --size;
+        final Orange o = heap[last];
+        final long deadline = deadlines[last];
+        final long sequence = sequences[last];
+        heap[last] = null;
+        if (last > 0) {
+            // Move the last orange down from the top until its slot is found
+            int i = 0;
+            int child;
+            while ((child = 2 * i + 1) < last) {
+                if (child + 1 < last && before(deadlines[child + 1], sequences[child + 1], child)) {
+                    child++;
+                }
+                if (before(deadline, sequence, child)) {
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+            set(i, o, deadline, sequence);
+        }
+        return first;
+    }
+
+    /**
+     * Checks if an orange comes out before the one in a slot.
+     *
+     * @param deadline Deadline of the orange.
+     * @param sequence Sequence number of the orange.
+     * @param slot     Slot of the other orange.
+     * @return {@code true} if the orange has the earlier deadline, or the same deadline and was added first.
+     */
+    private boolean before(long deadline, long sequence, int slot) {
+        final long other = deadlines[slot];
+        if (deadline == other) {
+            return sequence < sequences[slot];
+        }
+        // Oranges that never go off come last, other deadlines are compared by difference in case nanoTime wraps
+        if (deadline == Long.MAX_VALUE || other == Long.MAX_VALUE) {
+            return other == Long.MAX_VALUE;
+        }
+        return deadline - other < 0;
+    }
+
+    /**
+     * Moves an orange from one slot of the heap to another.
+     *
+     * @param from Slot to move from.
+     * @param to   Slot to move to.
+     */
+    private void move(int from, int to) {
+        set(to, heap[from], deadlines[from], sequences[from]);
+    }
+
+    /**
+     * Puts an orange in a slot of the heap.
+     *
+     * @param slot     Slot to put it in.
+     * @param o        The orange.
+     * @param deadline Deadline of the orange.
+     * @param sequence Sequence number of the orange.
+     */
+    private void set(int slot, Orange o, long deadline, long sequence) {
+        heap[slot] = o;
+        deadlines[slot] = deadline;
+        sequences[slot] = sequence;
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.PriorityQueue;
+
+/**
+ * The {@code EventScheduler} class runs a discrete-event simulation on a virtual clock. Actions are scheduled to run a
+ * number of nanoseconds from now, and {@link #runUntil(long)} runs them in time order, moving the clock straight to
+ * each action's time instead of waiting for it.
+ *
+ * <p>Actions scheduled for the same time run in the order they were scheduled, so a simulation gives the same result
+ * every time it is run. The scheduler isn't thread safe, everything in a simulation runs on the calling thread.</p>
+ */
+public class EventScheduler {
+    /**
+     * An action waiting in the scheduler.
+     */
+    private static final class Event implements Comparable<Event> {
+        /** Virtual time to run the action at, in nanoseconds. */
+        private final long time;
+
+        /** Order the event was scheduled in, breaks ties between events at the same time. */
+        private final long sequence;
+
+        /** What to do at {@link #time}. */
+        private final Runnable action;
+
+        /**
+         * Creates a new Event object.
+         *
+         * @param time     Virtual time to run the action at, in nanoseconds.
+         * @param sequence Order the event was scheduled in.
+         * @param action   What to do.
+         */
+        private Event(long time, long sequence, Runnable action) {
+            this.time = time;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return Long.compare(time, other.time);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /** Events that haven't run yet, earliest first. */
+    private final PriorityQueue<Event> events;
+
+    /** Current virtual time, in nanoseconds. */
+    private long now;
+
+    /** Number of events scheduled so far, used as the next event's sequence. */
+    private long scheduled;
+
+    /** Number of events run so far. */
+    private long eventsRun;
+
+    /** Creates a new EventScheduler object, with the clock at 0. */
+    public EventScheduler() {
+        this.events = new PriorityQueue<>();
+    }
+
+    /**
+     * Gets the current virtual time.
+     *
+     * @return Virtual time in nanoseconds.
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Schedules an action to run later.
+     *
+     * @param delayNanos How long from now to run the action, in virtual nanoseconds.
+     * @param action     What to do.
+     */
+    public void schedule(long delayNanos, Runnable action) {
+        if (delayNanos < 0) {
+            throw new IllegalArgumentException("Can't schedule an event in the past, delay " + delayNanos);
+        }
+        events.add(new Event(now + delayNanos, scheduled++, action));
+    }
+
+    /**
+     * Runs every event scheduled before a virtual time, including events scheduled by those events. The clock is
+     * left at that time, and later events stay scheduled.
+     *
+     * @param endNanos Virtual time to stop at, in nanoseconds.
+     */
+    public void runUntil(long endNanos) {
+        while (!events.isEmpty() && events.peek().time < endNanos) {
+            final Event e = events.poll();
+            now = e.time;
+            eventsRun++;
+            e.action.run();
+        }
+        now = Math.max(now, endNanos);
+    }
+
+    /**
+     * Gets the number of events run so far.
+     *
+     * @return Number of events run.
+     */
+    public long getEventsRun() {
+        return eventsRun;
+    }
+}
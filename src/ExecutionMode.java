@@ -0,0 +1,81 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Enumeration used to define how the threads of a {@link Plant} are run. The {@link Plant}, {@link Fetcher},
+ * {@link Worker} and {@link BottleAssembler} threads are all created with the {@link ThreadFactory} of the mode,
+ * and a plant can also be given any other {@link ThreadFactory}.
+ *
+ * <p>Virtual threads are looked up at runtime, because they need Java 21. On older versions
+ * {@link #VIRTUAL} falls back to platform threads and prints a warning once.</p>
+ */
+public enum ExecutionMode {
+    /** Every thread is a platform thread, with its own stack and OS thread. */
+    PLATFORM,
+
+    /** Every thread is a virtual thread, which is cheap to block in {@link Thread#sleep(long)} and queues. */
+    VIRTUAL;
+
+    /** Factory for virtual threads, or null if this Java version doesn't have them. */
+    private static final ThreadFactory VIRTUAL_FACTORY = lookupVirtualFactory();
+
+    /** Set once the fallback warning has been printed. */
+    private static volatile boolean warned;
+
+    /**
+     * Gets the thread factory used to create threads in this mode.
+     *
+     * @return Thread factory for this mode.
+     */
+    public ThreadFactory threadFactory() {
+        if (this == VIRTUAL) {
+            if (VIRTUAL_FACTORY != null) {
+                return VIRTUAL_FACTORY;
+            }
+            if (!warned) {
+                warned = true;
+                System.err.println("Virtual threads need Java 21, running " + Runtime.version() + " with platform threads instead.");
+            }
+        }
+        return Thread::new;
+    }
+
+    /**
+     * Checks if this mode really runs on the kind of thread it is named after.
+     *
+     * @return {@code false} if this is {@link #VIRTUAL} but virtual threads aren't available, {@code true} otherwise.
+     */
+    public boolean isSupported() {
+        return this != VIRTUAL || VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Creates a new, unstarted, named thread with the given factory.
+     *
+     * @param factory Factory to create the thread with.
+     * @param task    What the thread will run.
+     * @param name    Name of the thread.
+     * @return The new thread.
+     */
+    static Thread newThread(ThreadFactory factory, Runnable task, String name) {
+        final Thread thread = factory.newThread(task);
+        thread.setName(name);
+        return thread;
+    }
+
+    /**
+     * Looks up {@code Thread.ofVirtual().factory()}.
+     *
+     * @return Factory for virtual threads, or null if they aren't available.
+     */
+    private static ThreadFactory lookupVirtualFactory() {
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Object builder = ofVirtual.invoke(null);
+            final Method factory = ofVirtual.getReturnType().getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
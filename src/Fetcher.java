@@ -0,0 +1,164 @@
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code Fetcher} class is meant to be spawned from the {@link Plant} class. A fetcher repeatedly fetches new
+ * {@link Orange} objects and hands them to the {@link #giveQueue}, which is the first stage of the plant.
+ * Several fetchers can feed the same queue, so the plant is no longer limited by the time it takes one
+ * thread to fetch an orange.
+ */
+public class Fetcher implements Runnable {
+    /** Max amount of time a fetcher will wait to add an orange to a queue. */
+    private static final int MAX_TIMEOUT_TIME_MILLIS = 100;
+
+    /** Thread for the fetcher. */
+    private final Thread thread;
+
+    /** Name of the plant the fetcher fetches for, used in Flight Recorder events. */
+    private final String plantName;
+
+    /** When true, the fetcher should fetch oranges. */
+    private volatile boolean timeToWork;
+
+    /** When true, the fetcher gives up on the orange it is holding instead of handing it off. */
+    private volatile boolean halted;
+
+    /** Queue to add fetched oranges to. */
+    private final StageChannel giveQueue;
+
+    /** Counter shared by every fetcher in the plant, keeps track of oranges provided to the workers. */
+    private final LongAdder orangesProvided;
+
+    /** Metrics of the plant, records how long fetching takes. */
+    private final PlantMetrics metrics;
+
+    /** Pool oranges are taken from. */
+    private final OrangePool pool;
+
+    /**
+     * Creates a new Fetcher object.
+     *
+     * @param plantNum        Number of plant this fetcher is working in, used to name fetcher thread.
+     * @param threadNum       Number of thread/fetcher.
+     * @param giveQueue       Queue to add fetched oranges to.
+     * @param orangesProvided Counter incremented each time an orange is added to the giveQueue.
+     * @param metrics         Metrics of the plant.
+     * @param pool            Pool to take oranges from, which creates a new orange if it has none.
+     * @param threadFactory   Factory used to create the fetcher's thread.
+     */
+    public Fetcher(int plantNum, int threadNum, StageChannel giveQueue, LongAdder orangesProvided,
+                   PlantMetrics metrics, OrangePool pool, ThreadFactory threadFactory) {
+        this.metrics = metrics;
+        this.pool = pool;
+        this.giveQueue = giveQueue;
+        this.orangesProvided = orangesProvided;
+        this.plantName = "Plant[" + plantNum + "]";
+        this.thread = ExecutionMode.newThread(threadFactory, this, "Fetcher[" + plantNum + "." + threadNum + "]");
+    }
+
+    /** Starts thread by setting {@link #timeToWork} to true and calling {@link Thread#start()}. */
+    public void start() {
+        timeToWork = true;
+        thread.start();
+    }
+
+    /**
+     * Stops thread from fetching by setting {@link #timeToWork} to false,
+     * but doesn't stop thread from running. An orange that is already being fetched is still handed off.
+     * (To stop thread from running, call {@link #waitToStop()})
+     */
+    public void stop() {
+        timeToWork = false;
+    }
+
+    /**
+     * Stops the fetcher right away by interrupting it. The orange it is holding isn't handed off.
+     * (To wait for the thread to finish, call {@link #waitToStop()})
+     */
+    public void halt() {
+        timeToWork = false;
+        halted = true;
+        thread.interrupt();
+    }
+
+    /**
+     * Runs this thread. While {@link #timeToWork} is true, the thread will repeatedly fetch a new {@link Orange}
+     * and distribute it to the {@link #giveQueue}, recording a {@link QueuePutEvent} for each hand off.
+     */
+    @Override
+    public void run() {
+        while (timeToWork) {
+            final Orange o = pool.acquire();
+            metrics.getStateTime(Orange.State.Fetched).record(System.nanoTime() - o.getFetchedNanos());
+            // Count the orange before handing it off, so no stage can count it before it's counted as provided
+            orangesProvided.increment();
+            final QueuePutEvent put = QueuePutEvent.isRecorded() ? new QueuePutEvent() : null;
+            if (put != null) {
+                put.begin();
+            }
+            final boolean distributed = distributeOrange(o);
+            if (!distributed) {
+                orangesProvided.decrement();
+            }
+            if (put != null && put.shouldCommit()) {
+                put.plant = plantName;
+                put.stage = QueuePutEvent.FETCH_STAGE;
+                put.oranges = distributed ? 1 : 0;
+                put.commit();
+            }
+        }
+    }
+
+    /**
+     * Offers an orange to the giveQueue. If full, it will keep waiting up to {@link #MAX_TIMEOUT_TIME_MILLIS}
+     * at a time until there is space or the fetcher is {@link #halt() halted}.
+     *
+     * @param o Orange to distribute
+     * @return {@code true} if the orange was distributed to the giveQueue, {@code false} otherwise.
+     */
+    private boolean distributeOrange(Orange o) {
+        // Make sure orange is in correct state (Fetched)
+        if (o.getState() != Orange.State.Fetched) {
+            System.err.println("Orange state supposed to be fetched, got '" + o.getState() + "' during distributing! Not adding to queue.");
+            return false;
+        }
+        try {
+            // Don't block forever on a full queue, the workers may have been halted
+            while (!halted) {
+                if (giveQueue.offer(o, MAX_TIMEOUT_TIME_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            if (!halted) {
+                System.err.println(Thread.currentThread().getName() + " interrupted when waiting to add orange to queue.");
+            }
+        }
+        return false;
+    }
+
+    /** Waits for thread to stop by calling {@link Thread#join()}. */
+    public void waitToStop() {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            System.err.println(thread.getName() + " stop malfunction");
+        }
+    }
+
+    /**
+     * Waits for thread to stop, but no longer than a timeout.
+     *
+     * @param timeoutNanos Longest time to wait, in nanoseconds. If not positive, the thread isn't waited for.
+     * @return {@code true} if the thread has stopped.
+     */
+    public boolean waitToStop(long timeoutNanos) {
+        try {
+            TimeUnit.NANOSECONDS.timedJoin(thread, timeoutNanos);
+        } catch (InterruptedException e) {
+            System.err.println(thread.getName() + " stop malfunction");
+        }
+        return !thread.isAlive();
+    }
+}
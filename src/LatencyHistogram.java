@@ -0,0 +1,193 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code LatencyHistogram} class counts how many recorded times fall in each of a fixed set of buckets, so
+ * percentiles can be read while threads keep recording. Recording doesn't lock, and every counter is a
+ * {@link LongAdder}, so threads recording at the same time update their own cells instead of fighting over one.
+ * A bucket's counter is only created the first time a time falls in it, as most buckets never get one, so after a
+ * short warm up recording doesn't allocate memory either.
+ *
+ * <p>Each power of two of nanoseconds is split into {@link #SUB_BUCKETS} buckets, so a percentile is never off by more
+ * than one eighth of its value, from nanoseconds up to hundreds of years.</p>
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+    /** Number of bits used to split each power of two into sub buckets. */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /** Number of buckets each power of two is split into. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Total number of buckets, enough for any positive long. */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /** Number of times recorded in each bucket, null for a bucket nothing was recorded in yet. */
+    private final AtomicReferenceArray<LongAdder> counts;
+
+    /** Number of times recorded. */
+    private final LongAdder count;
+
+    /** Sum of the times recorded, in nanoseconds. */
+    private final LongAdder totalNanos;
+
+    /** Longest time recorded, in nanoseconds. */
+    private final LongAccumulator maxNanos;
+
+    /** Creates a new, empty LatencyHistogram object. */
+    public LatencyHistogram() {
+        counts = new AtomicReferenceArray<>(BUCKETS);
+        count = new LongAdder();
+        totalNanos = new LongAdder();
+        maxNanos = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Records a time. Negative times are recorded as 0.
+     *
+     * @param nanos Time in nanoseconds.
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        bucket(bucketOf(value)).increment();
+        count.increment();
+        totalNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+
+    /**
+     * Gets the counter of a bucket, creating it if nothing was recorded in the bucket yet.
+     *
+     * @param bucket Index of the bucket.
+     * @return Counter of the bucket.
+     */
+    private LongAdder bucket(int bucket) {
+        final LongAdder c = counts.get(bucket);
+        if (c != null) {
+            return c;
+        }
+        // Another thread may create it first, then everyone uses that one
+        final LongAdder created = new LongAdder();
+        return counts.compareAndSet(bucket, null, created) ? created : counts.get(bucket);
+    }
+
+    /**
+     * Gets the number of times recorded in a bucket.
+     *
+     * @param bucket Index of the bucket.
+     * @return Number of times.
+     */
+    private long countIn(int bucket) {
+        final LongAdder c = counts.get(bucket);
+        return c == null ? 0 : c.sum();
+    }
+
+    /**
+     * Adds every time recorded in another histogram to this one, for example to combine the histograms of several
+     * plants.
+     *
+     * @param other Histogram to add.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            final long c = other.countIn(i);
+            if (c != 0) {
+                bucket(i).add(c);
+            }
+        }
+        count.add(other.count.sum());
+        totalNanos.add(other.totalNanos.sum());
+        maxNanos.accumulate(other.maxNanos.get());
+    }
+
+    /**
+     * Gets the bucket a time is counted in.
+     *
+     * @param value Time in nanoseconds, not negative.
+     * @return Index of the bucket.
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Gets the largest time counted in a bucket.
+     *
+     * @param bucket Index of the bucket.
+     * @return Largest time in nanoseconds.
+     */
+    private static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Gets a percentile of the times recorded.
+     *
+     * @param percentile Percentile to get, from 0 to 100.
+     * @return The percentile in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += countIn(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += countIn(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        final long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return getPercentileNanos(50) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return getPercentileNanos(99) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * Formats the median, 99th percentile and maximum.
+     *
+     * @return The times as "p50/p99/max" in milliseconds.
+     */
+    @Override
+    public String toString() {
+        return String.format("%.1f/%.1f/%.1f", getP50Millis(), getP99Millis(), getMaxMillis());
+    }
+}
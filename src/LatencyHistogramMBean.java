@@ -0,0 +1,39 @@
+/**
+ * JMX view of a {@link LatencyHistogram}. Times are in milliseconds.
+ */
+public interface LatencyHistogramMBean {
+    /**
+     * Gets the number of times recorded.
+     *
+     * @return Number of times recorded.
+     */
+    long getCount();
+
+    /**
+     * Gets the mean of the times recorded.
+     *
+     * @return Mean in milliseconds.
+     */
+    double getMeanMillis();
+
+    /**
+     * Gets the median of the times recorded.
+     *
+     * @return 50th percentile in milliseconds.
+     */
+    double getP50Millis();
+
+    /**
+     * Gets the 99th percentile of the times recorded.
+     *
+     * @return 99th percentile in milliseconds.
+     */
+    double getP99Millis();
+
+    /**
+     * Gets the longest time recorded.
+     *
+     * @return Maximum in milliseconds.
+     */
+    double getMaxMillis();
+}
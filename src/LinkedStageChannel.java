@@ -0,0 +1,58 @@
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code LinkedStageChannel} class is a {@link StageChannel} backed by a bounded {@link LinkedBlockingQueue}.
+ * It allocates a node for every orange and uses a lock for each end of the queue. {@link #drainTo(List, int)} takes a
+ * batch under one lock, but there is no way to add a batch, so {@link #offerAll(List, long, TimeUnit)} adds them one
+ * at a time.
+ */
+public class LinkedStageChannel implements StageChannel {
+    /** Queue holding the oranges. */
+    private final BlockingQueue<Orange> queue;
+
+    /** Maximum number of oranges in the queue. */
+    private final int capacity;
+
+    /**
+     * Creates a new LinkedStageChannel object.
+     *
+     * @param capacity Maximum number of oranges in the channel.
+     */
+    public LinkedStageChannel(int capacity) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(Orange o, long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.offer(o, timeout, unit);
+    }
+
+    @Override
+    public Orange poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
+    @Override
+    public Orange poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public int drainTo(List<Orange> to, int max) {
+        return queue.drainTo(to, max);
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
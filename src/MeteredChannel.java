@@ -0,0 +1,93 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code MeteredChannel} class wraps another {@link StageChannel} and records how long each orange waits in it,
+ * from the moment it is handed off until it is taken, in a {@link LatencyHistogram}. The
+ * {@link Orange#POISON_PILL poison pill} is shared by every thread, so it isn't stamped or recorded.
+ */
+public class MeteredChannel implements StageChannel {
+    /** Channel holding the oranges. */
+    private final StageChannel channel;
+
+    /** Time each orange waited in the channel. */
+    private final LatencyHistogram waitTimes;
+
+    /**
+     * Creates a new MeteredChannel object.
+     *
+     * @param channel   Channel holding the oranges.
+     * @param waitTimes Histogram to record the time each orange waited in.
+     */
+    public MeteredChannel(StageChannel channel, LatencyHistogram waitTimes) {
+        this.channel = channel;
+        this.waitTimes = waitTimes;
+    }
+
+    @Override
+    public boolean offer(Orange o, long timeout, TimeUnit unit) throws InterruptedException {
+        // Stamp before adding, once the orange is in the channel it belongs to whoever takes it
+        if (o != Orange.POISON_PILL) {
+            o.setHandoffNanos(System.nanoTime());
+        }
+        return channel.offer(o, timeout, unit);
+    }
+
+    @Override
+    public Orange poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return taken(channel.poll(timeout, unit));
+    }
+
+    @Override
+    public Orange poll() {
+        return taken(channel.poll());
+    }
+
+    /**
+     * Records how long an orange waited, if one was taken.
+     *
+     * @param o Orange taken, or null.
+     * @return The orange.
+     */
+    private Orange taken(Orange o) {
+        if (o != null && o != Orange.POISON_PILL) {
+            waitTimes.record(System.nanoTime() - o.getHandoffNanos());
+        }
+        return o;
+    }
+
+    @Override
+    public int drainTo(List<Orange> to, int max) {
+        final int taken = channel.drainTo(to, max);
+        final long now = System.nanoTime();
+        for (int i = to.size() - taken; i < to.size(); i++) {
+            final Orange o = to.get(i);
+            if (o != Orange.POISON_PILL) {
+                waitTimes.record(now - o.getHandoffNanos());
+            }
+        }
+        return taken;
+    }
+
+    @Override
+    public int offerAll(List<Orange> oranges, long timeout, TimeUnit unit) throws InterruptedException {
+        final long now = System.nanoTime();
+        for (int i = 0; i < oranges.size(); i++) {
+            final Orange o = oranges.get(i);
+            if (o != Orange.POISON_PILL) {
+                o.setHandoffNanos(now);
+            }
+        }
+        return channel.offerAll(oranges, timeout, unit);
+    }
+
+    @Override
+    public int size() {
+        return channel.size();
+    }
+
+    @Override
+    public int capacity() {
+        return channel.capacity();
+    }
+}
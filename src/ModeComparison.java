@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The {@code ModeComparison} class runs many {@link Plant plants} in one {@link ExecutionMode} and reports the
+ * throughput and memory use of the JVM. Run it once per mode, each in a fresh JVM, to compare the modes
+ * ({@code ant compare-modes} does this). Throughput only counts the bottles made while the plants were working, so
+ * the time they take to drain and stop doesn't favour either mode.
+ *
+ * <p>Usage: {@code java ModeComparison <platform|virtual> [plants] [seconds]}</p>
+ */
+public class ModeComparison {
+    /** Number of plants run if none is given. */
+    private static final int DEFAULT_PLANTS = 100;
+
+    /** Number of seconds the plants run for if none is given. */
+    private static final int DEFAULT_SECONDS = 5;
+
+    /** File the memory use of the JVM is read from, only exists on Linux. */
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+    /**
+     * Main method, starts the plants in the given mode, lets them work and prints the results.
+     *
+     * @param args Mode, and optionally the number of plants and seconds to run for.
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java ModeComparison <platform|virtual> [plants] [seconds]");
+            System.exit(1);
+        }
+        final ExecutionMode mode = ExecutionMode.valueOf(args[0].toUpperCase());
+        final int numPlants = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PLANTS;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+
+        final PlantConfig config = new PlantConfig().setExecutionMode(mode);
+        final Plant[] plants = new Plant[numPlants];
+        for (int i = 0; i < numPlants; i++) {
+            plants[i] = new Plant(i + 1, config);
+            plants[i].startPlant();
+        }
+
+        try {
+            Thread.sleep(seconds * 1000L);
+        } catch (InterruptedException e) {
+            System.err.println("Comparison malfunction");
+        }
+
+        // Sample memory while everyone is still working
+        final String rssWhileRunning = readStatus("VmRSS");
+        // Virtual threads have no OS thread of their own, so this counts the carriers and the JVM's own threads
+        final String osThreads = readStatus("Threads");
+
+        for (Plant p : plants) {
+            p.stopPlant();
+        }
+        for (Plant p : plants) {
+            p.waitToStop();
+        }
+
+        long workingNanos = 0;
+        long totalBottled = 0;
+        long totalProcessed = 0;
+        for (Plant p : plants) {
+            workingNanos = Math.max(workingNanos, p.getWorkingNanos());
+            totalBottled += p.getOrangesBottledAtStop();
+            totalProcessed += p.getOrangesProcessed();
+        }
+
+        System.out.println();
+        System.out.println("=".repeat(10) + "Mode " + mode + "=".repeat(10));
+        if (!mode.isSupported()) {
+            System.out.println("(not supported by Java " + Runtime.version() + ", ran on platform threads)");
+        }
+        System.out.println("Plants = " + numPlants + ", seconds = " + seconds);
+        System.out.println("Processed = " + totalProcessed + ", bottled = " + totalBottled);
+        System.out.printf("Bottles/s while working = %.1f%n", totalBottled / (workingNanos / 1e9));
+        System.out.println("OS threads while running = " + osThreads);
+        System.out.println("RSS while running = " + rssWhileRunning);
+        System.out.println("Peak RSS = " + readStatus("VmHWM"));
+    }
+
+    /**
+     * Reads a value from {@link #PROC_STATUS}.
+     *
+     * @param key Name of the value, such as VmRSS.
+     * @return The value, or "unknown" if it can't be read.
+     */
+    private static String readStatus(String key) {
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS)) {
+                if (line.startsWith(key + ":")) {
+                    return line.substring(key.length() + 1).trim();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't read " + PROC_STATUS);
+        }
+        return "unknown";
+    }
+}
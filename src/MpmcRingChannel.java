@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The {@code MpmcRingChannel} class is a {@link RingChannel} that any number of threads can add to and take from.
+ * Every slot has a sequence number that tells producers and consumers whose turn it is, and the positions are
+ * claimed with compare-and-set, so no locks are needed (a bounded queue as described by Dmitry Vyukov).
+ */
+public class MpmcRingChannel extends RingChannel {
+    /** Oranges in the channel, published by the volatile write to {@link #sequences}. */
+    private final Orange[] buffer;
+
+    /** Sequence number of each slot. A slot is free for position p when its sequence is p, full when it is p + 1. */
+    private final AtomicLongArray sequences;
+
+    /** Position of the next orange to take. */
+    private final AtomicLong head;
+
+    /** Position of the next orange to add. */
+    private final AtomicLong tail;
+
+    /**
+     * Creates a new MpmcRingChannel object.
+     *
+     * @param capacity     Maximum number of oranges in the channel.
+     * @param waitStrategy What a thread does while it waits for space or an orange.
+     */
+    public MpmcRingChannel(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        buffer = new Orange[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+    @Override
+    protected boolean tryOffer(Orange o) {
+        long pos = tail.get();
+        while (true) {
+            final int index = (int) (pos % capacity);
+            final long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                // Slot is free for this position, claim it
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer[index] = o;
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // Slot still holds an orange from the previous lap, channel is full
+                return false;
+            } else {
+                // Another producer claimed this position
+                pos = tail.get();
+            }
+        }
+    }
+
+    @Override
+    protected Orange tryPoll() {
+        long pos = head.get();
+        while (true) {
+            final int index = (int) (pos % capacity);
+            final long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                // Slot holds the orange for this position, claim it
+                if (head.compareAndSet(pos, pos + 1)) {
+                    final Orange o = buffer[index];
+                    buffer[index] = null;
+                    sequences.set(index, pos + capacity);
+                    return o;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                // Nothing has been added at this position yet, channel is empty
+                return null;
+            } else {
+                // Another consumer claimed this position
+                pos = head.get();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return sizeBetween(head.get(), tail.get());
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The {@code MpscRingChannel} class is a {@link RingChannel} that any number of threads can add to, but only one
+ * thread takes from. Producers claim positions like in {@link MpmcRingChannel}, the consumer owns the head so it
+ * never needs compare-and-set.
+ */
+public class MpscRingChannel extends RingChannel {
+    /** Oranges in the channel, published by the volatile write to {@link #sequences}. */
+    private final Orange[] buffer;
+
+    /** Sequence number of each slot. A slot is free for position p when its sequence is p, full when it is p + 1. */
+    private final AtomicLongArray sequences;
+
+    /** Position of the next orange to take, only written by the consumer. */
+    private final AtomicLong head;
+
+    /** Position of the next orange to add. */
+    private final AtomicLong tail;
+
+    /**
+     * Creates a new MpscRingChannel object.
+     *
+     * @param capacity     Maximum number of oranges in the channel.
+     * @param waitStrategy What a thread does while it waits for space or an orange.
+     */
+    public MpscRingChannel(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        buffer = new Orange[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+    @Override
+    protected boolean tryOffer(Orange o) {
+        long pos = tail.get();
+        while (true) {
+            final int index = (int) (pos % capacity);
+            final long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer[index] = o;
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    @Override
+    protected Orange tryPoll() {
+        final long pos = head.get();
+        final int index = (int) (pos % capacity);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        final Orange o = buffer[index];
+        buffer[index] = null;
+        sequences.set(index, pos + capacity);
+        head.lazySet(pos + 1);
+        return o;
+    }
+
+    @Override
+    public int size() {
+        return sizeBetween(head.get(), tail.get());
+    }
+}
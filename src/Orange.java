@@ -7,7 +7,14 @@
  * orange to the next {@link State} and simulates processing time using {@link #doWork()}.</p>
  *
  * <p>The {@link State} enum defines the different stages an orange can go through,
- * with each state having a predefined time required for completion.</p>
+ * with each state having a predefined time required for completion. An orange can also be given its own times, see
+ * {@link PlantConfig#setStateMillis(State, int)}.</p>
+ *
+ * <p>An orange that has been bottled can be {@link #recycle() fetched again} by an {@link OrangePool}, which starts
+ * it over in the {@link State#Fetched} state.</p>
+ *
+ * <p>An orange can be given a {@link #getDeadlineNanos() deadline}, its fetch time plus how long it stays fresh. An
+ * orange still in the plant after its deadline has gone off, see {@link PlantConfig#getFreshnessMillis()}.</p>
  */
 public class Orange {
     /**
@@ -29,8 +36,11 @@ public class Orange {
         /** Represents when orange is processed. */
         Processed(1);
 
+        /** Every state in {@link Enum#ordinal() ordinal} order, {@link #values()} makes a new copy on every call. */
+        private static final State[] VALUES = values();
+
         /** Final index of the enum. */
-        private static final int finalIndex = State.values().length - 1;
+        private static final int finalIndex = VALUES.length - 1;
 
         /** Time it takes to complete the state in milliseconds. */
         final int timeToComplete;
@@ -50,22 +60,173 @@ public class Orange {
             if (currIndex >= finalIndex) {
                 throw new IllegalStateException("Already at final state");
             }
-            return State.values()[currIndex + 1];
+            return VALUES[currIndex + 1];
         }
     }
 
+    /** Default {@link State#timeToComplete time} of each state, indexed by {@link Enum#ordinal() ordinal}. */
+    private static final int[] DEFAULT_STATE_MILLIS = defaultStateMillis();
+
+    /**
+     * Not a real orange. A {@link Plant} that is stopping puts one in a queue for each thread taking from it, behind
+     * the real oranges, to tell that thread there are no more oranges coming. Channels pass it on as it is, and it is
+     * never processed or counted.
+     */
+    static final Orange POISON_PILL = new Orange(0, DEFAULT_STATE_MILLIS);
+
+    /** Time it takes to complete each state in milliseconds, indexed by {@link Enum#ordinal() ordinal}. */
+    private final int[] stateMillis;
+
     /** Current {@link Orange.State state} of the orange. */
     private State state;
 
+    /** {@link System#nanoTime()} when the orange started being fetched. */
+    private long fetchedNanos;
+
+    /** {@link System#nanoTime()} when the orange was last handed off to a queue. */
+    private long handoffNanos;
+
+    /** {@link System#nanoTime()} the orange goes off at, {@link Long#MAX_VALUE} if it never does. */
+    private long deadlineNanos = Long.MAX_VALUE;
+
     /**
      * Creates a new orange object
      * Calls {@link #doWork()} to represent time it takes to fetch the orange.
      */
     public Orange() {
+        this(DEFAULT_STATE_MILLIS);
+    }
+
+    /**
+     * Creates a new orange whose states take the given times, and takes the time to fetch it.
+     *
+     * @param stateMillis Time it takes to complete each state in milliseconds, indexed by
+     *                    {@link Enum#ordinal() ordinal}. Not copied, so it shouldn't be changed afterwards.
+     */
+    Orange(int[] stateMillis) {
+        this.stateMillis = stateMillis;
+        fetchedNanos = System.nanoTime();
         state = State.Fetched;
         doWork();
     }
 
+    /**
+     * Creates a new orange that has already been fetched, without taking the time to fetch it. Used by the
+     * {@link Simulation}, which keeps its own clock and doesn't wait for the work to be done.
+     *
+     * @param fetchedNanos When the orange started being fetched, on the caller's clock.
+     * @param stateMillis  Time it takes to complete each state in milliseconds, indexed by
+     *                     {@link Enum#ordinal() ordinal}. Not copied, so it shouldn't be changed afterwards.
+     */
+    Orange(long fetchedNanos, int[] stateMillis) {
+        this.stateMillis = stateMillis;
+        this.fetchedNanos = fetchedNanos;
+        state = State.Fetched;
+    }
+
+    /**
+     * Creates an orange a plant had before it was restarted, already in the state it had reached, without taking the
+     * time of the states before it. See {@link PlantCheckpoint}.
+     *
+     * @param state       State the orange had reached.
+     * @param stateMillis Time it takes to complete each state in milliseconds, indexed by
+     *                    {@link Enum#ordinal() ordinal}. Not copied, so it shouldn't be changed afterwards.
+     */
+    Orange(State state, int[] stateMillis) {
+        this.stateMillis = stateMillis;
+        this.fetchedNanos = System.nanoTime();
+        this.state = state;
+    }
+
+    /**
+     * Gets the default {@link State#timeToComplete time} of each state.
+     *
+     * @return A new array of times in milliseconds, indexed by {@link Enum#ordinal() ordinal}.
+     */
+    static int[] defaultStateMillis() {
+        final int[] millis = new int[State.VALUES.length];
+        for (State s : State.VALUES) {
+            millis[s.ordinal()] = s.timeToComplete;
+        }
+        return millis;
+    }
+
+    /**
+     * Starts the orange over as if it was new, without taking the time to fetch it.
+     *
+     * @param fetchedNanos When the orange started being fetched again, on the caller's clock.
+     */
+    void reset(long fetchedNanos) {
+        this.fetchedNanos = fetchedNanos;
+        this.handoffNanos = 0;
+        this.deadlineNanos = Long.MAX_VALUE;
+        state = State.Fetched;
+    }
+
+    /**
+     * Fetches the orange again, like {@link #Orange()} does for a new one. Only oranges nobody else uses anymore
+     * may be recycled, see {@link OrangePool}.
+     */
+    void recycle() {
+        reset(System.nanoTime());
+        doWork();
+    }
+
+    /**
+     * Gets when the orange started being fetched.
+     *
+     * @return {@link System#nanoTime()} when the orange started being fetched.
+     */
+    public long getFetchedNanos() {
+        return fetchedNanos;
+    }
+
+    /**
+     * Gets when the orange was last handed off to a queue.
+     *
+     * @return {@link System#nanoTime()} of the last handoff.
+     */
+    long getHandoffNanos() {
+        return handoffNanos;
+    }
+
+    /**
+     * Sets when the orange was handed off to a queue. The queue publishes this to whoever takes the orange.
+     *
+     * @param handoffNanos {@link System#nanoTime()} of the handoff.
+     */
+    void setHandoffNanos(long handoffNanos) {
+        this.handoffNanos = handoffNanos;
+    }
+
+    /**
+     * Gets when the orange goes off, its fetch time plus how long it stays fresh.
+     *
+     * @return {@link System#nanoTime()} of the deadline, {@link Long#MAX_VALUE} if the orange never goes off.
+     */
+    public long getDeadlineNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * Sets when the orange goes off. Set by whoever fetches the orange, before it is handed off.
+     *
+     * @param deadlineNanos {@link System#nanoTime()} of the deadline, {@link Long#MAX_VALUE} if it never goes off.
+     */
+    void setDeadlineNanos(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Checks if the orange has gone off.
+     *
+     * @param nowNanos {@link System#nanoTime()} now.
+     * @return {@code true} if the deadline has passed.
+     */
+    boolean isExpired(long nowNanos) {
+        return deadlineNanos != Long.MAX_VALUE && nowNanos - deadlineNanos > 0;
+    }
+
     /**
      * Gets the current {@link Orange.State state} of the orange
      *
@@ -77,21 +238,34 @@ public class Orange {
 
     /** Gets next state of orange and then calls {@link #doWork()}. */
     public void runProcess() {
+        advance();
+        doWork();
+    }
+
+    /**
+     * Moves the orange to its next state without doing the work.
+     *
+     * @return Time the new state takes to complete, in milliseconds.
+     */
+    int advance() {
         // Don't attempt to process an already completed orange
         if (state == State.Processed) {
             throw new IllegalStateException("This orange has already been processed");
         }
         state = state.getNext();
-        doWork();
+        return stateMillis[state.ordinal()];
     }
 
-    /** Sleeps current thread for {@link Orange.State#timeToComplete} amount of time. */
+    /**
+     * Sleeps current thread for the time the current state takes to complete. If the thread is interrupted, the work
+     * is cut short and the thread is left interrupted, so the caller can tell whether that was expected.
+     */
     private void doWork() {
         // Sleep for the amount of time necessary to do the work
         try {
-            Thread.sleep(state.timeToComplete);
+            Thread.sleep(stateMillis[state.ordinal()]);
         } catch (InterruptedException e) {
-            System.err.println("Incomplete orange processing, juice may be bad");
+            Thread.currentThread().interrupt();
         }
     }
 }
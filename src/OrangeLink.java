@@ -0,0 +1,419 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code OrangeLink} class moves oranges between the stages of a {@link PlantNode} and the next node over TCP.
+ * One thread runs a non-blocking NIO {@link Selector} loop that takes oranges from the node's last queue and sends
+ * them downstream, and receives oranges from the node upstream and puts them in the node's first queue.
+ *
+ * <p>Oranges are sent in frames of up to {@link #MAX_BATCH} oranges: the length of the rest of the frame, the number
+ * of oranges, then for each orange a byte holding the ordinal of its {@link Orange.State} and the nanoseconds it has
+ * left before its {@link Orange#getDeadlineNanos() deadline}, {@link Long#MAX_VALUE} if it never goes off. The time
+ * left is sent rather than the deadline, as each JVM has its own {@link System#nanoTime()}. A frame with a count of
+ * {@link #END_OF_STREAM} tells the next node that no more oranges are coming. When the node's first queue is full,
+ * the link stops reading, so TCP makes the node upstream wait instead of oranges piling up in memory.</p>
+ */
+public class OrangeLink implements Runnable {
+    /** Largest number of oranges sent in one frame. */
+    static final int MAX_BATCH = 256;
+
+    /** Count of the frame that ends the stream. */
+    private static final int END_OF_STREAM = -1;
+
+    /** Size of the length and count at the start of each frame. */
+    private static final int HEADER_BYTES = Integer.BYTES + Integer.BYTES;
+
+    /** Size of each orange in a frame, its state and time left. */
+    private static final int ORANGE_BYTES = Byte.BYTES + Long.BYTES;
+
+    /** Longest the selector waits for the network before checking the queues again, in milliseconds. */
+    private static final long SELECT_MILLIS = 1;
+
+    /** States of oranges, indexed by the ordinals in frames. */
+    private static final Orange.State[] STATES = Orange.State.values();
+
+    /** Thread running the selector loop. */
+    private final Thread thread;
+
+    /** Selector of the link's channels. */
+    private final Selector selector;
+
+    /** Channel the node upstream connects to, or null if the node has no upstream node. */
+    private final ServerSocketChannel server;
+
+    /** Queue received oranges are put in, or null if the node has no upstream node. */
+    private final StageChannel inbound;
+
+    /** Channel to the node downstream, or null if the node has no downstream node. */
+    private final SocketChannel outChannel;
+
+    /** Queue oranges to send are taken from, or null if the node has no downstream node. */
+    private final StageChannel outbound;
+
+    /** Time it takes to complete each state of received oranges, indexed by {@link Enum#ordinal() ordinal}. */
+    private final int[] stateMillis;
+
+    /** Bytes received and not handed on yet, in write mode. */
+    private final ByteBuffer readBuffer;
+
+    /** Frame being sent, in read mode. */
+    private final ByteBuffer writeBuffer;
+
+    /** Oranges taken from the {@link #outbound} queue for the next frame. */
+    private final List<Orange> sending;
+
+    /** Channel from the node upstream, once it has connected. */
+    private SocketChannel inChannel;
+
+    /** Oranges of the first frame in the {@link #readBuffer} already put in the {@link #inbound} queue. */
+    private int delivered;
+
+    /** Orange received that the full {@link #inbound} queue hasn't taken yet, or null. */
+    private Orange pending;
+
+    /** If true, the node upstream has closed the connection, only what is left in the {@link #readBuffer} remains. */
+    private boolean inputClosed;
+
+    /** If true, the {@link #END_OF_STREAM} frame has been put in the {@link #writeBuffer}. */
+    private boolean endQueued;
+
+    /** When true, the link should keep moving oranges. */
+    private volatile boolean running;
+
+    /** When true, no more oranges are put in the {@link #outbound} queue, the stream ends once it is empty. */
+    private volatile boolean finishing;
+
+    /** If true, the node upstream has ended its stream or closed the connection. */
+    private volatile boolean inboundDone;
+
+    /** If true, the {@link #END_OF_STREAM} frame has been sent. */
+    private volatile boolean outboundDone;
+
+    /** Number of oranges sent downstream. Only written by the link's thread. */
+    private volatile long orangesSent;
+
+    /** Number of oranges received and put in the {@link #inbound} queue. Only written by the link's thread. */
+    private volatile long orangesReceived;
+
+    /**
+     * Creates a new OrangeLink object.
+     *
+     * @param nodeNum       Number of the node, used to name the link's thread.
+     * @param server        Channel the node upstream connects to, or null if there is none.
+     * @param inbound       Queue to put received oranges in, or null if there is no node upstream.
+     * @param outChannel    Connected channel to the node downstream, or null if there is none.
+     * @param outbound      Queue to take oranges to send from, or null if there is no node downstream.
+     * @param stateMillis   Time it takes to complete each state of received oranges, in milliseconds and indexed by
+     *                      {@link Enum#ordinal() ordinal}.
+     * @param threadFactory Factory used to create the link's thread.
+     * @throws IOException If the channels can't be registered with a selector.
+     */
+    public OrangeLink(int nodeNum, ServerSocketChannel server, StageChannel inbound, SocketChannel outChannel,
+                      StageChannel outbound, int[] stateMillis, ThreadFactory threadFactory) throws IOException {
+        this.server = server;
+        this.inbound = inbound;
+        this.outChannel = outChannel;
+        this.outbound = outbound;
+        this.stateMillis = stateMillis.clone();
+        this.readBuffer = ByteBuffer.allocate(4 * (HEADER_BYTES + MAX_BATCH * ORANGE_BYTES));
+        this.writeBuffer = ByteBuffer.allocate(HEADER_BYTES + MAX_BATCH * ORANGE_BYTES);
+        this.writeBuffer.flip();
+        this.sending = new ArrayList<>(MAX_BATCH);
+        this.selector = Selector.open();
+        if (server != null) {
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        if (outChannel != null) {
+            outChannel.configureBlocking(false);
+            outChannel.register(selector, 0);
+        }
+        this.inboundDone = server == null;
+        this.outboundDone = outChannel == null;
+        this.thread = ExecutionMode.newThread(threadFactory, this, "Link[" + nodeNum + "]");
+    }
+
+    /**
+     * Opens a channel for the node upstream to connect to, on every address of this machine.
+     *
+     * @param port Port to listen on, 0 for any free port.
+     * @return The listening channel.
+     * @throws IOException If the port can't be bound.
+     */
+    public static ServerSocketChannel listen(int port) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        return server;
+    }
+
+    /**
+     * Connects to the node downstream.
+     *
+     * @param address Address the node downstream {@link #listen(int) listens} on.
+     * @return The connected channel.
+     * @throws IOException If the connection fails.
+     */
+    public static SocketChannel connect(InetSocketAddress address) throws IOException {
+        final SocketChannel channel = SocketChannel.open(address);
+        // Frames are already batched, don't wait to batch them more
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        return channel;
+    }
+
+    /** Starts thread by setting {@link #running} to true and calling {@link Thread#start()}. */
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Tells the link no more oranges will be put in the outbound queue, so it ends the stream once the queue is
+     * empty. See {@link #isOutboundDone()}.
+     */
+    public void finish() {
+        finishing = true;
+    }
+
+    /**
+     * Runs this thread. While {@link #running} is true, the thread accepts the node upstream, hands on the oranges it
+     * sends and sends the oranges in the outbound queue.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(SELECT_MILLIS);
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    }
+                }
+                // Reads and writes are tried every pass, the selector only saves spinning while there is nothing to do
+                receive();
+                send();
+            }
+        } catch (IOException e) {
+            System.err.println(Thread.currentThread().getName() + " link failed: " + e.getMessage());
+        } finally {
+            inboundDone = true;
+            outboundDone = true;
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Accepts the node upstream. Only one node is accepted, the listening channel is closed afterwards.
+     *
+     * @throws IOException If the connection can't be accepted.
+     */
+    private void accept() throws IOException {
+        final SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        inChannel = channel;
+        inChannel.register(selector, SelectionKey.OP_READ);
+        server.close();
+    }
+
+    /**
+     * Reads what the node upstream has sent and puts the oranges in the inbound queue, as long as it has room.
+     *
+     * @throws IOException If reading fails, or a frame is malformed.
+     */
+    private void receive() throws IOException {
+        if (inChannel == null || inboundDone) {
+            return;
+        }
+        if (!inputClosed && inChannel.read(readBuffer) < 0) {
+            inputClosed = true;
+        }
+        readBuffer.flip();
+        boolean blocked = false;
+        while (!blocked && readBuffer.remaining() >= HEADER_BYTES) {
+            final int start = readBuffer.position();
+            final int length = readBuffer.getInt(start);
+            if (length < Integer.BYTES || length > readBuffer.capacity() - Integer.BYTES) {
+                throw new IOException("Malformed frame of " + length + " bytes");
+            }
+            if (readBuffer.remaining() < Integer.BYTES + length) {
+                break;
+            }
+            final int count = readBuffer.getInt(start + Integer.BYTES);
+            if (count == END_OF_STREAM) {
+                readBuffer.position(start + Integer.BYTES + length);
+                inboundDone = true;
+                break;
+            }
+            if (count < 0 || length != Integer.BYTES + count * ORANGE_BYTES) {
+                throw new IOException("Malformed frame of " + count + " oranges in " + length + " bytes");
+            }
+            final long now = System.nanoTime();
+            while (delivered < count) {
+                if (pending == null) {
+                    final int at = start + HEADER_BYTES + delivered * ORANGE_BYTES;
+                    final int state = readBuffer.get(at);
+                    if (state < 0 || state >= STATES.length) {
+                        throw new IOException("Malformed frame with state " + state);
+                    }
+                    pending = new Orange(STATES[state], stateMillis);
+                    final long left = readBuffer.getLong(at + Byte.BYTES);
+                    if (left != Long.MAX_VALUE) {
+                        pending.setDeadlineNanos(now + left);
+                    }
+                }
+                if (!offer(pending)) {
+                    blocked = true;
+                    break;
+                }
+                pending = null;
+                delivered++;
+                orangesReceived++;
+            }
+            if (!blocked) {
+                delivered = 0;
+                readBuffer.position(start + Integer.BYTES + length);
+            }
+        }
+        readBuffer.compact();
+        if (inputClosed && !blocked) {
+            // Closed without ending the stream, whatever is left is part of a frame that never came
+            inboundDone = true;
+            return;
+        }
+        // Stop reading while the queue is full, so the node upstream waits on TCP instead of the selector spinning
+        inChannel.keyFor(selector).interestOps(blocked ? 0 : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Puts an orange in the inbound queue without waiting.
+     *
+     * @param o Orange received.
+     * @return {@code true} if the queue took it.
+     */
+    private boolean offer(Orange o) {
+        try {
+            return inbound.offer(o, 0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Sends what is left of the current frame, or starts a new frame with the oranges in the outbound queue.
+     *
+     * @throws IOException If writing fails.
+     */
+    private void send() throws IOException {
+        if (outChannel == null || outboundDone) {
+            return;
+        }
+        if (!writeBuffer.hasRemaining()) {
+            if (endQueued) {
+                outboundDone = true;
+                return;
+            }
+            outbound.drainTo(sending, MAX_BATCH);
+            if (!sending.isEmpty()) {
+                writeBuffer.clear();
+                writeBuffer.putInt(Integer.BYTES + sending.size() * ORANGE_BYTES).putInt(sending.size());
+                final long now = System.nanoTime();
+                for (int i = 0; i < sending.size(); i++) {
+                    final Orange o = sending.get(i);
+                    final long deadline = o.getDeadlineNanos();
+                    writeBuffer.put((byte) o.getState().ordinal())
+                            .putLong(deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - now);
+                }
+                writeBuffer.flip();
+                orangesSent += sending.size();
+                sending.clear();
+            } else if (finishing && outbound.size() == 0) {
+                writeBuffer.clear();
+                writeBuffer.putInt(Integer.BYTES).putInt(END_OF_STREAM);
+                writeBuffer.flip();
+                endQueued = true;
+            } else {
+                return;
+            }
+        }
+        outChannel.write(writeBuffer);
+        outChannel.keyFor(selector).interestOps(writeBuffer.hasRemaining() ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /** Closes every channel of the link, ignoring errors. */
+    private void closeQuietly() {
+        for (Closeable c : new Closeable[]{inChannel, outChannel, server, selector}) {
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+
+    /** Stops the thread and waits for it, closing the connections. */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            System.err.println(thread.getName() + " stop malfunction");
+        }
+    }
+
+    /**
+     * Checks if the node upstream has sent every orange it will send.
+     *
+     * @return {@code true} once the stream from upstream has ended, or if there is no node upstream.
+     */
+    public boolean isInboundDone() {
+        return inboundDone;
+    }
+
+    /**
+     * Checks if the stream to the node downstream has ended, after {@link #finish()}.
+     *
+     * @return {@code true} once every orange has been sent, or if there is no node downstream.
+     */
+    public boolean isOutboundDone() {
+        return outboundDone;
+    }
+
+    /**
+     * Gets the number of oranges sent to the node downstream.
+     *
+     * @return Number of oranges sent.
+     */
+    public long getOrangesSent() {
+        return orangesSent;
+    }
+
+    /**
+     * Gets the number of oranges received from the node upstream and put in the inbound queue.
+     *
+     * @return Number of oranges received.
+     */
+    public long getOrangesReceived() {
+        return orangesReceived;
+    }
+}
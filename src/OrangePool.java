@@ -0,0 +1,126 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code OrangePool} class recycles oranges, so a plant that has been running for a while stops allocating them.
+ * {@link Fetcher Fetchers} {@link #acquire() acquire} oranges from the pool instead of creating them, and the
+ * {@link BottleAssembler} {@link #release(Orange) releases} each orange back once it has been counted into a bottle.
+ * A recycled orange starts over in {@link Orange.State#Fetched} and goes through the same states as a new one.
+ *
+ * <p>Free oranges are kept in an {@link MpmcRingChannel}, so acquiring and releasing is lock free and allocates
+ * nothing. If the pool is empty a new orange is created, if it is full a released orange is left to the garbage
+ * collector, so a pool that is too small only costs allocations. A pool with a capacity of 0 keeps nothing, and
+ * only creates oranges with the pool's {@link PlantConfig#getStateMillis(Orange.State) state times}.</p>
+ *
+ * <p>If the pool has a {@link PlantConfig#getFreshnessMillis() freshness}, every orange it hands out, new or reused,
+ * gets a {@link Orange#getDeadlineNanos() deadline} that long after it started being fetched.</p>
+ */
+public class OrangePool {
+    /** Oranges nobody is using, waiting to be fetched again, or null if the pool keeps nothing. */
+    private final MpmcRingChannel free;
+
+    /** Time it takes to complete each state of the oranges created, indexed by {@link Enum#ordinal() ordinal}. */
+    private final int[] stateMillis;
+
+    /** How long an orange stays fresh in nanoseconds, or 0 if oranges never go off. */
+    private final long freshnessNanos;
+
+    /** How much the freshness of each orange differs from {@link #freshnessNanos}, either way, in nanoseconds. */
+    private final long freshnessSpreadNanos;
+
+    /** Number of oranges created because the pool was empty. */
+    private final LongAdder orangesCreated;
+
+    /** Number of oranges taken from the pool and fetched again. */
+    private final LongAdder orangesReused;
+
+    /**
+     * Creates a new, empty OrangePool object.
+     *
+     * @param capacity    Maximum number of free oranges kept, 0 to create a new orange every time.
+     * @param stateMillis Time it takes to complete each state of the oranges created, in milliseconds and indexed by
+     *                    {@link Enum#ordinal() ordinal}.
+     */
+    public OrangePool(int capacity, int[] stateMillis) {
+        this(capacity, stateMillis, 0, 0);
+    }
+
+    /**
+     * Creates a new, empty OrangePool object whose oranges go off.
+     *
+     * @param capacity              Maximum number of free oranges kept, 0 to create a new orange every time.
+     * @param stateMillis           Time it takes to complete each state of the oranges created, in milliseconds and
+     *                              indexed by {@link Enum#ordinal() ordinal}.
+     * @param freshnessMillis       How long an orange stays fresh in milliseconds, 0 if oranges never go off.
+     * @param freshnessSpreadMillis How much the freshness of each orange differs, either way, in milliseconds.
+     */
+    public OrangePool(int capacity, int[] stateMillis, long freshnessMillis, long freshnessSpreadMillis) {
+        this.free = capacity > 0 ? new MpmcRingChannel(capacity, WaitStrategy.PARK) : null;
+        this.stateMillis = stateMillis.clone();
+        this.freshnessNanos = TimeUnit.MILLISECONDS.toNanos(freshnessMillis);
+        this.freshnessSpreadNanos = TimeUnit.MILLISECONDS.toNanos(freshnessSpreadMillis);
+        this.orangesCreated = new LongAdder();
+        this.orangesReused = new LongAdder();
+    }
+
+    /**
+     * Fetches an orange, reusing a released one if there is one. Takes as long as fetching a new orange.
+     *
+     * @return An orange in the {@link Orange.State#Fetched} state.
+     */
+    public Orange acquire() {
+        Orange o = free != null ? free.tryPoll() : null;
+        if (o == null) {
+            orangesCreated.increment();
+            o = new Orange(stateMillis);
+        } else {
+            orangesReused.increment();
+            o.recycle();
+        }
+        if (freshnessNanos > 0) {
+            o.setDeadlineNanos(o.getFetchedNanos() + freshness());
+        }
+        return o;
+    }
+
+    /**
+     * Picks how long an orange stays fresh, within the spread of the pool's freshness.
+     *
+     * @return Freshness in nanoseconds, at least a millisecond.
+     */
+    private long freshness() {
+        final long spread = freshnessSpreadNanos > 0
+                ? ThreadLocalRandom.current().nextLong(-freshnessSpreadNanos, freshnessSpreadNanos + 1) : 0;
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(1), freshnessNanos + spread);
+    }
+
+    /**
+     * Gives back an orange nobody uses anymore. The caller must not touch the orange afterwards.
+     *
+     * @param o Orange to give back.
+     */
+    public void release(Orange o) {
+        if (free != null) {
+            free.tryOffer(o);
+        }
+    }
+
+    /**
+     * Gets the number of oranges created because the pool was empty.
+     *
+     * @return Number of oranges created.
+     */
+    public long getOrangesCreated() {
+        return orangesCreated.sum();
+    }
+
+    /**
+     * Gets the number of oranges taken from the pool and fetched again.
+     *
+     * @return Number of oranges reused.
+     */
+    public long getOrangesReused() {
+        return orangesReused.sum();
+    }
+}
@@ -0,0 +1,52 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The {@code OrangeStageEvent} class is a JDK Flight Recorder event for one orange going through one {@link Stage}:
+ * it lasts from the moment a {@link Worker} starts on the orange until the stage's job is done. The worker's thread is
+ * the event's thread. Workers only create the event while a recording takes it, so it costs a field read otherwise,
+ * see {@link RecordingAnalyzer}.
+ */
+@Name(OrangeStageEvent.NAME)
+@Label("Orange Stage")
+@Category({"Juice Bottler", "Oranges"})
+@Description("A worker doing the job of a stage on one orange")
+@StackTrace(false)
+public class OrangeStageEvent extends Event {
+    /** Name of the event in a recording. */
+    public static final String NAME = "JuiceBottler.OrangeStage";
+
+    /** Type of the event, looked up once so checking if it is recorded costs a field read. */
+    private static final EventType TYPE = EventType.getEventType(OrangeStageEvent.class);
+
+    /** Name of the plant of the worker. */
+    @Label("Plant")
+    String plant;
+
+    /** Name of the stage whose job was done. */
+    @Label("Stage")
+    String stage;
+
+    /** State the orange was left in. */
+    @Label("State")
+    String state;
+
+    /** True if the orange was stolen from the same stage of another plant. */
+    @Label("Stolen")
+    boolean stolen;
+
+    /**
+     * Checks if a running recording takes this event, so callers only create one when it is. An event is an
+     * object like any other, and creating one per orange would undo the {@link OrangePool pooling}.
+     *
+     * @return {@code true} if the event is enabled.
+     */
+    static boolean isRecorded() {
+        return TYPE.isEnabled();
+    }
+}
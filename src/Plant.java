@@ -1,5 +1,12 @@
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The {@code Plant} class represents a processing plant in which workers bottle oranges. Using several threads and different queues,
@@ -7,63 +14,59 @@ import java.util.concurrent.LinkedBlockingQueue;
  * <br> 1. Peel oranges <br>
  * 2. Squeeze oranges <br>
  * 3. Bottle oranges <br>
- * The workers receive and pass on oranges using {@link LinkedBlockingQueue}.
+ * The workers receive and pass on oranges using {@link StageChannel stage channels}, which are
+ * {@link LinkedStageChannel linked} by default or lock free {@link RingChannel rings}. New oranges are fetched by several
+ * {@link Fetcher} objects, and each queue is a {@link ValidatingChannel} that takes oranges in the wrong state
+ * off the line as they are handed off, so the plant thread itself only coordinates. Finished
+ * oranges are counted into bottles by a {@link BottleAssembler} as they arrive. Workers start in a fixed
+ * {@link Stage}, but a {@link WorkerRebalancer} may move them to whichever stage is backed up.
+ * Neighbouring stages can be fused into one, whose workers carry an orange through every step of it without a
+ * queue in between, see {@link PlantConfig#getHandoffStates()}.
+ * With {@link #enableWorkStealing(Plant[]) work stealing}, idle workers also help the same stage of other plants.
+ * Queue waits, stage times and utilisation are recorded in the plant's {@link PlantMetrics}.
+ * A stopped plant first finishes the oranges it already has, stage by stage, see {@link #waitToStop()}.
+ * With a {@link PlantConfig#getCheckpointDir() checkpoint directory}, the plant writes a {@link PlantCheckpoint}
+ * every so often, and a plant that {@link PlantConfig#isResume() resumes} starts from the last one.
+ * With a {@link PlantConfig#getFreshnessMillis() freshness}, every orange has a deadline, oranges that go off are
+ * thrown away before more work is spent on them, and the plant counts how many missed their deadline.
+ * All threads of a plant are created with the {@link ThreadFactory} of an {@link ExecutionMode}, or one given to
+ * the plant.
  */
 public class Plant implements Runnable {
-    /** How long do we want to run the juice processing. */
-    private static final long PROCESSING_TIME = 5 * 1000;
-
-    /** Number of oranges put in each bottle. */
-    private static final int ORANGES_PER_BOTTLE = 3;
-
-    /** Number of plants that will be running. */
-    private static final int NUM_PLANTS = 2;
-
-    /** Number of workers who will peel oranges. */
-    private static final int NUM_PEELERS = 6;
-
-    /** Number of workers who will squeeze oranges. */
-    private static final int NUM_SQUEEZERS = 4;
-
-    /** Number of workers who will bottle oranges. */
-    private static final int NUM_BOTTLERS = 3;
-
-    /** Total number of workers working in each plant. */
-    private static final int TOTAL_WORKERS = NUM_PEELERS + NUM_SQUEEZERS + NUM_BOTTLERS;
-
     /**
      * Main method, creates plants and starts them, the gives them time to work before stopping them and gathering data.
      *
-     * @param args arguments provided.
+     * @param args Settings of the plants, see {@link PlantConfig#fromArgs(String[])}, for example
+     *             {@code --numPlants=3 --config=plant.properties}.
      */
     public static void main(String[] args) {
-        // Startup the plants
-        final Plant[] plants = new Plant[NUM_PLANTS];
-        for (int i = 0; i < NUM_PLANTS; i++) {
-            plants[i] = new Plant(i + 1);
-            plants[i].startPlant();
-        }
-
-        // Give the plants time to do work
-        delay(PROCESSING_TIME, "Plant malfunction");
-
-        // Stop the plant, and waits for it to shut down
-        for (Plant p : plants) {
-            p.stopPlant();
+        final PlantConfig config;
+        try {
+            config = PlantConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
         }
 
-        for (Plant p : plants) {
-            p.waitToStop();
-        }
+        final Plant[] plants = runPlants(config);
 
         // Summarize the results
-        int totalProvided = 0;
+        long totalProvided = 0;
         int totalBottled = 0;
         int totalProcessed = 0;
-        int totalWasted = 0;
+        long totalWasted = 0;
         int totalLeftInQueue = 0;
         int totalNotBottled = 0;
-        int totalRemoved = 0;
+        long totalRemoved = 0;
+        long totalExpired = 0;
+        long totalDropped = 0;
+        int totalLate = 0;
+        long totalStolen = 0;
+        long totalReused = 0;
+        int totalSaved = 0;
+        long longestDrainMillis = 0;
+        int timedOut = 0;
         for (Plant p : plants) {
             totalProvided += p.getOrangesProvided();
             totalProcessed += p.getOrangesProcessed();
@@ -72,6 +75,14 @@ public class Plant implements Runnable {
             totalLeftInQueue += p.getOrangesLeftInQueue();
             totalNotBottled += p.getOrangesNotBottled();
             totalRemoved += p.getOrangesRemovedFromQueues();
+            totalExpired += p.getOrangesExpired();
+            totalDropped += p.getOrangesDropped();
+            totalLate += p.getOrangesLate();
+            totalStolen += p.getOrangesStolen();
+            totalReused += p.getOrangesReused();
+            totalSaved += p.getOrangesSaved();
+            longestDrainMillis = Math.max(longestDrainMillis, p.getDrainMillis());
+            timedOut += p.isDrainTimedOut() ? 1 : 0;
         }
         System.out.println();
         System.out.println("=".repeat(10) + "Results" + "=".repeat(10));
@@ -79,10 +90,62 @@ public class Plant implements Runnable {
         System.out.println("Total left in queues = " + totalLeftInQueue);
         System.out.println("Total leftover after bottling oranges = " + totalNotBottled);
         System.out.println("Total removed from queues = " + totalRemoved);
+        if (totalDropped > 0) {
+            System.out.println("Total dropped by halted workers = " + totalDropped);
+        }
+        if (config.getFreshnessMillis() > 0) {
+            System.out.println("Total deadline misses = " + (totalExpired + totalLate) + "/"
+                    + (totalProcessed + totalExpired) + " (" + totalExpired + " thrown away, " + totalLate
+                    + " bottled late)");
+        }
+        if (config.isWorkStealing()) {
+            System.out.println("Total stolen between plants = " + totalStolen);
+        }
+        if (config.getOrangePoolSize() > 0) {
+            System.out.println("Total oranges reused = " + totalReused);
+        }
+        if (config.getDrainDeadlineMillis() > 0) {
+            System.out.println("Total saved by draining = " + totalSaved + " (longest drain " + longestDrainMillis
+                    + " ms, " + timedOut + " plants hit the deadline)");
+        }
         System.out.println("Created " + totalBottled +
                 ", wasted " + totalWasted + " oranges");
     }
 
+    /**
+     * Creates {@link PlantConfig#getNumPlants()} plants and starts them, gives them
+     * {@link PlantConfig#getProcessingTimeMillis()} to work, then stops them and waits for them to shut down.
+     *
+     * @param config Settings of the plants.
+     * @return The stopped plants.
+     */
+    public static Plant[] runPlants(PlantConfig config) {
+        // Startup the plants
+        final Plant[] plants = new Plant[config.getNumPlants()];
+        for (int i = 0; i < plants.length; i++) {
+            plants[i] = new Plant(i + 1, config);
+        }
+        if (config.isWorkStealing()) {
+            enableWorkStealing(plants);
+        }
+        for (Plant p : plants) {
+            p.startPlant();
+        }
+
+        // Give the plants time to do work
+        delay(config.getProcessingTimeMillis(), "Plant malfunction");
+
+        // Stop the plant, and waits for it to shut down
+        for (Plant p : plants) {
+            p.stopPlant();
+        }
+
+        for (Plant p : plants) {
+            p.waitToStop();
+        }
+        return plants;
+    }
+
     /**
      * Gives the other plants time to do work by making this thread sleep for given time
      *
@@ -98,92 +161,261 @@ public class Plant implements Runnable {
         }
     }
 
+    /** Max amount of time the plant thread waits at a time to hand a resumed orange back to its queue. */
+    private static final int MAX_RESUME_WAIT_MILLIS = 100;
+
+    /** How long to wait between checks for oranges stolen from a draining stage to be handed back. */
+    private static final long STEAL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /** Settings this plant was built with. */
+    private final PlantConfig config;
+
+    /** Number of this plant. */
+    private final int plantNum;
+
+    /** Instrumentation of this plant. */
+    private final PlantMetrics metrics;
+
     /** Thread for plant. */
     private final Thread thread;
 
-    /** Keeps track of oranges provided to the workers. */
-    private int orangesProvided;
-
-    /** Keeps track of how many oranges were removed from queues because they were put in the wrong one. */
-    private int orangesRemovedFromQueues;
+    /** Keeps track of oranges provided to the workers, updated by every {@link Fetcher}. */
+    private final LongAdder orangesProvided;
 
     /** If true, then plant should be working. */
     private volatile boolean timeToWork;
 
-    /** Queue that holds oranges in peel state. */
-    private final BlockingQueue<Orange> peelQueue;
+    /**
+     * Queues between the threads of the plant, in pipeline order. The first holds fetched oranges waiting to be
+     * peeled, the last holds fully processed oranges until the {@link #assembler} bottles them. There is a queue in
+     * between for every pair of stages that isn't {@link PlantConfig#getHandoffStates() fused}.
+     */
+    private final ValidatingChannel[] queues;
+
+    /** Stages of this plant, in pipeline order. */
+    private final Stage[] stages;
+
+    /** Names of the {@link #stages}, shared by every {@link PlantSnapshot snapshot} of this plant. */
+    private final String[] stageNames;
+
+    /** Rates of the last interval the plant thread took a snapshot for, or null if it hasn't yet. */
+    private volatile PlantRates rates;
 
-    /** Queue that holds oranges in squeeze state. */
-    private final BlockingQueue<Orange> squeezeQueue;
+    /** File the plant writes its checkpoints to, or null if the config has no checkpoint directory. */
+    private CheckpointFile checkpointFile;
 
-    /** Queue that holds oranges in bottle state. */
-    private final BlockingQueue<Orange> bottleQueue;
+    /**
+     * Oranges the plant had in each queue when its checkpoint was taken, which the plant thread hands back to the
+     * queues once the plant starts. Counts down as they are handed back.
+     */
+    private final long[] toResume;
 
-    /** Queue that holds oranges that are fully processed. */
-    private final BlockingQueue<Orange> doneQueue;
+    /** Moves workers between {@link #stages}, or null if the config doesn't rebalance workers. */
+    private final WorkerRebalancer rebalancer;
 
     /** Array of workers who 'work' in this plant. */
     private final Worker[] workers;
 
+    /** Array of fetchers who fetch oranges for this plant. */
+    private final Fetcher[] fetchers;
+
+    /** Creates the oranges of this plant, and recycles them if the config has an orange pool. */
+    private final OrangePool pool;
+
+    /** Groups fully processed oranges into bottles. */
+    private final BottleAssembler assembler;
+
+    /** {@link System#nanoTime()} when the plant was started. */
+    private long startNanos;
+
+    /** {@link System#nanoTime()} when the plant was stopped. */
+    private long stopNanos;
+
+    /** Full bottles the {@link #assembler} had made when the plant was stopped. */
+    private int bottlesAtStop;
+
+    /** Oranges the {@link #assembler} had consumed when the plant was stopped. */
+    private int processedAtStop;
+
+    /** How long the plant took to stop, in milliseconds, set once it has. */
+    private long drainMillis;
+
+    /** If true, the plant didn't finish its oranges before the drain deadline. */
+    private boolean drainTimedOut;
+
     /**
-     * Creates a new Plant object.
+     * Creates a new Plant object with the default {@link PlantConfig settings}.
      *
      * @param threadNum Number of this thread
      */
     public Plant(int threadNum) {
-        peelQueue = new LinkedBlockingQueue<>(10);
-        squeezeQueue = new LinkedBlockingQueue<>(10);
-        bottleQueue = new LinkedBlockingQueue<>(10);
-        doneQueue = new LinkedBlockingQueue<>();
+        this(threadNum, new PlantConfig());
+    }
+
+    /**
+     * Creates a new Plant object, whose threads are created by the config's {@link ExecutionMode}.
+     *
+     * @param threadNum Number of this thread
+     * @param config    Settings to build the plant with.
+     */
+    public Plant(int threadNum, PlantConfig config) {
+        this(threadNum, config, config.getExecutionMode().threadFactory());
+    }
+
+    /**
+     * Creates a new Plant object.
+     *
+     * @param threadNum     Number of this thread
+     * @param config        Settings to build the plant with.
+     * @param threadFactory Factory used to create the threads of the plant and everyone working in it.
+     */
+    public Plant(int threadNum, PlantConfig config, ThreadFactory threadFactory) {
+        this.config = config;
+        this.plantNum = threadNum;
+        this.metrics = new PlantMetrics();
+        final ChannelType channelType = config.getChannelType();
+        final int capacity = config.getQueueCapacity();
+        final WaitStrategy waitStrategy = config.getWaitStrategy();
+
+        // Oranges are handed off in these states, every pair of neighbouring states is a stage.
+        // A fused stage does several steps and gets the workers of all of them.
+        final Orange.State[] handoffStates = config.getHandoffStates();
+        final int numStages = handoffStates.length - 1;
+        final int[] stageWorkers = new int[numStages];
+        stageNames = new String[numStages];
+        for (int s = 0; s < numStages; s++) {
+            stageWorkers[s] = stageWorkers(config, handoffStates, s);
+            stageNames[s] = stageName(handoffStates, s);
+        }
 
-        thread = new Thread(this, "Plant[" + threadNum + "]");
+        // A queue only has a single thread on one side if the worker count of that side can't change
+        // and no worker of another plant can steal from it. The plant thread hands resumed oranges back to every
+        // queue while the fetchers and workers are already adding to them, so then no queue has a single producer.
+        final boolean fixedWorkers = !config.isRebalanceWorkers() && !config.isWorkStealing();
+        final boolean resuming = config.isResume() && !config.getCheckpointDir().isEmpty();
+        queues = new ValidatingChannel[handoffStates.length];
+        for (int q = 0; q < queues.length; q++) {
+            final boolean singleProducer = !resuming
+                    && (q == 0 ? config.getNumFetchers() == 1 : fixedWorkers && stageWorkers[q - 1] == 1);
+            // Only the assembler takes from the done queue
+            final boolean singleConsumer = q == numStages || fixedWorkers && stageWorkers[q] == 1;
+            StageChannel channel = channelType.create(capacity, singleProducer, singleConsumer, waitStrategy);
+            final LatencyHistogram waits = metrics.getQueueWait(handoffStates[q]);
+            if (waits != null) {
+                channel = new MeteredChannel(channel, waits);
+            }
+            queues[q] = new ValidatingChannel(channel, handoffStates[q], (q == numStages ? "done" : stageNames[q]) + " queue");
+        }
 
-        workers = new Worker[TOTAL_WORKERS];
+        thread = ExecutionMode.newThread(threadFactory, this, "Plant[" + threadNum + "]");
 
-        orangesProvided = 0;
-        orangesRemovedFromQueues = 0;
+        workers = new Worker[config.getTotalWorkers()];
 
-        // Create given amount of each worker and add them to the workers array
-        int ind = 0;
-        for (int i = 0; i < NUM_PEELERS; i++) {
-            workers[ind] = new Worker(threadNum, ind + 1, peelQueue, squeezeQueue, Orange.State.Peeled);
-            ind++;
+        final int[] stateMillis = config.getStateMillis();
+        pool = new OrangePool(config.getOrangePoolSize(), stateMillis, config.getFreshnessMillis(),
+                config.getFreshnessSpreadMillis());
+
+        assembler = new BottleAssembler(threadNum, queues[numStages], config.getOrangesPerBottle(), metrics, pool,
+                threadFactory);
+
+        orangesProvided = new LongAdder();
+
+        fetchers = new Fetcher[config.getNumFetchers()];
+        for (int i = 0; i < fetchers.length; i++) {
+            fetchers[i] = new Fetcher(threadNum, i + 1, queues[0], orangesProvided, metrics, pool,
+                    threadFactory);
         }
 
-        for (int i = 0; i < NUM_SQUEEZERS; i++) {
-            workers[ind] = new Worker(threadNum, ind + 1, squeezeQueue, bottleQueue, Orange.State.Squeezed);
-            ind++;
+        stages = new Stage[numStages];
+        for (int s = 0; s < numStages; s++) {
+            // A fused stage takes its batch size from its first step
+            final Orange.State firstStep = Orange.State.values()[handoffStates[s].ordinal() + 1];
+            stages[s] = new Stage(stageNames[s], queues[s], queues[s + 1], handoffStates[s], handoffStates[s + 1],
+                    stateMillis, config.getBatchSize(firstStep), config.getBatchLingerMillis());
+            stages[s].setDropExpired(config.isDropExpired());
         }
+        metrics.setStages(stages);
 
-        for (int i = 0; i < NUM_BOTTLERS; i++) {
-            workers[ind] = new Worker(threadNum, ind + 1, bottleQueue, doneQueue, Orange.State.Bottled);
-            ind++;
+        toResume = new long[queues.length];
+        if (!config.getCheckpointDir().isEmpty()) {
+            final Path path = Paths.get(config.getCheckpointDir(), "plant-" + threadNum + ".ckpt");
+            if (config.isResume()) {
+                resume(path, handoffStates);
+            }
+            try {
+                checkpointFile = new CheckpointFile(path);
+            } catch (IOException e) {
+                System.err.println(thread.getName() + " can't write checkpoints to " + path + ": " + e.getMessage());
+            }
+        }
+
+        // Create given amount of each worker and add them to the workers array
+        int ind = 0;
+        for (int s = 0; s < numStages; s++) {
+            for (int i = 0; i < stageWorkers[s]; i++) {
+                workers[ind] = new Worker(threadNum, ind + 1, stages[s], metrics, threadFactory);
+                ind++;
+            }
         }
+
+        // Workers can only be moved if there is more than one stage
+        rebalancer = config.isRebalanceWorkers() && numStages > 1 ? new WorkerRebalancer(stages, workers) : null;
     }
 
     /** Sets timeToWork to true, starts thread. */
     public void startPlant() {
+        if (config.isJmxEnabled()) {
+            metrics.register(plantNum);
+        }
         timeToWork = true;
+        startNanos = System.nanoTime();
         thread.start();
 
-        // Start the workers too
+        // Start the assembler and workers too
+        assembler.start();
         for (Worker w : workers) {
             w.start();
         }
+
+        // Start fetching once the workers are ready
+        for (Fetcher f : fetchers) {
+            f.start();
+        }
     }
 
-    /** Sets timeToWork to false. */
+    /**
+     * Sets timeToWork to false and stops fetching new oranges. Everyone else keeps working on the oranges the plant
+     * already has, until {@link #waitToStop()} stops them.
+     */
     public void stopPlant() {
         timeToWork = false;
+        stopNanos = System.nanoTime();
+        processedAtStop = assembler.getOrangesProcessed();
+        bottlesAtStop = assembler.getBottles();
 
-        // Stop the workers too
-        for (Worker w : workers) {
-            w.stop();
+        // Wake the plant thread, so it stops moving workers
+        thread.interrupt();
+
+        // Stop fetching new oranges, the oranges already being fetched are still handed off
+        for (Fetcher f : fetchers) {
+            f.stop();
         }
     }
 
     /**
-     * Waits for thread to stop. Calls waitToStop on each worker before waiting to stop itself. <br>
+     * Waits for thread to stop, and stops everyone working in the plant. Stopping goes through three phases:
+     * <ol>
+     *     <li>Stop intake: the {@link Fetcher fetchers} hand off the oranges they are holding and finish.</li>
+     *     <li>Drain: stage by stage in pipeline order, once nothing more can arrive in a stage's take queue, an
+     *     {@link Orange#POISON_PILL poison pill} is put in it for each worker of the stage, behind the last orange.
+     *     Each worker finishes when it takes one, so every orange in the queue is processed first. Last, a pill tells
+     *     the assembler to finish.</li>
+     *     <li>Hard deadline: if that isn't done {@link PlantConfig#getDrainDeadlineMillis()} after the plant was
+     *     stopped, everyone still working is interrupted, and what they hold is wasted. With a deadline of 0 this
+     *     happens right away.</li>
+     * </ol>
+     * Nobody waits on a timeout to notice it should stop, so how long stopping takes depends on the oranges left,
+     * not on how long threads wait on their queues. <br>
      * From <a href="https://stackoverflow.com/questions/53405013/how-does-thread-join-work-conceptually">stack overflow</a> : <br>
      * The classic implementation of Thread.join is to lock
      * the Thread object, test to see if is alive and
@@ -191,95 +423,452 @@ public class Plant implements Runnable {
      * it locks its instance and calls notifyAll.
      */
     public void waitToStop() {
-        for (Worker w : workers) {
-            w.waitToStop();
-        }
-
+        // The plant thread is the only one moving workers, once it is done every worker stays in its stage
         try {
             thread.join();
         } catch (InterruptedException e) {
             System.err.println(thread.getName() + " stop malfunction");
         }
+
+        final long deadlineMillis = config.getDrainDeadlineMillis();
+        final boolean drained = deadlineMillis > 0 && drain(stopNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMillis));
+        if (!drained) {
+            drainTimedOut = deadlineMillis > 0;
+            for (Fetcher f : fetchers) {
+                f.halt();
+            }
+            for (Worker w : workers) {
+                w.halt();
+            }
+            for (Fetcher f : fetchers) {
+                f.waitToStop();
+            }
+            for (Worker w : workers) {
+                w.waitToStop();
+            }
+
+            // The bottlers are done, so the assembler can finish what they handed off
+            assembler.stop();
+        }
+        assembler.waitToStop();
+        if (!drained) {
+            // Only once the assembler is done, anything put back in the done queue after it looked is never bottled
+            removePills(queues);
+        }
+        drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopNanos);
+        metrics.unregister();
+
+        // Everyone has stopped, so whatever is left is exactly what the next run has to pick up
+        if (checkpointFile != null) {
+            checkpointFile.write(checkpoint());
+            try {
+                checkpointFile.close();
+            } catch (IOException e) {
+                System.err.println(thread.getName() + " can't close checkpoint file: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts the plant from the last checkpoint in a file: the counters carry on from where they were, and the
+     * oranges the plant had are handed back to their queues by the plant thread. Has to be called before the plant
+     * is started. If there is no usable checkpoint, the plant starts empty.
+     *
+     * @param path          Path of the checkpoint file.
+     * @param handoffStates State of the oranges in each queue of this plant.
+     */
+    private void resume(Path path, Orange.State[] handoffStates) {
+        final PlantCheckpoint checkpoint;
+        try {
+            checkpoint = CheckpointFile.readLatest(path);
+            if (checkpoint == null) {
+                return;
+            }
+            checkpoint.checkCompatible(handoffStates);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(thread.getName() + " can't resume from " + path + ": " + e.getMessage());
+            return;
+        }
+        orangesProvided.add(checkpoint.getProvided());
+        for (int s = 0; s < stages.length; s++) {
+            stages[s].addOrangesCompleted(checkpoint.getCompleted(s));
+            stages[s].addOrangesExpired(checkpoint.getExpired(s));
+            stages[s].addOrangesDropped(checkpoint.getDropped(s));
+        }
+        for (int q = 0; q < queues.length; q++) {
+            queues[q].restoreOrangesRemoved(checkpoint.getRemoved(q));
+            toResume[q] = checkpoint.getOranges(q);
+        }
+        assembler.restore(checkpoint.getProcessed(), checkpoint.getLate());
+        System.out.println(thread.getName() + " Resuming with " + checkpoint.getOrangesInFlight()
+                + " oranges and " + checkpoint.getProcessed() + " processed");
+    }
+
+    /**
+     * Hands the oranges the plant had when its checkpoint was taken back to their queues, the last queue first so
+     * there is room for the ones before it. Gives up on the rest once the plant is stopped, they stay counted as left
+     * in the queues. Their deadlines aren't checkpointed, so resumed oranges never go off.
+     */
+    private void handBackResumed() {
+        final int[] stateMillis = config.getStateMillis();
+        for (int q = queues.length - 1; q >= 0 && timeToWork; q--) {
+            final Orange.State state = queues[q].getExpectedState();
+            try {
+                while (toResume[q] > 0 && timeToWork) {
+                    if (queues[q].offer(new Orange(state, stateMillis), MAX_RESUME_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        toResume[q]--;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopPlant wakes the thread up
+                if (timeToWork) {
+                    System.err.println(thread.getName() + " interrupted when resuming oranges.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads what this plant needs to carry on after a restart, while it keeps running. Like {@link #snapshot()},
+     * counters are read from the assembler back to the fetchers. The oranges in each queue are the ones handed to it
+     * that weren't removed, thrown away or handed on by the next stage, which also counts the ones that stage's
+     * threads hold.
+     *
+     * @return Checkpoint of this plant right now.
+     */
+    public PlantCheckpoint checkpoint() {
+        final long bottles = assembler.getBottles();
+        final long processed = assembler.getOrangesProcessed();
+        final long late = assembler.getOrangesLate();
+        final long[] removed = new long[queues.length];
+        final Orange.State[] queueStates = new Orange.State[queues.length];
+        for (int q = queues.length - 1; q >= 0; q--) {
+            removed[q] = queues[q].getOrangesRemoved();
+            queueStates[q] = queues[q].getExpectedState();
+        }
+        final long[] completed = new long[stages.length];
+        final long[] expired = new long[stages.length];
+        final long[] dropped = new long[stages.length];
+        for (int s = stages.length - 1; s >= 0; s--) {
+            completed[s] = stages[s].getOrangesCompleted();
+            expired[s] = stages[s].getOrangesExpired();
+            dropped[s] = stages[s].getOrangesDropped();
+        }
+        final long provided = orangesProvided.sum();
+
+        final long[] oranges = new long[queues.length];
+        long handedIn = provided;
+        for (int q = 0; q < queues.length; q++) {
+            final long handedOn = q < stages.length ? completed[q] + expired[q] + dropped[q] : processed;
+            oranges[q] = Math.max(0, handedIn - removed[q] - handedOn);
+            handedIn = q < stages.length ? completed[q] : processed;
+        }
+        return new PlantCheckpoint(System.currentTimeMillis(), provided, completed, processed, bottles, late, expired,
+                dropped, queueStates, removed, oranges);
+    }
+
+    /**
+     * Finishes every orange in the plant, stopping the fetchers, each stage's workers and then the assembler once
+     * they have nothing left to do, see {@link #waitToStop()}.
+     *
+     * @param deadlineNanos {@link System#nanoTime()} to give up at.
+     * @return {@code true} if everyone finished, {@code false} if the deadline passed first.
+     */
+    private boolean drain(long deadlineNanos) {
+        try {
+            for (Fetcher f : fetchers) {
+                if (!f.waitToStop(deadlineNanos - System.nanoTime())) {
+                    return false;
+                }
+            }
+            for (int s = 0; s < stages.length; s++) {
+                final Stage stage = stages[s];
+                // Workers of other plants may still hand back oranges they stole, wait for them first
+                stage.startDraining();
+                while (!stage.isStealingDone()) {
+                    if (System.nanoTime() >= deadlineNanos) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(STEAL_WAIT_NANOS);
+                }
+                for (Worker w : workers) {
+                    if (w.getStage() == stage && !queues[s].offer(Orange.POISON_PILL,
+                            deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        return false;
+                    }
+                }
+                for (Worker w : workers) {
+                    if (w.getStage() == stage && !w.waitToStop(deadlineNanos - System.nanoTime())) {
+                        return false;
+                    }
+                }
+            }
+            return queues[stages.length].offer(Orange.POISON_PILL, deadlineNanos - System.nanoTime(),
+                    TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            System.err.println(thread.getName() + " drain interrupted");
+            return false;
+        }
+    }
+
+    /**
+     * Takes the poison pills nobody took out of the queues, once everyone has stopped, so they aren't counted.
+     *
+     * @param queues Queues nobody takes from or adds to anymore.
+     */
+    static void removePills(ValidatingChannel[] queues) {
+        final List<Orange> left = new ArrayList<>();
+        for (ValidatingChannel q : queues) {
+            left.clear();
+            q.drainTo(left, Integer.MAX_VALUE);
+            left.removeIf(o -> o == Orange.POISON_PILL);
+            try {
+                q.offerAll(left, 0, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                System.err.println(Thread.currentThread().getName() + " stop malfunction");
+            }
+        }
     }
 
     /**
-     * Runs thread until it is no longer time to work. Continues
-     * to create oranges and distribute them.
+     * Runs thread until it is no longer time to work. Oranges are fetched and distributed by the
+     * {@link Fetcher fetchers} and inspected as they are handed off, so this thread only samples the
+     * {@link #metrics} and rebalances the workers every {@link PlantConfig#getRebalanceIntervalMillis() rebalance
+     * interval}, and prints the metrics every {@link PlantConfig#getMetricsReportIntervalMillis() report interval}.
      */
     public void run() {
         System.out.println(Thread.currentThread().getName() + " Processing oranges");
+        final long reportInterval = config.getMetricsReportIntervalMillis();
+        long nextReport = System.currentTimeMillis() + reportInterval;
+        handBackResumed();
+        final long checkpointInterval = config.getCheckpointIntervalMillis();
+        long nextCheckpoint = System.currentTimeMillis() + checkpointInterval;
+        PlantSnapshot last = snapshot();
         while (timeToWork) {
-            if(distributeOrange(new Orange())){
-                orangesProvided++;
+            try {
+                Thread.sleep(config.getRebalanceIntervalMillis());
+            } catch (InterruptedException e) {
+                // stopPlant wakes the thread up
+                if (timeToWork) {
+                    System.err.println(Thread.currentThread().getName() + " coordination malfunction");
+                }
+            }
+            if (!timeToWork) {
+                break;
+            }
+            metrics.sample();
+            final PlantSnapshot now = snapshot();
+            rates = now.ratesSince(last);
+            last = now;
+            if (rebalancer != null) {
+                rebalancer.rebalance();
+            }
+            if (checkpointFile != null && System.currentTimeMillis() >= nextCheckpoint) {
+                checkpointFile.write(checkpoint());
+                nextCheckpoint += checkpointInterval;
+            }
+            if (reportInterval > 0 && System.currentTimeMillis() >= nextReport) {
+                System.out.println(Thread.currentThread().getName() + " metrics\n" + metrics.report()
+                        + "\n  rates: " + rates
+                        + (config.getFreshnessMillis() > 0 ? "\n  deadline misses: expired=" + now.getExpired()
+                        + " late=" + now.getLate() : ""));
+                nextReport += reportInterval;
             }
-            checkQueues();
         }
         System.out.println(Thread.currentThread().getName() + " Done");
+        if (rebalancer != null) {
+            final StringBuilder split = new StringBuilder();
+            for (Stage s : stages) {
+                split.append(' ').append(s.getName()).append('=').append(s.getWorkerCount());
+            }
+            System.out.println(Thread.currentThread().getName() + " Final workers per stage:" + split);
+        }
     }
 
     /**
-     * The Line Inspector, removes oranges from each queue if they are not in the correct {@link Orange.State}.
-     * <ul>
-     *     <li>Removes oranges from {@link #peelQueue} who's state isn't fetched.</li>
-     *     <li>Removes oranges from {@link #squeezeQueue} who's state isn't peeled.</li>
-     *     <li>Removes oranges from {@link #bottleQueue} who's state isn't squeezed.</li>
-     *     <li>Removes oranges from {@link #doneQueue} who's state isn't bottled.</li>
-     * </ul>
+     * Gets the name of a stage, the names of its steps joined by {@code +}, like {@code peel+squeeze}.
+     *
+     * @param handoffStates States oranges are handed off in, see {@link PlantConfig#getHandoffStates()}.
+     * @param stage         Index of the stage, in pipeline order.
+     * @return Name of the stage.
      */
-    private void checkQueues() {
-        // Remove oranges from peel queue if state isn't fetched
-        final int peelQueueSize = peelQueue.size();
-        boolean removedFromQueue = peelQueue.removeIf(orange -> orange.getState() != Orange.State.Fetched);
-        if (removedFromQueue) {
-            orangesRemovedFromQueues += (peelQueueSize - peelQueue.size());
-            System.err.println("Removed " + (peelQueueSize - peelQueue.size()) + " orange(s) from peel queue with incorrect state(s).");
+    static String stageName(Orange.State[] handoffStates, int stage) {
+        final StringBuilder name = new StringBuilder();
+        for (int step = handoffStates[stage].ordinal() + 1; step <= handoffStates[stage + 1].ordinal(); step++) {
+            name.append(name.length() == 0 ? "" : "+").append(stepName(Orange.State.values()[step]));
         }
+        return name.toString();
+    }
 
-        // Remove oranges from squeeze queue if state isn't peeled
-        final int squeezeQueueSize = squeezeQueue.size();
-        removedFromQueue = squeezeQueue.removeIf(orange -> orange.getState() != Orange.State.Peeled);
-        if (removedFromQueue) {
-            orangesRemovedFromQueues += (squeezeQueueSize - squeezeQueue.size());
-            System.err.println("Removed " + (squeezeQueueSize - squeezeQueue.size()) + " orange(s) from squeeze queue with incorrect state(s).");
+    /**
+     * Gets the number of workers a stage starts with, the workers of all of its steps.
+     *
+     * @param config        Settings of the plant.
+     * @param handoffStates States oranges are handed off in, see {@link PlantConfig#getHandoffStates()}.
+     * @param stage         Index of the stage, in pipeline order.
+     * @return Number of workers.
+     */
+    static int stageWorkers(PlantConfig config, Orange.State[] handoffStates, int stage) {
+        int workers = 0;
+        for (int step = handoffStates[stage].ordinal() + 1; step <= handoffStates[stage + 1].ordinal(); step++) {
+            workers += config.getNumWorkers(Orange.State.values()[step]);
         }
+        return workers;
+    }
 
-        // Remove oranges from bottle queue if state isn't squeezed
-        final int bottleQueueSize = bottleQueue.size();
-        removedFromQueue = bottleQueue.removeIf(orange -> orange.getState() != Orange.State.Squeezed);
-        if (removedFromQueue) {
-            orangesRemovedFromQueues += (bottleQueueSize - bottleQueue.size());
-            System.err.println("Removed " + (bottleQueueSize - bottleQueue.size()) + " orange(s) from bottle queue with incorrect state(s).");
+    /**
+     * Gets the short name of the step that takes an orange to a state, used to name stages.
+     *
+     * @param state State the step takes an orange to.
+     * @return Name of the step.
+     */
+    private static String stepName(Orange.State state) {
+        switch (state) {
+            case Peeled:
+                return "peel";
+            case Squeezed:
+                return "squeeze";
+            case Bottled:
+                return "bottle";
+            default:
+                return state.name().toLowerCase();
         }
+    }
 
-        // Remove oranges from done queue if state isn't bottled
-        final int qSize = doneQueue.size();
-        final boolean removedFromDoneQ = doneQueue.removeIf(orange -> orange.getState() != Orange.State.Bottled);
-        if (removedFromDoneQ) {
-            orangesRemovedFromQueues += doneQueue.size() - qSize;
-            System.err.println("Removed Oranges from doneQueue that didn't have state of bottled.");
+    /**
+     * Lets idle workers of each plant take oranges from the same stage of the other plants. Has to be called before
+     * the plants are started, and every plant should have been created with {@link PlantConfig#isWorkStealing()} on
+     * and the same stages fused.
+     *
+     * @param plants Plants that share work.
+     */
+    public static void enableWorkStealing(Plant[] plants) {
+        for (Plant p : plants) {
+            for (int s = 0; s < p.stages.length; s++) {
+                final Stage[] peers = new Stage[plants.length - 1];
+                int ind = 0;
+                for (Plant other : plants) {
+                    if (other != p) {
+                        peers[ind++] = other.stages[s];
+                    }
+                }
+                p.stages[s].setPeers(peers);
+            }
         }
     }
 
     /**
-     * Offers an orange to the peelQueue, if full, it will wait 100 milliseconds to add one.
+     * Gets the instrumentation of this plant.
      *
-     * @param o Orange to process
-     * @return {@code true} if the orange was distributed to the peelQueue, {@code false} otherwise.
+     * @return Metrics of this plant.
      */
-    private boolean distributeOrange(Orange o) {
-        // Make sure orange is in correct state (Fetched)
-        if (o.getState() != Orange.State.Fetched) {
-            System.err.println("Orange state supposed to be fetched, got '" + o.getState() + "' during distributing! Not adding to peelQueue.");
-        } else {
-            try {
-                // Add orange to queue. If full, it will wait until space becomes available.
-                peelQueue.put(o);
-                return true;
-            } catch (InterruptedException e) {
-                System.err.println(Thread.currentThread().getName() + " stop malfunction while attempting to add orange to queue");
-            }
+    public PlantMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reads the counters of this plant while it keeps running. The counters are read from the assembler back to the
+     * fetchers, and each thread counts an orange before handing it off, so the snapshot never shows an orange further
+     * down the pipeline than it was counted upstream.
+     *
+     * @return Counters of this plant right now.
+     */
+    public PlantSnapshot snapshot() {
+        final long bottles = assembler.getBottles();
+        final long processed = assembler.getOrangesProcessed();
+        final long late = assembler.getOrangesLate();
+        final long removed = getOrangesRemovedFromQueues();
+        final long[] completed = new long[stages.length];
+        long expired = 0;
+        for (int s = stages.length - 1; s >= 0; s--) {
+            completed[s] = stages[s].getOrangesCompleted();
+            expired += stages[s].getOrangesExpired();
+        }
+        final long provided = orangesProvided.sum();
+        return new PlantSnapshot(System.nanoTime(), provided, stageNames, completed, processed, bottles, removed,
+                expired, late);
+    }
+
+    /**
+     * Gets how fast this plant worked during the last {@link PlantConfig#getRebalanceIntervalMillis() rebalance
+     * interval}. The plant thread works the rates out from a {@link #snapshot()} every interval, so reading them
+     * costs nothing.
+     *
+     * @return Rates of the last interval, or null if the plant hasn't run for a full interval.
+     */
+    public PlantRates getRates() {
+        return rates;
+    }
+
+    /**
+     * Gets the number of oranges this plant's workers took from other plants and processed for them. Stolen oranges
+     * are counted by the plant they came from everywhere else.
+     *
+     * @return Number of oranges stolen from other plants.
+     */
+    public long getOrangesStolen() {
+        long stolen = 0;
+        for (Stage s : stages) {
+            stolen += s.getOrangesStolen();
         }
-        return false;
+        return stolen;
+    }
+
+    /**
+     * Gets the number of oranges this plant fetched again instead of creating new ones.
+     *
+     * @return Number of oranges reused, 0 if the config has no orange pool.
+     */
+    public long getOrangesReused() {
+        return pool.getOrangesReused();
+    }
+
+    /**
+     * Gets the number of oranges that were still being fetched or in the plant when it was stopped, and were finished
+     * while it drained.
+     *
+     * @return Number of oranges that reached the assembler after the plant was stopped.
+     */
+    public int getOrangesSaved() {
+        return assembler.getOrangesProcessed() - processedAtStop;
+    }
+
+    /**
+     * Gets how long the plant worked, from {@link #startPlant()} until {@link #stopPlant()}, without the time it took
+     * to stop.
+     *
+     * @return Working time in nanoseconds, set once the plant has been stopped.
+     */
+    public long getWorkingNanos() {
+        return stopNanos - startNanos;
+    }
+
+    /**
+     * Gets the number of oranges bottled by the time the plant was stopped, leaving out those bottled while it
+     * drained.
+     *
+     * @return Number of full bottles made while the plant was working.
+     */
+    public int getOrangesBottledAtStop() {
+        return bottlesAtStop;
+    }
+
+    /**
+     * Gets how long the plant took to stop, from {@link #stopPlant()} until {@link #waitToStop()} was done.
+     *
+     * @return Drain time in milliseconds.
+     */
+    public long getDrainMillis() {
+        return drainMillis;
+    }
+
+    /**
+     * Checks if the plant had to interrupt anyone because it didn't finish its oranges before the drain deadline.
+     *
+     * @return {@code true} if the drain deadline passed.
+     */
+    public boolean isDrainTimedOut() {
+        return drainTimedOut;
     }
 
     /**
@@ -287,56 +876,103 @@ public class Plant implements Runnable {
      *
      * @return The number of oranges provided.
      */
-    public int getOrangesProvided() {
-        return orangesProvided;
+    public long getOrangesProvided() {
+        return orangesProvided.sum();
     }
 
     /**
-     * Gets the number of oranges bottled, which is the size of the doneQueue (
-     * Oranges fully processed) divided by the
-     * constant {@link #ORANGES_PER_BOTTLE}.
+     * Gets the number of oranges bottled, which is the number of full bottles assembled by the {@link #assembler},
+     * each holding {@link PlantConfig#getOrangesPerBottle() oranges per bottle} oranges.
      *
      * @return Number of oranges bottled.
      */
     public int getOrangesBottled() {
-        return doneQueue.size() / ORANGES_PER_BOTTLE;
+        return assembler.getBottles();
     }
 
     /**
-     * Gets the number of oranges processed, which is the length of the doneQueue.
+     * Gets the number of oranges processed, which is the number of oranges consumed by the {@link #assembler}.
      *
      * @return Number of oranges processed.
      */
     public int getOrangesProcessed() {
-        return doneQueue.size();
+        return assembler.getOrangesProcessed();
     }
 
     /**
-     * Gets the number of oranges not bottled, which is the length of the doneQueue mod {@link #ORANGES_PER_BOTTLE}.
+     * Gets the number of oranges not bottled, which is the number of oranges in the {@link #assembler assembler's}
+     * partially filled bottle.
      *
      * @return number of oranges not bottled.
      */
     public int getOrangesNotBottled() {
-        return doneQueue.size() % ORANGES_PER_BOTTLE;
+        return assembler.getOrangesInPartialBottle();
     }
 
     /**
-     * Gets the number of oranges wasted, which is the number of oranges not bottled and the number of oranges left in queues
-     * other than the doneQueue.
+     * Gets the number of oranges wasted, which is the number of oranges not bottled, the number of oranges left in queues
+     * other than the done queue, the number thrown away because they were in the wrong queue or had gone off, and the
+     * number halted workers were holding.
      *
      * @return The number of oranges wasted.
      */
-    public int getOrangesWasted() {
-        return doneQueue.size() % ORANGES_PER_BOTTLE + getOrangesLeftInQueue() + getOrangesRemovedFromQueues();
+    public long getOrangesWasted() {
+        return getOrangesNotBottled() + getOrangesLeftInQueue() + getOrangesRemovedFromQueues() + getOrangesExpired()
+                + getOrangesDropped();
+    }
+
+    /**
+     * Gets the number of oranges workers were holding when they were halted at the drain deadline, see
+     * {@link #waitToStop()}.
+     *
+     * @return Number of oranges dropped, 0 if the plant drained in time.
+     */
+    public long getOrangesDropped() {
+        long dropped = 0;
+        for (Stage s : stages) {
+            dropped += s.getOrangesDropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * Gets the number of oranges the stages threw away because they had gone off before they were finished.
+     *
+     * @return Number of oranges expired, 0 if oranges never go off or aren't dropped.
+     */
+    public long getOrangesExpired() {
+        long expired = 0;
+        for (Stage s : stages) {
+            expired += s.getOrangesExpired();
+        }
+        return expired;
+    }
+
+    /**
+     * Gets the number of oranges that were bottled after they had gone off. With expired oranges dropped, these are
+     * the ones that went off on their way through the last stage.
+     *
+     * @return Number of oranges processed late.
+     */
+    public int getOrangesLate() {
+        return assembler.getOrangesLate();
     }
 
     /**
-     * Gets the number of oranges left in all queues besides the doneQueue.
+     * Gets the number of oranges left in all queues besides the done queue.
      *
      * @return The number of oranges left in queues.
      */
     public int getOrangesLeftInQueue() {
-        return peelQueue.size() + squeezeQueue.size() + bottleQueue.size();
+        int left = 0;
+        for (int q = 0; q < queues.length - 1; q++) {
+            left += queues[q].size();
+        }
+        // Oranges of a checkpoint the plant was stopped before handing back
+        for (long r : toResume) {
+            left += (int) r;
+        }
+        return left;
     }
 
     /**
@@ -344,7 +980,11 @@ public class Plant implements Runnable {
      *
      * @return How many oranges were removed from queues because they were in the wrong one.
      */
-    public int getOrangesRemovedFromQueues() {
-        return orangesRemovedFromQueues;
+    public long getOrangesRemovedFromQueues() {
+        long removed = 0;
+        for (ValidatingChannel q : queues) {
+            removed += q.getOrangesRemoved();
+        }
+        return removed;
     }
 }
@@ -0,0 +1,320 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The {@code PlantCheckpoint} class holds what a {@link Plant} needs to carry on after a restart: its counters, and
+ * how many oranges were in each queue and in which {@link Orange.State}. A checkpoint is taken with
+ * {@link Plant#checkpoint()} while the plant keeps running, written by a {@link CheckpointFile}, and a new plant
+ * built with {@link PlantConfig#isResume()} starts from it. A checkpoint never changes after it is taken.
+ *
+ * <p>Every orange between two hand offs is in the state of the queue it was last handed to, so the oranges of a queue
+ * are stored as one state and a count. Oranges a thread was holding are counted in the queue they came from, and are
+ * started over from its state when the plant resumes, unless the thread was halted and dropped them.</p>
+ *
+ * <p>The binary form is: magic, version, wall clock time, oranges provided, processed, bottled and bottled late, the
+ * number of queues, then for each queue its state ordinal, oranges removed and orange count, then the oranges each
+ * stage completed, then the oranges each stage threw away because they had gone off, then the oranges each stage's
+ * workers were holding when they were halted. Version 1 had no late or expired oranges and version 2 had no dropped
+ * oranges, and they are read as if there were none.</p>
+ */
+public class PlantCheckpoint {
+    /** First int of every checkpoint, "JBCK". */
+    private static final int MAGIC = 0x4A42434B;
+
+    /** Version of the binary form. */
+    private static final int VERSION = 3;
+
+    /** {@link System#currentTimeMillis()} when the checkpoint was taken. */
+    private final long wallMillis;
+
+    /** Number of oranges provided by the fetchers. */
+    private final long provided;
+
+    /** Number of oranges completed by each stage, in pipeline order. */
+    private final long[] completed;
+
+    /** Number of oranges consumed by the bottle assembler. */
+    private final long processed;
+
+    /** Number of full bottles assembled. */
+    private final long bottles;
+
+    /** Number of oranges consumed by the bottle assembler after they had gone off. */
+    private final long late;
+
+    /** Number of oranges each stage threw away because they had gone off, in pipeline order. */
+    private final long[] expired;
+
+    /** Number of oranges each stage's workers were holding when they were halted, in pipeline order. */
+    private final long[] dropped;
+
+    /** State of the oranges in each queue, in pipeline order. */
+    private final Orange.State[] queueStates;
+
+    /** Number of oranges each queue removed because they were in the wrong state. */
+    private final long[] removed;
+
+    /** Number of oranges in each queue, or held by the threads taking from it. */
+    private final long[] oranges;
+
+    /**
+     * Creates a new PlantCheckpoint object. The arrays are kept, so the caller must not change them afterwards.
+     *
+     * @param wallMillis  {@link System#currentTimeMillis()} when the checkpoint was taken.
+     * @param provided    Number of oranges provided.
+     * @param completed   Number of oranges completed by each stage, in pipeline order.
+     * @param processed   Number of oranges processed.
+     * @param bottles     Number of full bottles.
+     * @param late        Number of oranges processed after they had gone off.
+     * @param expired     Number of oranges each stage threw away because they had gone off, in pipeline order.
+     * @param dropped     Number of oranges each stage's workers were holding when halted, in pipeline order.
+     * @param queueStates State of the oranges in each queue, one more queue than stages.
+     * @param removed     Number of oranges removed by each queue.
+     * @param oranges     Number of oranges in each queue.
+     */
+    PlantCheckpoint(long wallMillis, long provided, long[] completed, long processed, long bottles, long late,
+                    long[] expired, long[] dropped, Orange.State[] queueStates, long[] removed, long[] oranges) {
+        if (queueStates.length != completed.length + 1 || expired.length != completed.length
+                || dropped.length != completed.length
+                || removed.length != queueStates.length || oranges.length != queueStates.length) {
+            throw new IllegalArgumentException("A checkpoint needs one more queue than stages");
+        }
+        this.wallMillis = wallMillis;
+        this.provided = provided;
+        this.completed = completed;
+        this.processed = processed;
+        this.bottles = bottles;
+        this.late = late;
+        this.expired = expired;
+        this.dropped = dropped;
+        this.queueStates = queueStates;
+        this.removed = removed;
+        this.oranges = oranges;
+    }
+
+    /**
+     * Writes the checkpoint in its binary form.
+     *
+     * @param buffer Buffer to write to, from its position.
+     * @throws java.nio.BufferOverflowException If the buffer is too small.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(MAGIC).putInt(VERSION)
+                .putLong(wallMillis).putLong(provided).putLong(processed).putLong(bottles).putLong(late)
+                .putInt(queueStates.length);
+        for (int q = 0; q < queueStates.length; q++) {
+            buffer.put((byte) queueStates[q].ordinal()).putLong(removed[q]).putLong(oranges[q]);
+        }
+        for (long c : completed) {
+            buffer.putLong(c);
+        }
+        for (long e : expired) {
+            buffer.putLong(e);
+        }
+        for (long d : dropped) {
+            buffer.putLong(d);
+        }
+    }
+
+    /**
+     * Reads a checkpoint written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @param buffer Buffer to read from, from its position.
+     * @return The checkpoint.
+     * @throws IllegalArgumentException If the buffer doesn't hold a checkpoint.
+     */
+    public static PlantCheckpoint readFrom(ByteBuffer buffer) {
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a plant checkpoint");
+            }
+            final int version = buffer.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("Unknown checkpoint version " + version);
+            }
+            final long wallMillis = buffer.getLong();
+            final long provided = buffer.getLong();
+            final long processed = buffer.getLong();
+            final long bottles = buffer.getLong();
+            final long late = version >= 2 ? buffer.getLong() : 0;
+            final int numQueues = buffer.getInt();
+            if (numQueues < 2 || numQueues > Orange.State.values().length) {
+                throw new IllegalArgumentException("Checkpoint has " + numQueues + " queues");
+            }
+            final Orange.State[] queueStates = new Orange.State[numQueues];
+            final long[] removed = new long[numQueues];
+            final long[] oranges = new long[numQueues];
+            for (int q = 0; q < numQueues; q++) {
+                final int state = buffer.get();
+                if (state < 0 || state >= Orange.State.values().length) {
+                    throw new IllegalArgumentException("Checkpoint has unknown state " + state);
+                }
+                queueStates[q] = Orange.State.values()[state];
+                removed[q] = buffer.getLong();
+                oranges[q] = buffer.getLong();
+            }
+            final long[] completed = new long[numQueues - 1];
+            for (int s = 0; s < completed.length; s++) {
+                completed[s] = buffer.getLong();
+            }
+            final long[] expired = new long[numQueues - 1];
+            for (int s = 0; s < expired.length && version >= 2; s++) {
+                expired[s] = buffer.getLong();
+            }
+            final long[] dropped = new long[numQueues - 1];
+            for (int s = 0; s < dropped.length && version >= 3; s++) {
+                dropped[s] = buffer.getLong();
+            }
+            return new PlantCheckpoint(wallMillis, provided, completed, processed, bottles, late, expired, dropped,
+                    queueStates, removed, oranges);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Checkpoint is cut short", e);
+        }
+    }
+
+    /**
+     * Checks that a plant with the given queues can resume from this checkpoint.
+     *
+     * @param handoffStates State of the oranges in each queue of the plant, see {@link PlantConfig#getHandoffStates()}.
+     * @throws IllegalArgumentException If the checkpoint was taken by a plant with other queues.
+     */
+    public void checkCompatible(Orange.State[] handoffStates) {
+        if (handoffStates.length != queueStates.length) {
+            throw new IllegalArgumentException("Checkpoint has " + queueStates.length + " queues, the plant has "
+                    + handoffStates.length);
+        }
+        for (int q = 0; q < queueStates.length; q++) {
+            if (queueStates[q] != handoffStates[q]) {
+                throw new IllegalArgumentException("Queue " + q + " of the checkpoint holds " + queueStates[q]
+                        + " oranges, the plant's holds " + handoffStates[q]);
+            }
+        }
+    }
+
+    /**
+     * Gets when the checkpoint was taken.
+     *
+     * @return {@link System#currentTimeMillis()} when the checkpoint was taken.
+     */
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    /**
+     * Gets the number of oranges provided by the fetchers.
+     *
+     * @return Number of oranges provided.
+     */
+    public long getProvided() {
+        return provided;
+    }
+
+    /**
+     * Gets the number of oranges a stage had completed.
+     *
+     * @param stage Index of the stage, in pipeline order.
+     * @return Number of oranges completed by the stage.
+     */
+    public long getCompleted(int stage) {
+        return completed[stage];
+    }
+
+    /**
+     * Gets the number of oranges consumed by the bottle assembler.
+     *
+     * @return Number of oranges processed.
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Gets the number of full bottles assembled.
+     *
+     * @return Number of bottles.
+     */
+    public long getBottles() {
+        return bottles;
+    }
+
+    /**
+     * Gets the number of oranges consumed by the bottle assembler after they had gone off.
+     *
+     * @return Number of oranges late.
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * Gets the number of oranges a stage threw away because they had gone off.
+     *
+     * @param stage Index of the stage, in pipeline order.
+     * @return Number of oranges expired in the stage.
+     */
+    public long getExpired(int stage) {
+        return expired[stage];
+    }
+
+    /**
+     * Gets the number of oranges a stage's workers were holding when they were halted.
+     *
+     * @param stage Index of the stage, in pipeline order.
+     * @return Number of oranges dropped in the stage.
+     */
+    public long getDropped(int stage) {
+        return dropped[stage];
+    }
+
+    /**
+     * Gets the number of queues of the plant, one more than its stages.
+     *
+     * @return Number of queues.
+     */
+    public int getQueueCount() {
+        return queueStates.length;
+    }
+
+    /**
+     * Gets the state of the oranges in a queue.
+     *
+     * @param queue Index of the queue, in pipeline order.
+     * @return State of the oranges.
+     */
+    public Orange.State getQueueState(int queue) {
+        return queueStates[queue];
+    }
+
+    /**
+     * Gets the number of oranges a queue removed because they were in the wrong state.
+     *
+     * @param queue Index of the queue, in pipeline order.
+     * @return Number of oranges removed.
+     */
+    public long getRemoved(int queue) {
+        return removed[queue];
+    }
+
+    /**
+     * Gets the number of oranges in a queue, counting those held by the threads taking from it.
+     *
+     * @param queue Index of the queue, in pipeline order.
+     * @return Number of oranges.
+     */
+    public long getOranges(int queue) {
+        return oranges[queue];
+    }
+
+    /**
+     * Gets the number of oranges in every queue.
+     *
+     * @return Number of oranges in the plant.
+     */
+    public long getOrangesInFlight() {
+        long total = 0;
+        for (long o : oranges) {
+            total += o;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,1209 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The {@code PlantConfig} class holds the settings used to build and run {@link Plant plants}. A new config has the
+ * default settings, which can be changed with the setters before the config is given to a plant. Setters return the
+ * config, so they can be chained.
+ *
+ * <p>Every setting can also be set by name with {@link #set(String, String)}, the name is the setter's without "set",
+ * for example {@code numPeelers=8}. The time each {@link Orange.State} takes is set with
+ * {@code stateMillis.<State>}, for example {@code stateMillis.Peeled=30}. Settings are read from a properties file
+ * with {@link #load(Path)}, or from the command line with {@link #fromArgs(String[])}.</p>
+ *
+ * <p>A config shouldn't be changed once a plant has been created with it.</p>
+ */
+public class PlantConfig {
+    /** Names of the settings that can be {@link #set(String, String) set by name}, in the order they're listed. */
+    private static final String[] KEYS = {
+            "processingTimeMillis", "numPlants", "executionMode", "orangesPerBottle", "numFetchers", "numPeelers",
+            "numSqueezers", "numBottlers", "queueCapacity", "channelType", "waitStrategy", "rebalanceWorkers",
+            "rebalanceIntervalMillis", "peelBatchSize", "squeezeBatchSize", "bottleBatchSize", "batchLingerMillis",
+            "orangePoolSize", "fusePeelSqueeze", "fuseSqueezeBottle", "workStealing", "jmxEnabled",
+            "metricsReportIntervalMillis", "drainDeadlineMillis", "checkpointDir", "checkpointIntervalMillis", "resume",
+            "freshnessMillis", "freshnessSpreadMillis", "dropExpired", "stateMillis.<State>"
+    };
+
+    /** Prefix of the names of the {@link #setStateMillis(Orange.State, int) state times}. */
+    private static final String STATE_MILLIS_PREFIX = "stateMillis.";
+
+    /** How long the plants run for in milliseconds. */
+    private long processingTimeMillis = 5 * 1000;
+
+    /** Number of plants that will be running. */
+    private int numPlants = 2;
+
+    /** How the threads of each plant are run. */
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+
+    /** Number of oranges put in each bottle. */
+    private int orangesPerBottle = 3;
+
+    /** Number of fetchers who will fetch oranges and feed the peel queue. */
+    private int numFetchers = 3;
+
+    /** Number of workers who will peel oranges. */
+    private int numPeelers = 6;
+
+    /** Number of workers who will squeeze oranges. */
+    private int numSqueezers = 4;
+
+    /** Number of workers who will bottle oranges. */
+    private int numBottlers = 3;
+
+    /** Maximum number of oranges in each queue. */
+    private int queueCapacity = 10;
+
+    /** Kind of channel the queues are. */
+    private ChannelType channelType = ChannelType.LINKED;
+
+    /** What threads do while waiting on a full or empty queue, only used by {@link ChannelType#RING ring} channels. */
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+    /** If true, workers are moved between stages while the plant runs, otherwise they stay in their first stage. */
+    private boolean rebalanceWorkers = false;
+
+    /** How often the plant thread rebalances the workers, in milliseconds. */
+    private long rebalanceIntervalMillis = 250;
+
+    /** Maximum number of oranges a peeler takes from its queue at once. */
+    private int peelBatchSize = 1;
+
+    /** Maximum number of oranges a squeezer takes from its queue at once. */
+    private int squeezeBatchSize = 1;
+
+    /** Maximum number of oranges a bottler takes from its queue at once. */
+    private int bottleBatchSize = 1;
+
+    /** Longest a worker waits for a batch to fill up once it has an orange, in milliseconds. */
+    private long batchLingerMillis = 5;
+
+    /** Number of free oranges each plant keeps for reuse, or 0 to create a new orange every time. */
+    private int orangePoolSize = 0;
+
+    /** If true, peeling and squeezing are one stage, a peeler squeezes the orange itself. */
+    private boolean fusePeelSqueeze = false;
+
+    /** If true, squeezing and bottling are one stage, a squeezer bottles the orange itself. */
+    private boolean fuseSqueezeBottle = false;
+
+    /** If true, idle workers take oranges from the same stage of other plants. */
+    private boolean workStealing = false;
+
+    /** If true, the metrics of each plant are registered with JMX. */
+    private boolean jmxEnabled = true;
+
+    /** How often each plant prints its metrics in milliseconds, or 0 to not print them. */
+    private long metricsReportIntervalMillis = 0;
+
+    /** Longest a stopping plant spends finishing the oranges it already has, in milliseconds, or 0 to not finish them. */
+    private long drainDeadlineMillis = 2000;
+
+    /** Directory each plant writes its {@link PlantCheckpoint checkpoints} to, or empty to not write them. */
+    private String checkpointDir = "";
+
+    /** How often each plant writes a checkpoint in milliseconds. */
+    private long checkpointIntervalMillis = 1000;
+
+    /** If true, each plant starts from the last checkpoint in {@link #checkpointDir}, if there is one. */
+    private boolean resume = false;
+
+    /** How long an orange stays fresh after it is fetched in milliseconds, or 0 if oranges never go off. */
+    private long freshnessMillis = 0;
+
+    /** How much the freshness of each orange differs from {@link #freshnessMillis}, either way, in milliseconds. */
+    private long freshnessSpreadMillis = 0;
+
+    /** If true, workers throw away oranges that went off instead of working on them. */
+    private boolean dropExpired = true;
+
+    /** Time it takes to complete each {@link Orange.State} in milliseconds, indexed by {@link Enum#ordinal() ordinal}. */
+    private int[] stateMillis = Orange.defaultStateMillis();
+
+    /**
+     * Creates a config from command line arguments. Each argument is either {@code --config=<file>}, which
+     * {@link #load(Path) loads} a properties file, or {@code --<name>=<value>}, which {@link #set(String, String) sets}
+     * a setting. Arguments are applied in order, so settings given after a file override it.
+     *
+     * @param args Command line arguments.
+     * @return The config.
+     * @throws IllegalArgumentException If an argument isn't a setting, or its value isn't valid.
+     */
+    public static PlantConfig fromArgs(String[] args) {
+        return fromArgs(args, null);
+    }
+
+    /**
+     * Creates a config from command line arguments like {@link #fromArgs(String[])}, but also accepts options that
+     * aren't settings of the config, for the caller to use.
+     *
+     * @param args    Command line arguments.
+     * @param options Options the caller accepts, mapped to their default values. The value of each option given is
+     *                replaced with the given one. May be null if the caller has no options.
+     * @return The config.
+     * @throws IllegalArgumentException If an argument isn't a setting or option, or its value isn't valid.
+     */
+    public static PlantConfig fromArgs(String[] args, Map<String, String> options) {
+        final PlantConfig config = new PlantConfig();
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --<name>=<value>, got " + arg
+                        + "\nSettings are: " + String.join(", ", KEYS));
+            }
+            final String key = arg.substring(2, eq);
+            final String value = arg.substring(eq + 1);
+            if (key.equals("config")) {
+                try {
+                    config.load(Paths.get(value));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Can't read config file " + value + ": " + e.getMessage(), e);
+                }
+            } else if (options != null && options.containsKey(key)) {
+                options.put(key, value);
+            } else {
+                config.set(key, value);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Sets every setting in a properties file, see {@link #set(String, String)} for the names.
+     *
+     * @param file Properties file to read.
+     * @return This config.
+     * @throws IOException              If the file can't be read.
+     * @throws IllegalArgumentException If the file has something that isn't a setting, or a value isn't valid.
+     */
+    public PlantConfig load(Path file) throws IOException {
+        final Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        }
+        return setAll(properties);
+    }
+
+    /**
+     * Sets every setting in a set of properties, see {@link #set(String, String)} for the names.
+     *
+     * @param properties Settings to set.
+     * @return This config.
+     * @throws IllegalArgumentException If a property isn't a setting, or its value isn't valid.
+     */
+    public PlantConfig setAll(Properties properties) {
+        for (String key : properties.stringPropertyNames()) {
+            set(key, properties.getProperty(key));
+        }
+        return this;
+    }
+
+    /**
+     * Gets every setting as properties, named like in {@link #set(String, String)}, so
+     * {@code new PlantConfig().setAll(config.toProperties())} is a copy of the config.
+     *
+     * @return Settings of this config.
+     */
+    public Properties toProperties() {
+        final Properties p = new Properties();
+        p.setProperty("processingTimeMillis", Long.toString(processingTimeMillis));
+        p.setProperty("numPlants", Integer.toString(numPlants));
+        p.setProperty("executionMode", executionMode.name());
+        p.setProperty("orangesPerBottle", Integer.toString(orangesPerBottle));
+        p.setProperty("numFetchers", Integer.toString(numFetchers));
+        p.setProperty("numPeelers", Integer.toString(numPeelers));
+        p.setProperty("numSqueezers", Integer.toString(numSqueezers));
+        p.setProperty("numBottlers", Integer.toString(numBottlers));
+        p.setProperty("queueCapacity", Integer.toString(queueCapacity));
+        p.setProperty("channelType", channelType.name());
+        p.setProperty("waitStrategy", waitStrategy.name());
+        p.setProperty("rebalanceWorkers", Boolean.toString(rebalanceWorkers));
+        p.setProperty("rebalanceIntervalMillis", Long.toString(rebalanceIntervalMillis));
+        p.setProperty("peelBatchSize", Integer.toString(peelBatchSize));
+        p.setProperty("squeezeBatchSize", Integer.toString(squeezeBatchSize));
+        p.setProperty("bottleBatchSize", Integer.toString(bottleBatchSize));
+        p.setProperty("batchLingerMillis", Long.toString(batchLingerMillis));
+        p.setProperty("orangePoolSize", Integer.toString(orangePoolSize));
+        p.setProperty("fusePeelSqueeze", Boolean.toString(fusePeelSqueeze));
+        p.setProperty("fuseSqueezeBottle", Boolean.toString(fuseSqueezeBottle));
+        p.setProperty("workStealing", Boolean.toString(workStealing));
+        p.setProperty("jmxEnabled", Boolean.toString(jmxEnabled));
+        p.setProperty("metricsReportIntervalMillis", Long.toString(metricsReportIntervalMillis));
+        p.setProperty("drainDeadlineMillis", Long.toString(drainDeadlineMillis));
+        p.setProperty("checkpointDir", checkpointDir);
+        p.setProperty("checkpointIntervalMillis", Long.toString(checkpointIntervalMillis));
+        p.setProperty("resume", Boolean.toString(resume));
+        p.setProperty("freshnessMillis", Long.toString(freshnessMillis));
+        p.setProperty("freshnessSpreadMillis", Long.toString(freshnessSpreadMillis));
+        p.setProperty("dropExpired", Boolean.toString(dropExpired));
+        for (Orange.State state : Orange.State.values()) {
+            p.setProperty(STATE_MILLIS_PREFIX + state.name(), Integer.toString(stateMillis[state.ordinal()]));
+        }
+        return p;
+    }
+
+    /**
+     * Sets a setting by name. The name is the name of the setter without "set", for example {@code queueCapacity}
+     * for {@link #setQueueCapacity(int)}, or {@code stateMillis.<State>} for
+     * {@link #setStateMillis(Orange.State, int)}. Names are case sensitive, except for the state. Enum values may be
+     * any case, and booleans are {@code true} or {@code false}.
+     *
+     * @param key   Name of the setting.
+     * @param value Value of the setting.
+     * @return This config.
+     * @throws IllegalArgumentException If there is no setting with that name, or the value isn't valid.
+     */
+    public PlantConfig set(String key, String value) {
+        final String v = value.trim();
+        if (key.startsWith(STATE_MILLIS_PREFIX)) {
+            return setStateMillis(parseState(key.substring(STATE_MILLIS_PREFIX.length())), parseInt(key, v));
+        }
+        switch (key) {
+            case "processingTimeMillis":
+                return setProcessingTimeMillis(parseLong(key, v));
+            case "numPlants":
+                return setNumPlants(parseInt(key, v));
+            case "executionMode":
+                return setExecutionMode(parseEnum(ExecutionMode.class, key, v));
+            case "orangesPerBottle":
+                return setOrangesPerBottle(parseInt(key, v));
+            case "numFetchers":
+                return setNumFetchers(parseInt(key, v));
+            case "numPeelers":
+                return setNumPeelers(parseInt(key, v));
+            case "numSqueezers":
+                return setNumSqueezers(parseInt(key, v));
+            case "numBottlers":
+                return setNumBottlers(parseInt(key, v));
+            case "queueCapacity":
+                return setQueueCapacity(parseInt(key, v));
+            case "channelType":
+                return setChannelType(parseEnum(ChannelType.class, key, v));
+            case "waitStrategy":
+                return setWaitStrategy(parseEnum(WaitStrategy.class, key, v));
+            case "rebalanceWorkers":
+                return setRebalanceWorkers(parseBoolean(key, v));
+            case "rebalanceIntervalMillis":
+                return setRebalanceIntervalMillis(parseLong(key, v));
+            case "peelBatchSize":
+                return setPeelBatchSize(parseInt(key, v));
+            case "squeezeBatchSize":
+                return setSqueezeBatchSize(parseInt(key, v));
+            case "bottleBatchSize":
+                return setBottleBatchSize(parseInt(key, v));
+            case "batchLingerMillis":
+                return setBatchLingerMillis(parseLong(key, v));
+            case "orangePoolSize":
+                return setOrangePoolSize(parseInt(key, v));
+            case "fusePeelSqueeze":
+                return setFusePeelSqueeze(parseBoolean(key, v));
+            case "fuseSqueezeBottle":
+                return setFuseSqueezeBottle(parseBoolean(key, v));
+            case "workStealing":
+                return setWorkStealing(parseBoolean(key, v));
+            case "jmxEnabled":
+                return setJmxEnabled(parseBoolean(key, v));
+            case "metricsReportIntervalMillis":
+                return setMetricsReportIntervalMillis(parseLong(key, v));
+            case "drainDeadlineMillis":
+                return setDrainDeadlineMillis(parseLong(key, v));
+            case "checkpointDir":
+                return setCheckpointDir(v);
+            case "checkpointIntervalMillis":
+                return setCheckpointIntervalMillis(parseLong(key, v));
+            case "resume":
+                return setResume(parseBoolean(key, v));
+            case "freshnessMillis":
+                return setFreshnessMillis(parseLong(key, v));
+            case "freshnessSpreadMillis":
+                return setFreshnessSpreadMillis(parseLong(key, v));
+            case "dropExpired":
+                return setDropExpired(parseBoolean(key, v));
+            default:
+                throw new IllegalArgumentException("Unknown setting " + key + ", settings are: " + String.join(", ", KEYS));
+        }
+    }
+
+    /**
+     * Parses the value of a whole number setting.
+     *
+     * @param key   Name of the setting.
+     * @param value Value to parse.
+     * @return The number.
+     */
+    private static long parseLong(String key, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a whole number, got " + value);
+        }
+    }
+
+    /**
+     * Parses the value of a whole number setting that fits in an int.
+     *
+     * @param key   Name of the setting.
+     * @param value Value to parse.
+     * @return The number.
+     */
+    private static int parseInt(String key, String value) {
+        final long l = parseLong(key, value);
+        if (l != (int) l) {
+            throw new IllegalArgumentException(key + " is too big, got " + value);
+        }
+        return (int) l;
+    }
+
+    /**
+     * Parses the value of a setting that is on or off.
+     *
+     * @param key   Name of the setting.
+     * @param value Value to parse, {@code true} or {@code false}.
+     * @return The value.
+     */
+    private static boolean parseBoolean(String key, String value) {
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException(key + " must be true or false, got " + value);
+    }
+
+    /**
+     * Parses the value of a setting that is one of the constants of an enum, in any case.
+     *
+     * @param type  Enum of the setting.
+     * @param key   Name of the setting.
+     * @param value Value to parse.
+     * @param <E>   Type of the enum.
+     * @return The constant.
+     */
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String key, String value) {
+        for (E e : type.getEnumConstants()) {
+            if (e.name().equalsIgnoreCase(value)) {
+                return e;
+            }
+        }
+        throw new IllegalArgumentException(key + " must be one of " + Arrays.toString(type.getEnumConstants())
+                + ", got " + value);
+    }
+
+    /**
+     * Parses the name of an {@link Orange.State}, in any case.
+     *
+     * @param name Name of the state.
+     * @return The state.
+     */
+    private static Orange.State parseState(String name) {
+        return parseEnum(Orange.State.class, "State", name);
+    }
+
+    /**
+     * Creates a copy of this config, which can be changed without changing this one.
+     *
+     * @return The copy.
+     */
+    public PlantConfig copy() {
+        final PlantConfig c = new PlantConfig();
+        c.processingTimeMillis = processingTimeMillis;
+        c.numPlants = numPlants;
+        c.executionMode = executionMode;
+        c.orangesPerBottle = orangesPerBottle;
+        c.numFetchers = numFetchers;
+        c.numPeelers = numPeelers;
+        c.numSqueezers = numSqueezers;
+        c.numBottlers = numBottlers;
+        c.queueCapacity = queueCapacity;
+        c.channelType = channelType;
+        c.waitStrategy = waitStrategy;
+        c.rebalanceWorkers = rebalanceWorkers;
+        c.rebalanceIntervalMillis = rebalanceIntervalMillis;
+        c.peelBatchSize = peelBatchSize;
+        c.squeezeBatchSize = squeezeBatchSize;
+        c.bottleBatchSize = bottleBatchSize;
+        c.batchLingerMillis = batchLingerMillis;
+        c.orangePoolSize = orangePoolSize;
+        c.fusePeelSqueeze = fusePeelSqueeze;
+        c.fuseSqueezeBottle = fuseSqueezeBottle;
+        c.workStealing = workStealing;
+        c.jmxEnabled = jmxEnabled;
+        c.metricsReportIntervalMillis = metricsReportIntervalMillis;
+        c.drainDeadlineMillis = drainDeadlineMillis;
+        c.checkpointDir = checkpointDir;
+        c.checkpointIntervalMillis = checkpointIntervalMillis;
+        c.resume = resume;
+        c.freshnessMillis = freshnessMillis;
+        c.freshnessSpreadMillis = freshnessSpreadMillis;
+        c.dropExpired = dropExpired;
+        c.stateMillis = stateMillis.clone();
+        return c;
+    }
+
+    /**
+     * Checks that a setting is at least a minimum value.
+     *
+     * @param name  Name of the setting.
+     * @param value Value of the setting.
+     * @param min   Smallest allowed value.
+     * @return The value.
+     */
+    private static long atLeast(String name, long value, long min) {
+        if (value < min) {
+            throw new IllegalArgumentException(name + " must be at least " + min + ", got " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Gets how long the plants run for.
+     *
+     * @return Processing time in milliseconds.
+     */
+    public long getProcessingTimeMillis() {
+        return processingTimeMillis;
+    }
+
+    /**
+     * Sets how long the plants run for.
+     *
+     * @param processingTimeMillis Processing time in milliseconds.
+     * @return This config.
+     */
+    public PlantConfig setProcessingTimeMillis(long processingTimeMillis) {
+        this.processingTimeMillis = atLeast("processingTimeMillis", processingTimeMillis, 1);
+        return this;
+    }
+
+    /**
+     * Gets the number of plants that will be running.
+     *
+     * @return Number of plants.
+     */
+    public int getNumPlants() {
+        return numPlants;
+    }
+
+    /**
+     * Sets the number of plants that will be running.
+     *
+     * @param numPlants Number of plants.
+     * @return This config.
+     */
+    public PlantConfig setNumPlants(int numPlants) {
+        this.numPlants = (int) atLeast("numPlants", numPlants, 1);
+        return this;
+    }
+
+    /**
+     * Gets how the threads of each plant are run.
+     *
+     * @return Execution mode.
+     */
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    /**
+     * Sets how the threads of each plant are run.
+     *
+     * @param executionMode Execution mode.
+     * @return This config.
+     */
+    public PlantConfig setExecutionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * Gets the number of oranges put in each bottle.
+     *
+     * @return Oranges per bottle.
+     */
+    public int getOrangesPerBottle() {
+        return orangesPerBottle;
+    }
+
+    /**
+     * Sets the number of oranges put in each bottle.
+     *
+     * @param orangesPerBottle Oranges per bottle.
+     * @return This config.
+     */
+    public PlantConfig setOrangesPerBottle(int orangesPerBottle) {
+        this.orangesPerBottle = (int) atLeast("orangesPerBottle", orangesPerBottle, 1);
+        return this;
+    }
+
+    /**
+     * Gets the number of fetchers in each plant.
+     *
+     * @return Number of fetchers.
+     */
+    public int getNumFetchers() {
+        return numFetchers;
+    }
+
+    /**
+     * Sets the number of fetchers in each plant.
+     *
+     * @param numFetchers Number of fetchers.
+     * @return This config.
+     */
+    public PlantConfig setNumFetchers(int numFetchers) {
+        this.numFetchers = (int) atLeast("numFetchers", numFetchers, 1);
+        return this;
+    }
+
+    /**
+     * Gets the number of workers who start out peeling oranges.
+     *
+     * @return Number of peelers.
+     */
+    public int getNumPeelers() {
+        return numPeelers;
+    }
+
+    /**
+     * Sets the number of workers who start out peeling oranges.
+     *
+     * @param numPeelers Number of peelers.
+     * @return This config.
+     */
+    public PlantConfig setNumPeelers(int numPeelers) {
+        this.numPeelers = (int) atLeast("numPeelers", numPeelers, 1);
+        return this;
+    }
+
+    /**
+     * Gets the number of workers who start out squeezing oranges.
+     *
+     * @return Number of squeezers.
+     */
+    public int getNumSqueezers() {
+        return numSqueezers;
+    }
+
+    /**
+     * Sets the number of workers who start out squeezing oranges.
+     *
+     * @param numSqueezers Number of squeezers.
+     * @return This config.
+     */
+    public PlantConfig setNumSqueezers(int numSqueezers) {
+        this.numSqueezers = (int) atLeast("numSqueezers", numSqueezers, 1);
+        return this;
+    }
+
+    /**
+     * Gets the number of workers who start out bottling oranges.
+     *
+     * @return Number of bottlers.
+     */
+    public int getNumBottlers() {
+        return numBottlers;
+    }
+
+    /**
+     * Sets the number of workers who start out bottling oranges.
+     *
+     * @param numBottlers Number of bottlers.
+     * @return This config.
+     */
+    public PlantConfig setNumBottlers(int numBottlers) {
+        this.numBottlers = (int) atLeast("numBottlers", numBottlers, 1);
+        return this;
+    }
+
+    /**
+     * Gets the total number of workers working in each plant.
+     *
+     * @return Number of workers.
+     */
+    public int getTotalWorkers() {
+        return numPeelers + numSqueezers + numBottlers;
+    }
+
+    /**
+     * Gets the maximum number of oranges in each queue.
+     *
+     * @return Queue capacity.
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of oranges in each queue.
+     *
+     * @param queueCapacity Queue capacity.
+     * @return This config.
+     */
+    public PlantConfig setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = (int) atLeast("queueCapacity", queueCapacity, 1);
+        return this;
+    }
+
+    /**
+     * Gets the kind of channel the queues are.
+     *
+     * @return Channel type.
+     */
+    public ChannelType getChannelType() {
+        return channelType;
+    }
+
+    /**
+     * Sets the kind of channel the queues are.
+     *
+     * @param channelType Channel type.
+     * @return This config.
+     */
+    public PlantConfig setChannelType(ChannelType channelType) {
+        this.channelType = channelType;
+        return this;
+    }
+
+    /**
+     * Gets what threads do while waiting on a full or empty ring channel.
+     *
+     * @return Wait strategy.
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Sets what threads do while waiting on a full or empty ring channel.
+     *
+     * @param waitStrategy Wait strategy.
+     * @return This config.
+     */
+    public PlantConfig setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * Checks if workers are moved between stages while the plant runs.
+     *
+     * @return {@code true} if workers are rebalanced.
+     */
+    public boolean isRebalanceWorkers() {
+        return rebalanceWorkers;
+    }
+
+    /**
+     * Sets if workers are moved between stages while the plant runs.
+     *
+     * @param rebalanceWorkers {@code true} to rebalance workers.
+     * @return This config.
+     */
+    public PlantConfig setRebalanceWorkers(boolean rebalanceWorkers) {
+        this.rebalanceWorkers = rebalanceWorkers;
+        return this;
+    }
+
+    /**
+     * Gets how often the plant thread rebalances the workers.
+     *
+     * @return Rebalance interval in milliseconds.
+     */
+    public long getRebalanceIntervalMillis() {
+        return rebalanceIntervalMillis;
+    }
+
+    /**
+     * Sets how often the plant thread rebalances the workers.
+     *
+     * @param rebalanceIntervalMillis Rebalance interval in milliseconds.
+     * @return This config.
+     */
+    public PlantConfig setRebalanceIntervalMillis(long rebalanceIntervalMillis) {
+        this.rebalanceIntervalMillis = atLeast("rebalanceIntervalMillis", rebalanceIntervalMillis, 1);
+        return this;
+    }
+
+    /**
+     * Gets the maximum number of oranges a peeler takes from its queue at once.
+     *
+     * @return Peel batch size, 1 if oranges are peeled one at a time.
+     */
+    public int getPeelBatchSize() {
+        return peelBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of oranges a peeler takes from its queue at once.
+     *
+     * @param peelBatchSize Peel batch size, 1 to peel oranges one at a time.
+     * @return This config.
+     */
+    public PlantConfig setPeelBatchSize(int peelBatchSize) {
+        this.peelBatchSize = (int) atLeast("peelBatchSize", peelBatchSize, 1);
+        return this;
+    }
+
+    /**
+     * Gets the maximum number of oranges a squeezer takes from its queue at once.
+     *
+     * @return Squeeze batch size, 1 if oranges are squeezed one at a time.
+     */
+    public int getSqueezeBatchSize() {
+        return squeezeBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of oranges a squeezer takes from its queue at once.
+     *
+     * @param squeezeBatchSize Squeeze batch size, 1 to squeeze oranges one at a time.
+     * @return This config.
+     */
+    public PlantConfig setSqueezeBatchSize(int squeezeBatchSize) {
+        this.squeezeBatchSize = (int) atLeast("squeezeBatchSize", squeezeBatchSize, 1);
+        return this;
+    }
+
+    /**
+     * Gets the maximum number of oranges a bottler takes from its queue at once.
+     *
+     * @return Bottle batch size, 1 if oranges are bottled one at a time.
+     */
+    public int getBottleBatchSize() {
+        return bottleBatchSize;
+    }
+
+    /**
+     * Sets the maximum number of oranges a bottler takes from its queue at once.
+     *
+     * @param bottleBatchSize Bottle batch size, 1 to bottle oranges one at a time.
+     * @return This config.
+     */
+    public PlantConfig setBottleBatchSize(int bottleBatchSize) {
+        this.bottleBatchSize = (int) atLeast("bottleBatchSize", bottleBatchSize, 1);
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of oranges every worker takes from its queue at once.
+     *
+     * @param batchSize Batch size of every stage, 1 to process oranges one at a time.
+     * @return This config.
+     */
+    public PlantConfig setBatchSize(int batchSize) {
+        return setPeelBatchSize(batchSize).setSqueezeBatchSize(batchSize).setBottleBatchSize(batchSize);
+    }
+
+    /**
+     * Gets the longest a worker waits for a batch to fill up once it has an orange.
+     *
+     * @return Batch linger time in milliseconds.
+     */
+    public long getBatchLingerMillis() {
+        return batchLingerMillis;
+    }
+
+    /**
+     * Sets the longest a worker waits for a batch to fill up once it has an orange.
+     *
+     * @param batchLingerMillis Batch linger time in milliseconds, 0 to only take oranges that are already waiting.
+     * @return This config.
+     */
+    public PlantConfig setBatchLingerMillis(long batchLingerMillis) {
+        this.batchLingerMillis = atLeast("batchLingerMillis", batchLingerMillis, 0);
+        return this;
+    }
+
+    /**
+     * Gets the number of free oranges each plant keeps for reuse.
+     *
+     * @return Orange pool size, 0 if oranges aren't recycled.
+     */
+    public int getOrangePoolSize() {
+        return orangePoolSize;
+    }
+
+    /**
+     * Sets the number of free oranges each plant keeps for reuse. It should be at least the number of oranges that
+     * can be in the plant at once, the queue capacity times the number of queues plus the workers and fetchers,
+     * otherwise some oranges are still allocated.
+     *
+     * @param orangePoolSize Orange pool size, 0 to create a new orange every time.
+     * @return This config.
+     */
+    public PlantConfig setOrangePoolSize(int orangePoolSize) {
+        this.orangePoolSize = (int) atLeast("orangePoolSize", orangePoolSize, 0);
+        return this;
+    }
+
+    /**
+     * Checks if peeling and squeezing are one stage.
+     *
+     * @return {@code true} if peeling and squeezing are fused.
+     */
+    public boolean isFusePeelSqueeze() {
+        return fusePeelSqueeze;
+    }
+
+    /**
+     * Sets if peeling and squeezing are one stage. The peelers and squeezers all work in the fused stage, and there
+     * is no squeeze queue.
+     *
+     * @param fusePeelSqueeze {@code true} to fuse peeling and squeezing.
+     * @return This config.
+     */
+    public PlantConfig setFusePeelSqueeze(boolean fusePeelSqueeze) {
+        this.fusePeelSqueeze = fusePeelSqueeze;
+        return this;
+    }
+
+    /**
+     * Checks if squeezing and bottling are one stage.
+     *
+     * @return {@code true} if squeezing and bottling are fused.
+     */
+    public boolean isFuseSqueezeBottle() {
+        return fuseSqueezeBottle;
+    }
+
+    /**
+     * Sets if squeezing and bottling are one stage. The squeezers and bottlers all work in the fused stage, and there
+     * is no bottle queue.
+     *
+     * @param fuseSqueezeBottle {@code true} to fuse squeezing and bottling.
+     * @return This config.
+     */
+    public PlantConfig setFuseSqueezeBottle(boolean fuseSqueezeBottle) {
+        this.fuseSqueezeBottle = fuseSqueezeBottle;
+        return this;
+    }
+
+    /**
+     * Gets the states oranges are handed off between threads in, in pipeline order. Fetchers hand off
+     * {@link Orange.State#Fetched} oranges and the last stage hands off {@link Orange.State#Bottled} ones, the states in
+     * between depend on which stages are fused. Each pair of neighbouring states is one stage.
+     *
+     * @return States that have a queue.
+     */
+    public Orange.State[] getHandoffStates() {
+        final int count = 4 - (fusePeelSqueeze ? 1 : 0) - (fuseSqueezeBottle ? 1 : 0);
+        final Orange.State[] states = new Orange.State[count];
+        int ind = 0;
+        states[ind++] = Orange.State.Fetched;
+        if (!fusePeelSqueeze) {
+            states[ind++] = Orange.State.Peeled;
+        }
+        if (!fuseSqueezeBottle) {
+            states[ind++] = Orange.State.Squeezed;
+        }
+        states[ind] = Orange.State.Bottled;
+        return states;
+    }
+
+    /**
+     * Gets the number of workers who start out doing a step.
+     *
+     * @param state State the step takes an orange to, {@link Orange.State#Peeled}, {@link Orange.State#Squeezed} or
+     *              {@link Orange.State#Bottled}.
+     * @return Number of workers.
+     */
+    public int getNumWorkers(Orange.State state) {
+        switch (state) {
+            case Peeled:
+                return numPeelers;
+            case Squeezed:
+                return numSqueezers;
+            case Bottled:
+                return numBottlers;
+            default:
+                throw new IllegalArgumentException("No workers take oranges to " + state);
+        }
+    }
+
+    /**
+     * Sets the number of workers who start out doing a step.
+     *
+     * @param state      State the step takes an orange to, {@link Orange.State#Peeled}, {@link Orange.State#Squeezed}
+     *                   or {@link Orange.State#Bottled}.
+     * @param numWorkers Number of workers.
+     * @return This config.
+     */
+    public PlantConfig setNumWorkers(Orange.State state, int numWorkers) {
+        switch (state) {
+            case Peeled:
+                return setNumPeelers(numWorkers);
+            case Squeezed:
+                return setNumSqueezers(numWorkers);
+            case Bottled:
+                return setNumBottlers(numWorkers);
+            default:
+                throw new IllegalArgumentException("No workers take oranges to " + state);
+        }
+    }
+
+    /**
+     * Gets the batch size of a step.
+     *
+     * @param state State the step takes an orange to, {@link Orange.State#Peeled}, {@link Orange.State#Squeezed} or
+     *              {@link Orange.State#Bottled}.
+     * @return Batch size.
+     */
+    public int getBatchSize(Orange.State state) {
+        switch (state) {
+            case Peeled:
+                return peelBatchSize;
+            case Squeezed:
+                return squeezeBatchSize;
+            case Bottled:
+                return bottleBatchSize;
+            default:
+                throw new IllegalArgumentException("No workers take oranges to " + state);
+        }
+    }
+
+    /**
+     * Checks if idle workers take oranges from the same stage of other plants.
+     *
+     * @return {@code true} if workers steal work across plants.
+     */
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    /**
+     * Sets if idle workers take oranges from the same stage of other plants.
+     *
+     * @param workStealing {@code true} to let workers steal work across plants.
+     * @return This config.
+     */
+    public PlantConfig setWorkStealing(boolean workStealing) {
+        this.workStealing = workStealing;
+        return this;
+    }
+
+    /**
+     * Checks if the metrics of each plant are registered with JMX.
+     *
+     * @return {@code true} if metrics are registered with JMX.
+     */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Sets if the metrics of each plant are registered with JMX.
+     *
+     * @param jmxEnabled {@code true} to register metrics with JMX.
+     * @return This config.
+     */
+    public PlantConfig setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+        return this;
+    }
+
+    /**
+     * Gets how often each plant prints its metrics.
+     *
+     * @return Report interval in milliseconds, 0 if metrics aren't printed.
+     */
+    public long getMetricsReportIntervalMillis() {
+        return metricsReportIntervalMillis;
+    }
+
+    /**
+     * Sets how often each plant prints its metrics.
+     *
+     * @param metricsReportIntervalMillis Report interval in milliseconds, 0 to not print metrics.
+     * @return This config.
+     */
+    public PlantConfig setMetricsReportIntervalMillis(long metricsReportIntervalMillis) {
+        this.metricsReportIntervalMillis = atLeast("metricsReportIntervalMillis", metricsReportIntervalMillis, 0);
+        return this;
+    }
+
+    /**
+     * Gets the longest a stopping plant spends finishing the oranges it already has.
+     *
+     * @return Drain deadline in milliseconds, 0 if oranges aren't finished.
+     */
+    public long getDrainDeadlineMillis() {
+        return drainDeadlineMillis;
+    }
+
+    /**
+     * Sets the longest a stopping plant spends finishing the oranges it already has, counted from when it is
+     * stopped. Anyone still working at the deadline is interrupted, and what they hold is wasted.
+     *
+     * @param drainDeadlineMillis Drain deadline in milliseconds, 0 to stop everyone right away.
+     * @return This config.
+     */
+    public PlantConfig setDrainDeadlineMillis(long drainDeadlineMillis) {
+        this.drainDeadlineMillis = atLeast("drainDeadlineMillis", drainDeadlineMillis, 0);
+        return this;
+    }
+
+    /**
+     * Gets the directory each plant writes its {@link PlantCheckpoint checkpoints} to.
+     *
+     * @return Checkpoint directory, empty if checkpoints aren't written.
+     */
+    public String getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    /**
+     * Sets the directory each plant writes its {@link PlantCheckpoint checkpoints} to, one file per plant. The
+     * directory is created if it doesn't exist.
+     *
+     * @param checkpointDir Checkpoint directory, empty to not write checkpoints.
+     * @return This config.
+     */
+    public PlantConfig setCheckpointDir(String checkpointDir) {
+        this.checkpointDir = checkpointDir == null ? "" : checkpointDir.trim();
+        return this;
+    }
+
+    /**
+     * Gets how often each plant writes a checkpoint.
+     *
+     * @return Checkpoint interval in milliseconds.
+     */
+    public long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    /**
+     * Sets how often each plant writes a checkpoint. A last one is written once the plant has stopped.
+     *
+     * @param checkpointIntervalMillis Checkpoint interval in milliseconds.
+     * @return This config.
+     */
+    public PlantConfig setCheckpointIntervalMillis(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = atLeast("checkpointIntervalMillis", checkpointIntervalMillis, 1);
+        return this;
+    }
+
+    /**
+     * Checks if each plant starts from its last checkpoint.
+     *
+     * @return {@code true} if plants resume from their checkpoints.
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * Sets if each plant starts from the last checkpoint in the {@link #getCheckpointDir() checkpoint directory},
+     * with the counters and oranges it had then. A plant without a checkpoint starts empty.
+     *
+     * @param resume {@code true} to resume from checkpoints.
+     * @return This config.
+     */
+    public PlantConfig setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * Gets how long an orange stays fresh after it is fetched.
+     *
+     * @return Freshness in milliseconds, 0 if oranges never go off.
+     */
+    public long getFreshnessMillis() {
+        return freshnessMillis;
+    }
+
+    /**
+     * Sets how long an orange stays fresh after it is fetched. An orange has to be bottled by then, see
+     * {@link Orange#getDeadlineNanos()}, or it is a deadline miss.
+     *
+     * @param freshnessMillis Freshness in milliseconds, 0 if oranges never go off.
+     * @return This config.
+     */
+    public PlantConfig setFreshnessMillis(long freshnessMillis) {
+        this.freshnessMillis = atLeast("freshnessMillis", freshnessMillis, 0);
+        return this;
+    }
+
+    /**
+     * Gets how much the freshness of each orange differs from {@link #getFreshnessMillis()}.
+     *
+     * @return Spread in milliseconds.
+     */
+    public long getFreshnessSpreadMillis() {
+        return freshnessSpreadMillis;
+    }
+
+    /**
+     * Sets how much the freshness of each orange differs from {@link #getFreshnessMillis()}. Each orange gets a
+     * freshness picked at random that far either side, so oranges fetched at the same time can have different
+     * deadlines. Every orange stays fresh for at least a millisecond.
+     *
+     * @param freshnessSpreadMillis Spread in milliseconds, 0 for every orange to stay fresh as long.
+     * @return This config.
+     */
+    public PlantConfig setFreshnessSpreadMillis(long freshnessSpreadMillis) {
+        this.freshnessSpreadMillis = atLeast("freshnessSpreadMillis", freshnessSpreadMillis, 0);
+        return this;
+    }
+
+    /**
+     * Checks if workers throw away oranges that went off.
+     *
+     * @return {@code true} if expired oranges are dropped.
+     */
+    public boolean isDropExpired() {
+        return dropExpired;
+    }
+
+    /**
+     * Sets if workers throw away oranges that went off before working on them, so the time goes to oranges that can
+     * still make their deadline. Otherwise expired oranges are finished anyway and counted as bottled late. Has no
+     * effect if oranges never go off.
+     *
+     * @param dropExpired {@code true} to drop expired oranges.
+     * @return This config.
+     */
+    public PlantConfig setDropExpired(boolean dropExpired) {
+        this.dropExpired = dropExpired;
+        return this;
+    }
+
+    /**
+     * Gets how long it takes to complete a state.
+     *
+     * @param state State of the orange.
+     * @return Time in milliseconds.
+     */
+    public int getStateMillis(Orange.State state) {
+        return stateMillis[state.ordinal()];
+    }
+
+    /**
+     * Sets how long it takes to complete a state, instead of its {@link Orange.State#timeToComplete default time}.
+     *
+     * @param state  State of the orange.
+     * @param millis Time in milliseconds.
+     * @return This config.
+     */
+    public PlantConfig setStateMillis(Orange.State state, int millis) {
+        stateMillis[state.ordinal()] = (int) atLeast("stateMillis." + state, millis, 1);
+        return this;
+    }
+
+    /**
+     * Gets how long it takes to complete every state.
+     *
+     * @return A new array of times in milliseconds, indexed by {@link Enum#ordinal() ordinal}.
+     */
+    public int[] getStateMillis() {
+        return stateMillis.clone();
+    }
+}
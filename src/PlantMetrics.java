@@ -0,0 +1,220 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The {@code PlantMetrics} class holds the instrumentation of a {@link Plant}:
+ * <ul>
+ *     <li>How long oranges wait in the peel, squeeze and bottle queues.</li>
+ *     <li>How long each {@link Orange.State} takes to complete.</li>
+ *     <li>How long it takes an orange to get from being fetched to being bottled.</li>
+ *     <li>The queue depth and worker utilisation of each {@link Stage}, sampled by the plant thread.</li>
+ * </ul>
+ * Times are recorded in {@link LatencyHistogram histograms}, which don't lock or allocate. Everything can be
+ * registered with the platform MBean server under the {@value #JMX_DOMAIN} domain, and {@link #report()} formats
+ * it for the periodic reporter.
+ */
+public class PlantMetrics {
+    /** JMX domain the metrics are registered under. */
+    private static final String JMX_DOMAIN = "JuiceBottler";
+
+    /** Time oranges wait in the peel queue. */
+    private final LatencyHistogram peelQueueWait;
+
+    /** Time oranges wait in the squeeze queue. */
+    private final LatencyHistogram squeezeQueueWait;
+
+    /** Time oranges wait in the bottle queue. */
+    private final LatencyHistogram bottleQueueWait;
+
+    /** Time to complete each {@link Orange.State}, indexed by {@link Enum#ordinal() ordinal}. */
+    private final LatencyHistogram[] stateTimes;
+
+    /** Time from an orange being fetched to it being bottled. */
+    private final LatencyHistogram endToEnd;
+
+    /** Stages whose queue depth and utilisation are sampled. */
+    private Stage[] stages;
+
+    /** Names the metrics are registered under, empty if they aren't registered. */
+    private final List<ObjectName> registered;
+
+    /** Creates a new PlantMetrics object with empty histograms. */
+    public PlantMetrics() {
+        peelQueueWait = new LatencyHistogram();
+        squeezeQueueWait = new LatencyHistogram();
+        bottleQueueWait = new LatencyHistogram();
+        stateTimes = new LatencyHistogram[Orange.State.values().length];
+        for (int i = 0; i < stateTimes.length; i++) {
+            stateTimes[i] = new LatencyHistogram();
+        }
+        endToEnd = new LatencyHistogram();
+        stages = new Stage[0];
+        registered = new ArrayList<>();
+    }
+
+    /**
+     * Sets the stages whose queue depth and utilisation are sampled and reported.
+     *
+     * @param stages Stages of the plant, in pipeline order.
+     */
+    void setStages(Stage[] stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * Gets the histogram of how long oranges wait in the peel queue.
+     *
+     * @return Peel queue wait times.
+     */
+    public LatencyHistogram getPeelQueueWait() {
+        return peelQueueWait;
+    }
+
+    /**
+     * Gets the histogram of how long oranges wait in the squeeze queue.
+     *
+     * @return Squeeze queue wait times.
+     */
+    public LatencyHistogram getSqueezeQueueWait() {
+        return squeezeQueueWait;
+    }
+
+    /**
+     * Gets the histogram of how long oranges wait in the bottle queue.
+     *
+     * @return Bottle queue wait times.
+     */
+    public LatencyHistogram getBottleQueueWait() {
+        return bottleQueueWait;
+    }
+
+    /**
+     * Gets the histogram of how long oranges wait in the queue that holds oranges in a state.
+     *
+     * @param state State of the oranges in the queue, {@link Orange.State#Fetched}, {@link Orange.State#Peeled} or
+     *              {@link Orange.State#Squeezed}.
+     * @return Wait times of the queue, or {@code null} if the queue isn't metered.
+     */
+    public LatencyHistogram getQueueWait(Orange.State state) {
+        switch (state) {
+            case Fetched:
+                return peelQueueWait;
+            case Peeled:
+                return squeezeQueueWait;
+            case Squeezed:
+                return bottleQueueWait;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Gets the histogram of how long a state takes to complete.
+     *
+     * @param state State to get the times of.
+     * @return Times to complete the state.
+     */
+    public LatencyHistogram getStateTime(Orange.State state) {
+        return stateTimes[state.ordinal()];
+    }
+
+    /**
+     * Gets the histogram of how long it takes an orange to get from being fetched to being bottled.
+     *
+     * @return End to end times.
+     */
+    public LatencyHistogram getEndToEnd() {
+        return endToEnd;
+    }
+
+    /** Samples the utilisation of every stage, should only be called from the plant thread. */
+    public void sample() {
+        for (Stage s : stages) {
+            s.sampleUtilisation();
+        }
+    }
+
+    /**
+     * Formats the latest metrics in a few lines.
+     *
+     * @return The metrics.
+     */
+    public String report() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("  queue wait p50/p99/max ms: peel=").append(peelQueueWait)
+                .append(" squeeze=").append(squeezeQueueWait)
+                .append(" bottle=").append(bottleQueueWait).append('\n');
+        sb.append("  stage time p50/p99/max ms:");
+        for (Orange.State state : Orange.State.values()) {
+            if (stateTimes[state.ordinal()].getCount() > 0) {
+                sb.append(' ').append(state).append('=').append(stateTimes[state.ordinal()]);
+            }
+        }
+        sb.append('\n');
+        sb.append("  fetch to bottle p50/p99/max ms: ").append(endToEnd).append('\n');
+        sb.append("  depth/workers/utilisation:");
+        for (Stage s : stages) {
+            sb.append(' ').append(s.getName()).append('=').append(s.getQueueDepth())
+                    .append('/').append(s.getWorkerCount())
+                    .append('/').append(Math.round(s.getUtilisation() * 100)).append('%');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Registers every histogram and stage with the platform MBean server. Failures are printed, not thrown, the plant
+     * works the same without JMX.
+     *
+     * @param plantNum Number of the plant, used in the names.
+     */
+    public void register(int plantNum) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, plantNum, "Latency", "peelQueueWait", peelQueueWait);
+            register(server, plantNum, "Latency", "squeezeQueueWait", squeezeQueueWait);
+            register(server, plantNum, "Latency", "bottleQueueWait", bottleQueueWait);
+            for (Orange.State state : Orange.State.values()) {
+                register(server, plantNum, "Latency", "state" + state, stateTimes[state.ordinal()]);
+            }
+            register(server, plantNum, "Latency", "fetchToBottle", endToEnd);
+            for (Stage s : stages) {
+                register(server, plantNum, "Stage", s.getName(), s);
+            }
+        } catch (JMException e) {
+            System.err.println("Plant[" + plantNum + "] couldn't register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers one MBean.
+     *
+     * @param server   Server to register with.
+     * @param plantNum Number of the plant.
+     * @param type     Type of the MBean.
+     * @param name     Name of the MBean.
+     * @param bean     The MBean.
+     * @throws JMException If the MBean can't be registered.
+     */
+    private void register(MBeanServer server, int plantNum, String type, String name, Object bean) throws JMException {
+        final ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",plant=" + plantNum + ",name=" + name);
+        server.registerMBean(bean, objectName);
+        registered.add(objectName);
+    }
+
+    /** Removes everything {@link #register(int)} registered. */
+    public void unregister() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                System.err.println("Couldn't unregister " + name + ": " + e.getMessage());
+            }
+        }
+        registered.clear();
+    }
+}
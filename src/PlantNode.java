@@ -0,0 +1,374 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The {@code PlantNode} class runs some of the stages of a plant in its own JVM, as one of the nodes a
+ * {@link Coordinator} spreads a plant over. The first node also runs the {@link Fetcher fetchers}, the last also runs
+ * the {@link BottleAssembler}, and every node is connected to the next by an {@link OrangeLink}.
+ *
+ * <p>Usage: {@code java PlantNode --coordinator=<host>:<port>}. The node connects to the coordinator, which tells it
+ * which stages to run, with which settings, and where the next node is. The node then waits to be started and
+ * stopped, and reports its counters once it has finished its oranges.</p>
+ *
+ * <p>Workers of a node stay in their stage, oranges aren't {@link PlantConfig#isRebalanceWorkers() rebalanced},
+ * {@link PlantConfig#isWorkStealing() stolen} or {@link PlantConfig#getCheckpointDir() checkpointed}.</p>
+ */
+public class PlantNode {
+    /** How long to wait between checks for the node upstream to end its stream, or the link to send everything. */
+    private static final long LINK_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** Max amount of time to wait at a time to put a poison pill in a full queue. */
+    private static final int MAX_TIMEOUT_TIME_MILLIS = 100;
+
+    /** Number of this node, from 1 in pipeline order. */
+    private final int nodeNum;
+
+    /** Settings of the plant. */
+    private final PlantConfig config;
+
+    /** Index of the first stage of the plant this node runs. */
+    private final int firstStage;
+
+    /** Queues of this node, the first one before its first stage and the last one after its last stage. */
+    private final ValidatingChannel[] queues;
+
+    /** Stages this node runs, in pipeline order. */
+    private final Stage[] stages;
+
+    /** Workers of the {@link #stages}, in stage order. */
+    private final Worker[] workers;
+
+    /** Fetchers feeding the first queue, empty unless this node runs the first stage. */
+    private final Fetcher[] fetchers;
+
+    /** Groups processed oranges into bottles, or null unless this node runs the last stage. */
+    private final BottleAssembler assembler;
+
+    /** Moves oranges from and to the nodes before and after this one. */
+    private final OrangeLink link;
+
+    /** Keeps track of oranges provided by the {@link #fetchers}. */
+    private final LongAdder orangesProvided;
+
+    /**
+     * Creates a new PlantNode object.
+     *
+     * @param nodeNum    Number of this node, from 1 in pipeline order.
+     * @param config     Settings of the plant.
+     * @param firstStage Index of the first stage this node runs.
+     * @param endStage   Index after the last stage this node runs.
+     * @param server     Channel the node before this one connects to, or null if this node runs the first stage.
+     * @param downstream Connected channel to the next node, or null if this node runs the last stage.
+     * @throws IOException If the link can't be set up.
+     */
+    public PlantNode(int nodeNum, PlantConfig config, int firstStage, int endStage, ServerSocketChannel server,
+                     SocketChannel downstream) throws IOException {
+        this.nodeNum = nodeNum;
+        this.config = config;
+        this.firstStage = firstStage;
+        final ThreadFactory threadFactory = config.getExecutionMode().threadFactory();
+        final Orange.State[] handoffStates = config.getHandoffStates();
+        final int numStages = handoffStates.length - 1;
+        final int[] stateMillis = config.getStateMillis();
+        final PlantMetrics metrics = new PlantMetrics();
+
+        // The link is the only one on its side of the first and last queues
+        stages = new Stage[endStage - firstStage];
+        queues = new ValidatingChannel[stages.length + 1];
+        final int[] stageWorkers = new int[stages.length];
+        for (int s = 0; s < stages.length; s++) {
+            stageWorkers[s] = Plant.stageWorkers(config, handoffStates, firstStage + s);
+        }
+        for (int q = 0; q < queues.length; q++) {
+            final int global = firstStage + q;
+            final boolean singleProducer = q == 0 ? global > 0 || config.getNumFetchers() == 1 : stageWorkers[q - 1] == 1;
+            final boolean singleConsumer = q == stages.length || stageWorkers[q] == 1;
+            final StageChannel channel = config.getChannelType().create(config.getQueueCapacity(), singleProducer,
+                    singleConsumer, config.getWaitStrategy());
+            final String name = global == numStages ? "done" : Plant.stageName(handoffStates, global);
+            queues[q] = new ValidatingChannel(channel, handoffStates[global], name + " queue");
+        }
+
+        int totalWorkers = 0;
+        for (int s = 0; s < stages.length; s++) {
+            final int global = firstStage + s;
+            final Orange.State firstStep = Orange.State.values()[handoffStates[global].ordinal() + 1];
+            stages[s] = new Stage(Plant.stageName(handoffStates, global), queues[s], queues[s + 1],
+                    handoffStates[global], handoffStates[global + 1], stateMillis, config.getBatchSize(firstStep),
+                    config.getBatchLingerMillis());
+            stages[s].setDropExpired(config.isDropExpired());
+            totalWorkers += stageWorkers[s];
+        }
+        metrics.setStages(stages);
+        workers = new Worker[totalWorkers];
+        int ind = 0;
+        for (int s = 0; s < stages.length; s++) {
+            for (int i = 0; i < stageWorkers[s]; i++) {
+                workers[ind] = new Worker(nodeNum, ind + 1, stages[s], metrics, threadFactory);
+                ind++;
+            }
+        }
+
+        final OrangePool pool = new OrangePool(config.getOrangePoolSize(), stateMillis, config.getFreshnessMillis(),
+                config.getFreshnessSpreadMillis());
+        orangesProvided = new LongAdder();
+        fetchers = new Fetcher[firstStage == 0 ? config.getNumFetchers() : 0];
+        for (int i = 0; i < fetchers.length; i++) {
+            fetchers[i] = new Fetcher(nodeNum, i + 1, queues[0], orangesProvided, metrics, pool, threadFactory);
+        }
+        assembler = endStage == numStages ? new BottleAssembler(nodeNum, queues[stages.length],
+                config.getOrangesPerBottle(), metrics, pool, threadFactory) : null;
+        link = new OrangeLink(nodeNum, server, server != null ? queues[0] : null, downstream,
+                downstream != null ? queues[stages.length] : null, stateMillis, threadFactory);
+    }
+
+    /**
+     * Main method, runs a node for the coordinator given as {@code --coordinator=<host>:<port>}.
+     *
+     * @param args Arguments of the node.
+     */
+    public static void main(String[] args) {
+        String coordinator = null;
+        for (String arg : args) {
+            if (arg.startsWith("--coordinator=")) {
+                coordinator = arg.substring("--coordinator=".length());
+            }
+        }
+        final int colon = coordinator == null ? -1 : coordinator.lastIndexOf(':');
+        if (colon < 0) {
+            System.err.println("Usage: java PlantNode --coordinator=<host>:<port>");
+            System.exit(1);
+            return;
+        }
+        try {
+            run(coordinator.substring(0, colon), Integer.parseInt(coordinator.substring(colon + 1)));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Node failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Connects to the coordinator, and runs the stages it assigns until it stops the node.
+     *
+     * @param host Host of the coordinator.
+     * @param port Port of the coordinator.
+     * @throws IOException If the coordinator or the next node can't be reached.
+     */
+    private static void run(String host, int port) throws IOException {
+        final ServerSocketChannel server = OrangeLink.listen(0);
+        try (Socket control = new Socket(host, port)) {
+            final DataInputStream in = new DataInputStream(control.getInputStream());
+            final DataOutputStream out = new DataOutputStream(control.getOutputStream());
+            out.writeUTF(Coordinator.HELLO);
+            out.writeInt(server.socket().getLocalPort());
+            out.flush();
+
+            Coordinator.expect(in, Coordinator.ASSIGN);
+            final int nodeNum = in.readInt();
+            final int firstStage = in.readInt();
+            final int endStage = in.readInt();
+            final String downstreamHost = in.readUTF();
+            final int downstreamPort = in.readInt();
+            final Properties settings = new Properties();
+            settings.load(new StringReader(in.readUTF()));
+            final PlantConfig config = new PlantConfig().setAll(settings);
+
+            if (firstStage == 0) {
+                server.close();
+            }
+            final SocketChannel downstream = downstreamHost.isEmpty() ? null
+                    : OrangeLink.connect(new InetSocketAddress(downstreamHost, downstreamPort));
+            final PlantNode node = new PlantNode(nodeNum, config, firstStage, endStage,
+                    firstStage == 0 ? null : server, downstream);
+            out.writeUTF(Coordinator.READY);
+            out.flush();
+
+            Coordinator.expect(in, Coordinator.START);
+            node.start();
+            Coordinator.expect(in, Coordinator.STOP);
+            node.stop();
+
+            final StringWriter stats = new StringWriter();
+            node.getStats().store(stats, null);
+            out.writeUTF(Coordinator.STATS);
+            out.writeUTF(stats.toString());
+            out.flush();
+        } finally {
+            server.close();
+        }
+    }
+
+    /** Starts the link, the assembler, the workers and then the fetchers. */
+    public void start() {
+        System.out.println("Node[" + nodeNum + "] Processing oranges");
+        link.start();
+        if (assembler != null) {
+            assembler.start();
+        }
+        for (Worker w : workers) {
+            w.start();
+        }
+        for (Fetcher f : fetchers) {
+            f.start();
+        }
+    }
+
+    /**
+     * Stops the node once it has finished its oranges, like {@link Plant#waitToStop()}: the fetchers stop, or the
+     * node before this one ends its stream, then each stage gets a poison pill per worker behind its last orange, and
+     * the last queue is bottled or sent to the next node. Anyone still working at the
+     * {@link PlantConfig#getDrainDeadlineMillis() drain deadline} is stopped right away.
+     */
+    public void stop() {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getDrainDeadlineMillis());
+        boolean drained = config.getDrainDeadlineMillis() > 0;
+        for (Fetcher f : fetchers) {
+            f.stop();
+        }
+        for (Fetcher f : fetchers) {
+            drained &= f.waitToStop(deadline - System.nanoTime());
+        }
+        while (drained && !link.isInboundDone()) {
+            drained = System.nanoTime() < deadline;
+            LockSupport.parkNanos(LINK_WAIT_NANOS);
+        }
+        int ind = 0;
+        for (Stage s : stages) {
+            final int first = ind;
+            ind += s.getWorkerCount();
+            drained = drained && drainStage(s, first, ind, deadline);
+        }
+        if (drained) {
+            if (assembler != null) {
+                drained = offerPill(queues[stages.length], deadline);
+            } else {
+                link.finish();
+                while (drained && !link.isOutboundDone()) {
+                    drained = System.nanoTime() < deadline;
+                    LockSupport.parkNanos(LINK_WAIT_NANOS);
+                }
+            }
+        }
+
+        if (!drained) {
+            for (Fetcher f : fetchers) {
+                f.halt();
+            }
+            for (Worker w : workers) {
+                w.halt();
+            }
+            for (Fetcher f : fetchers) {
+                f.waitToStop();
+            }
+            for (Worker w : workers) {
+                w.waitToStop();
+            }
+            if (assembler != null) {
+                assembler.stop();
+            }
+        }
+        if (assembler != null) {
+            assembler.waitToStop();
+        }
+        link.close();
+        if (!drained) {
+            Plant.removePills(queues);
+        }
+        System.out.println("Node[" + nodeNum + "] Done");
+    }
+
+    /**
+     * Gives each worker of a stage a poison pill behind the stage's last orange, and waits for them to finish.
+     *
+     * @param stage    Stage to drain.
+     * @param first    Index of the stage's first worker.
+     * @param end      Index after the stage's last worker.
+     * @param deadline {@link System#nanoTime()} to give up at.
+     * @return {@code true} if every worker of the stage finished before the deadline.
+     */
+    private boolean drainStage(Stage stage, int first, int end, long deadline) {
+        for (int w = first; w < end; w++) {
+            if (!offerPill(stage.getTakeQueue(), deadline)) {
+                return false;
+            }
+        }
+        for (int w = first; w < end; w++) {
+            if (!workers[w].waitToStop(deadline - System.nanoTime())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts a poison pill in a queue, waiting for room until a deadline.
+     *
+     * @param queue    Queue to put the pill in.
+     * @param deadline {@link System#nanoTime()} to give up at.
+     * @return {@code true} if the pill was put in the queue.
+     */
+    private boolean offerPill(StageChannel queue, long deadline) {
+        try {
+            while (System.nanoTime() < deadline) {
+                if (queue.offer(Orange.POISON_PILL, MAX_TIMEOUT_TIME_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Node[" + nodeNum + "] interrupted when stopping.");
+        }
+        return false;
+    }
+
+    /**
+     * Gets the counters of this node, for the {@link Coordinator} to add up.
+     *
+     * @return Counters named {@code provided}, {@code completed.<stage index>}, {@code removed}, {@code expired},
+     *         {@code dropped}, {@code leftInQueue}, {@code sent}, {@code received}, {@code processed}, {@code bottles},
+     *         {@code notBottled} and {@code late}.
+     */
+    public Properties getStats() {
+        final Properties stats = new Properties();
+        stats.setProperty("provided", Long.toString(orangesProvided.sum()));
+        long expired = 0;
+        long dropped = 0;
+        for (int s = 0; s < stages.length; s++) {
+            stats.setProperty("completed." + (firstStage + s), Long.toString(stages[s].getOrangesCompleted()));
+            expired += stages[s].getOrangesExpired();
+            dropped += stages[s].getOrangesDropped();
+        }
+        long removed = 0;
+        long left = 0;
+        for (int q = 0; q < queues.length; q++) {
+            removed += queues[q].getOrangesRemoved();
+            // The done queue is emptied by the assembler
+            if (q < stages.length || assembler == null) {
+                left += queues[q].size();
+            }
+        }
+        stats.setProperty("removed", Long.toString(removed));
+        stats.setProperty("expired", Long.toString(expired));
+        stats.setProperty("dropped", Long.toString(dropped));
+        stats.setProperty("leftInQueue", Long.toString(left));
+        stats.setProperty("sent", Long.toString(link.getOrangesSent()));
+        stats.setProperty("received", Long.toString(link.getOrangesReceived()));
+        stats.setProperty("processed", Long.toString(assembler != null ? assembler.getOrangesProcessed() : 0));
+        stats.setProperty("bottles", Long.toString(assembler != null ? assembler.getBottles() : 0));
+        stats.setProperty("notBottled", Long.toString(assembler != null ? assembler.getOrangesInPartialBottle() : 0));
+        stats.setProperty("late", Long.toString(assembler != null ? assembler.getOrangesLate() : 0));
+        return stats;
+    }
+}
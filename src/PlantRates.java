@@ -0,0 +1,136 @@
+/**
+ * The {@code PlantRates} class holds how fast a {@link Plant} worked during one interval, worked out from two
+ * {@link PlantSnapshot snapshots} with {@link PlantSnapshot#ratesSince(PlantSnapshot)}. Rates never change after they
+ * are created.
+ */
+public class PlantRates {
+    /** Length of the interval, in seconds. */
+    private final double seconds;
+
+    /** Oranges provided by the fetchers per second. */
+    private final double providedPerSecond;
+
+    /** Names of the stages, in pipeline order. */
+    private final String[] stageNames;
+
+    /** Oranges completed by each stage per second, in pipeline order. */
+    private final double[] completedPerSecond;
+
+    /** Oranges consumed by the bottle assembler per second. */
+    private final double processedPerSecond;
+
+    /** Full bottles assembled per second. */
+    private final double bottlesPerSecond;
+
+    /**
+     * Creates a new PlantRates object. The arrays are kept, so the caller must not change them afterwards.
+     *
+     * @param seconds            Length of the interval, in seconds.
+     * @param providedPerSecond  Oranges provided per second.
+     * @param stageNames         Names of the stages, in pipeline order.
+     * @param completedPerSecond Oranges completed by each stage per second, in pipeline order.
+     * @param processedPerSecond Oranges processed per second.
+     * @param bottlesPerSecond   Full bottles per second.
+     */
+    PlantRates(double seconds, double providedPerSecond, String[] stageNames, double[] completedPerSecond,
+               double processedPerSecond, double bottlesPerSecond) {
+        this.seconds = seconds;
+        this.providedPerSecond = providedPerSecond;
+        this.stageNames = stageNames;
+        this.completedPerSecond = completedPerSecond;
+        this.processedPerSecond = processedPerSecond;
+        this.bottlesPerSecond = bottlesPerSecond;
+    }
+
+    /**
+     * Divides a count by the length of an interval.
+     *
+     * @param count   Number of things counted during the interval.
+     * @param seconds Length of the interval, in seconds.
+     * @return Count per second, 0 if the interval is empty.
+     */
+    static double perSecond(long count, double seconds) {
+        return seconds > 0 ? count / seconds : 0;
+    }
+
+    /**
+     * Gets the length of the interval.
+     *
+     * @return Length of the interval, in seconds.
+     */
+    public double getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * Gets the oranges provided by the fetchers per second.
+     *
+     * @return Oranges provided per second.
+     */
+    public double getProvidedPerSecond() {
+        return providedPerSecond;
+    }
+
+    /**
+     * Gets the number of stages of the plant.
+     *
+     * @return Number of stages.
+     */
+    public int getStageCount() {
+        return completedPerSecond.length;
+    }
+
+    /**
+     * Gets the name of a stage.
+     *
+     * @param stage Index of the stage, in pipeline order.
+     * @return Name of the stage.
+     */
+    public String getStageName(int stage) {
+        return stageNames[stage];
+    }
+
+    /**
+     * Gets the oranges a stage completed per second.
+     *
+     * @param stage Index of the stage, in pipeline order.
+     * @return Oranges completed by the stage per second.
+     */
+    public double getCompletedPerSecond(int stage) {
+        return completedPerSecond[stage];
+    }
+
+    /**
+     * Gets the oranges consumed by the bottle assembler per second.
+     *
+     * @return Oranges processed per second.
+     */
+    public double getProcessedPerSecond() {
+        return processedPerSecond;
+    }
+
+    /**
+     * Gets the full bottles assembled per second.
+     *
+     * @return Bottles per second.
+     */
+    public double getBottlesPerSecond() {
+        return bottlesPerSecond;
+    }
+
+    /**
+     * Gets the rates on one line, like {@code fetch=12.0/s peel=11.5/s ... bottles=3.0/s}.
+     *
+     * @return Rates of the interval.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("fetch=%.1f/s", providedPerSecond));
+        for (int s = 0; s < completedPerSecond.length; s++) {
+            sb.append(String.format(" %s=%.1f/s", stageNames[s], completedPerSecond[s]));
+        }
+        sb.append(String.format(" assemble=%.1f/s bottles=%.1f/s", processedPerSecond, bottlesPerSecond));
+        return sb.toString();
+    }
+}
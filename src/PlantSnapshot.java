@@ -0,0 +1,197 @@
+/**
+ * The {@code PlantSnapshot} class holds the counters of a {@link Plant} read at one moment, taken with
+ * {@link Plant#snapshot()} while the plant keeps running. A snapshot never changes after it is taken.
+ *
+ * <p>The counters are read from the end of the pipeline to the start, and every thread counts an orange before it
+ * hands it to the next, so a snapshot is always consistent even though nothing is locked: no stage has completed more
+ * oranges than the stage before it, and no orange is counted as processed before it was provided. Two snapshots give
+ * the {@link #ratesSince(PlantSnapshot) rates} of the interval between them.</p>
+ */
+public class PlantSnapshot {
+    /** {@link System#nanoTime()} when the snapshot was taken. */
+    private final long timeNanos;
+
+    /** Number of oranges provided by the fetchers. */
+    private final long provided;
+
+    /** Names of the stages, in pipeline order. */
+    private final String[] stageNames;
+
+    /** Number of oranges completed by each stage, in pipeline order. */
+    private final long[] completed;
+
+    /** Number of oranges consumed by the bottle assembler. */
+    private final long processed;
+
+    /** Number of full bottles assembled. */
+    private final long bottles;
+
+    /** Number of oranges removed from queues because they were in the wrong one. */
+    private final long removed;
+
+    /** Number of oranges thrown away by the stages because they had gone off. */
+    private final long expired;
+
+    /** Number of oranges consumed by the bottle assembler after they had gone off. */
+    private final long late;
+
+    /**
+     * Creates a new PlantSnapshot object. The arrays are kept, so the caller must not change them afterwards.
+     *
+     * @param timeNanos  {@link System#nanoTime()} when the snapshot was taken.
+     * @param provided   Number of oranges provided.
+     * @param stageNames Names of the stages, in pipeline order.
+     * @param completed  Number of oranges completed by each stage, in pipeline order.
+     * @param processed  Number of oranges processed.
+     * @param bottles    Number of full bottles.
+     * @param removed    Number of oranges removed from queues.
+     * @param expired    Number of oranges thrown away because they had gone off.
+     * @param late       Number of oranges processed after they had gone off.
+     */
+    PlantSnapshot(long timeNanos, long provided, String[] stageNames, long[] completed, long processed, long bottles,
+                  long removed, long expired, long late) {
+        this.timeNanos = timeNanos;
+        this.provided = provided;
+        this.stageNames = stageNames;
+        this.completed = completed;
+        this.processed = processed;
+        this.bottles = bottles;
+        this.removed = removed;
+        this.expired = expired;
+        this.late = late;
+    }
+
+    /**
+     * Gets the rates of the plant between an earlier snapshot and this one.
+     *
+     * @param earlier Snapshot of the same plant, taken before this one.
+     * @return Rates of the interval between the snapshots.
+     * @throws IllegalArgumentException If the snapshot was taken after this one or has different stages.
+     */
+    public PlantRates ratesSince(PlantSnapshot earlier) {
+        if (earlier.timeNanos > timeNanos || earlier.completed.length != completed.length) {
+            throw new IllegalArgumentException("Snapshot isn't an earlier snapshot of the same plant");
+        }
+        final double seconds = (timeNanos - earlier.timeNanos) / 1e9;
+        final double[] stageRates = new double[completed.length];
+        for (int s = 0; s < completed.length; s++) {
+            stageRates[s] = PlantRates.perSecond(completed[s] - earlier.completed[s], seconds);
+        }
+        return new PlantRates(seconds,
+                PlantRates.perSecond(provided - earlier.provided, seconds),
+                stageNames, stageRates,
+                PlantRates.perSecond(processed - earlier.processed, seconds),
+                PlantRates.perSecond(bottles - earlier.bottles, seconds));
+    }
+
+    /**
+     * Gets when the snapshot was taken.
+     *
+     * @return {@link System#nanoTime()} when the snapshot was taken.
+     */
+    public long getTimeNanos() {
+        return timeNanos;
+    }
+
+    /**
+     * Gets the number of oranges provided by the fetchers.
+     *
+     * @return Number of oranges provided.
+     */
+    public long getProvided() {
+        return provided;
+    }
+
+    /**
+     * Gets the number of stages of the plant.
+     *
+     * @return Number of stages.
+     */
+    public int getStageCount() {
+        return completed.length;
+    }
+
+    /**
+     * Gets the name of a stage.
+     *
+     * @param stage Index of the stage, in pipeline order.
+     * @return Name of the stage.
+     */
+    public String getStageName(int stage) {
+        return stageNames[stage];
+    }
+
+    /**
+     * Gets the number of oranges a stage had completed.
+     *
+     * @param stage Index of the stage, in pipeline order.
+     * @return Number of oranges completed by the stage.
+     */
+    public long getCompleted(int stage) {
+        return completed[stage];
+    }
+
+    /**
+     * Gets the number of oranges consumed by the bottle assembler.
+     *
+     * @return Number of oranges processed.
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Gets the number of full bottles assembled.
+     *
+     * @return Number of bottles.
+     */
+    public long getBottles() {
+        return bottles;
+    }
+
+    /**
+     * Gets the number of oranges removed from queues because they were in the wrong one.
+     *
+     * @return Number of oranges removed.
+     */
+    public long getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Gets the number of oranges thrown away by the stages because they had gone off.
+     *
+     * @return Number of oranges expired.
+     */
+    public long getExpired() {
+        return expired;
+    }
+
+    /**
+     * Gets the number of oranges consumed by the bottle assembler after they had gone off.
+     *
+     * @return Number of oranges late.
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * Gets the number of oranges that missed their deadline, either thrown away or processed late.
+     *
+     * @return Number of deadline misses.
+     */
+    public long getDeadlineMisses() {
+        return expired + late;
+    }
+
+    /**
+     * Gets the number of oranges provided that haven't reached the bottle assembler, or been removed or thrown away
+     * yet.
+     *
+     * @return Number of oranges in the plant, never negative.
+     */
+    public long getInFlight() {
+        return provided - processed - removed - expired;
+    }
+}
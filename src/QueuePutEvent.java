@@ -0,0 +1,49 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The {@code QueuePutEvent} class is a JDK Flight Recorder event for a {@link Worker} or {@link Fetcher} handing
+ * oranges to the next queue. A long event means the thread was blocked on a full queue: the stages after it can't
+ * keep up.
+ */
+@Name(QueuePutEvent.NAME)
+@Label("Queue Put")
+@Category({"Juice Bottler", "Queues"})
+@Description("A worker or fetcher handing oranges to the next queue, blocked while it is full")
+@StackTrace(false)
+public class QueuePutEvent extends Event {
+    /** Name of the event in a recording. */
+    public static final String NAME = "JuiceBottler.QueuePut";
+
+    /** Type of the event, looked up once so checking if it is recorded costs a field read. */
+    private static final EventType TYPE = EventType.getEventType(QueuePutEvent.class);
+
+    /** Stage name used for the fetchers, which hand oranges to the first queue. */
+    public static final String FETCH_STAGE = "fetch";
+
+    /** Name of the plant of the thread. */
+    @Label("Plant")
+    String plant;
+
+    /** Name of the stage handing the oranges off, or {@link #FETCH_STAGE} for a fetcher. */
+    @Label("Stage")
+    String stage;
+
+    /** Number of oranges handed off. */
+    @Label("Oranges")
+    int oranges;
+
+    /**
+     * Checks if a running recording takes this event, see {@link OrangeStageEvent#isRecorded()}.
+     *
+     * @return {@code true} if the event is enabled.
+     */
+    static boolean isRecorded() {
+        return TYPE.isEnabled();
+    }
+}
@@ -0,0 +1,45 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The {@code QueueTakeEvent} class is a JDK Flight Recorder event for a {@link Worker} waiting on its stage's take
+ * queue. A long event that took no orange means the stage is starved: the stages before it can't keep up.
+ */
+@Name(QueueTakeEvent.NAME)
+@Label("Queue Take")
+@Category({"Juice Bottler", "Queues"})
+@Description("A worker waiting for an orange on the take queue of its stage")
+@StackTrace(false)
+public class QueueTakeEvent extends Event {
+    /** Name of the event in a recording. */
+    public static final String NAME = "JuiceBottler.QueueTake";
+
+    /** Type of the event, looked up once so checking if it is recorded costs a field read. */
+    private static final EventType TYPE = EventType.getEventType(QueueTakeEvent.class);
+
+    /** Name of the plant of the worker. */
+    @Label("Plant")
+    String plant;
+
+    /** Name of the stage whose take queue was waited on. */
+    @Label("Stage")
+    String stage;
+
+    /** True if an orange was taken, false if the wait timed out. */
+    @Label("Took Orange")
+    boolean tookOrange;
+
+    /**
+     * Checks if a running recording takes this event, see {@link OrangeStageEvent#isRecorded()}.
+     *
+     * @return {@code true} if the event is enabled.
+     */
+    static boolean isRecorded() {
+        return TYPE.isEnabled();
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * The {@code RecordingAnalyzer} class reads a JDK Flight Recorder recording of running plants and breaks down, for each
+ * stage, how its threads spent their time: working on oranges ({@link OrangeStageEvent}), starved waiting on an empty
+ * take queue ({@link QueueTakeEvent}) or blocked handing off to a full queue ({@link QueuePutEvent}). The stage whose
+ * threads are neither starved nor blocked is the bottleneck. Stages of every plant are added up.
+ *
+ * <p>It also adds up the lock and park events the JDK records, {@code jdk.JavaMonitorEnter} and
+ * {@code jdk.ThreadPark}, by kind of thread, to show if threads wait on locks rather than on queues.</p>
+ *
+ * <p>Usage: {@code java RecordingAnalyzer <recording.jfr>}, for example after
+ * {@code java -XX:StartFlightRecording:filename=plant.jfr Plant}, or {@code ant record analyze}.</p>
+ */
+public class RecordingAnalyzer {
+    /** Name of the JDK's event for a thread waiting to enter a monitor. */
+    private static final String MONITOR_ENTER = "jdk.JavaMonitorEnter";
+
+    /** Name of the JDK's event for a thread parked, for example on a lock or condition. */
+    private static final String THREAD_PARK = "jdk.ThreadPark";
+
+    /**
+     * Time the threads of one stage spent working, starved and blocked.
+     */
+    private static class StageStalls {
+        /** Name of the stage. */
+        private final String name;
+
+        /** Ordinal of the state the stage leaves oranges in, used to sort stages in pipeline order. */
+        private int order = -1;
+
+        /** Number of oranges the stage worked on. */
+        private long oranges;
+
+        /** Time spent working on oranges, in nanoseconds. */
+        private long workNanos;
+
+        /** Time spent waiting on the take queue, in nanoseconds. */
+        private long starvedNanos;
+
+        /** Number of waits on the take queue that timed out without an orange. */
+        private long emptyTakes;
+
+        /** Time spent handing oranges off, in nanoseconds. */
+        private long blockedNanos;
+
+        /**
+         * Creates a new StageStalls object.
+         *
+         * @param name Name of the stage.
+         */
+        private StageStalls(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Gets the time the stage's threads spent working, starved or blocked.
+         *
+         * @return Total time in nanoseconds.
+         */
+        private long totalNanos() {
+            return workNanos + starvedNanos + blockedNanos;
+        }
+
+        /**
+         * Gets a time as a percentage of {@link #totalNanos()}.
+         *
+         * @param nanos Time in nanoseconds.
+         * @return Percentage, 0 if nothing was recorded.
+         */
+        private double percent(long nanos) {
+            final long total = totalNanos();
+            return total == 0 ? 0 : 100.0 * nanos / total;
+        }
+    }
+
+    /**
+     * Time threads of one kind spent waiting on monitors or parked.
+     */
+    private static class ThreadWaits {
+        /** Number of events. */
+        private long count;
+
+        /** Time waited, in nanoseconds. */
+        private long nanos;
+    }
+
+    /** Stall breakdown of each stage, by stage name. */
+    private final Map<String, StageStalls> stages = new HashMap<>();
+
+    /** Monitor waits by kind of thread. */
+    private final Map<String, ThreadWaits> monitorWaits = new TreeMap<>();
+
+    /** Park waits by kind of thread. */
+    private final Map<String, ThreadWaits> parkWaits = new TreeMap<>();
+
+    /**
+     * Main method, analyzes a recording and prints the breakdown.
+     *
+     * @param args Path of the recording.
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Usage: java RecordingAnalyzer <recording.jfr>");
+            System.exit(1);
+            return;
+        }
+        final RecordingAnalyzer analyzer = new RecordingAnalyzer();
+        try {
+            analyzer.read(Paths.get(args[0]));
+        } catch (IOException e) {
+            System.err.println("Can't read recording " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        System.out.print(analyzer.report());
+    }
+
+    /**
+     * Adds up the events of a recording.
+     *
+     * @param recording Path of the recording.
+     * @throws IOException If the recording can't be read.
+     */
+    public void read(Path recording) throws IOException {
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                add(file.readEvent());
+            }
+        }
+    }
+
+    /**
+     * Adds one event to the breakdown, ignoring events it doesn't know.
+     *
+     * @param event Event of the recording.
+     */
+    private void add(RecordedEvent event) {
+        final long nanos = event.getDuration().toNanos();
+        switch (event.getEventType().getName()) {
+            case OrangeStageEvent.NAME: {
+                final StageStalls s = stage(event.getString("stage"));
+                s.oranges++;
+                s.workNanos += nanos;
+                s.order = Orange.State.valueOf(event.getString("state")).ordinal();
+                break;
+            }
+            case QueueTakeEvent.NAME: {
+                final StageStalls s = stage(event.getString("stage"));
+                s.starvedNanos += nanos;
+                if (!event.getBoolean("tookOrange")) {
+                    s.emptyTakes++;
+                }
+                break;
+            }
+            case QueuePutEvent.NAME: {
+                final StageStalls s = stage(event.getString("stage"));
+                s.blockedNanos += nanos;
+                if (QueuePutEvent.FETCH_STAGE.equals(s.name)) {
+                    s.oranges += event.getInt("oranges");
+                }
+                break;
+            }
+            case MONITOR_ENTER:
+                addWait(monitorWaits, event, nanos);
+                break;
+            case THREAD_PARK:
+                addWait(parkWaits, event, nanos);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Gets the breakdown of a stage, creating it the first time.
+     *
+     * @param name Name of the stage.
+     * @return Breakdown of the stage.
+     */
+    private StageStalls stage(String name) {
+        return stages.computeIfAbsent(name, StageStalls::new);
+    }
+
+    /**
+     * Adds a wait to the waits of the kind of thread that waited, like {@code Worker} for {@code Worker[1.3]}.
+     *
+     * @param waits Waits by kind of thread.
+     * @param event Event of the wait.
+     * @param nanos Time waited, in nanoseconds.
+     */
+    private static void addWait(Map<String, ThreadWaits> waits, RecordedEvent event, long nanos) {
+        final RecordedThread thread = event.getThread();
+        String kind = thread == null || thread.getJavaName() == null ? "other" : thread.getJavaName();
+        final int bracket = kind.indexOf('[');
+        if (bracket > 0) {
+            kind = kind.substring(0, bracket);
+        }
+        final ThreadWaits w = waits.computeIfAbsent(kind, k -> new ThreadWaits());
+        w.count++;
+        w.nanos += nanos;
+    }
+
+    /**
+     * Formats the breakdown of every stage in pipeline order, the bottleneck, and the lock and park waits.
+     *
+     * @return Breakdown of the recording.
+     */
+    public String report() {
+        final StringBuilder sb = new StringBuilder();
+        if (stages.isEmpty()) {
+            sb.append("No plant events in the recording.\n");
+        } else {
+            final List<StageStalls> ordered = new ArrayList<>(stages.values());
+            ordered.sort(Comparator.comparingInt((StageStalls s) -> s.order).thenComparing(s -> s.name));
+            sb.append(String.format("%-16s %9s %10s %10s %10s %7s %9s %9s %12s%n", "stage", "oranges", "work s",
+                    "starved s", "blocked s", "work%", "starved%", "blocked%", "empty takes"));
+            StageStalls bottleneck = null;
+            for (StageStalls s : ordered) {
+                sb.append(String.format("%-16s %9d %10.3f %10.3f %10.3f %6.1f%% %8.1f%% %8.1f%% %12d%n", s.name,
+                        s.oranges, seconds(s.workNanos), seconds(s.starvedNanos), seconds(s.blockedNanos),
+                        s.percent(s.workNanos), s.percent(s.starvedNanos), s.percent(s.blockedNanos), s.emptyTakes));
+                if (s.workNanos > 0 && (bottleneck == null
+                        || s.percent(s.workNanos) > bottleneck.percent(bottleneck.workNanos))) {
+                    bottleneck = s;
+                }
+            }
+            if (bottleneck != null) {
+                sb.append(String.format("Bottleneck: %s, working %.1f%% of the time%n", bottleneck.name,
+                        bottleneck.percent(bottleneck.workNanos)));
+            }
+        }
+        appendWaits(sb, MONITOR_ENTER, monitorWaits);
+        appendWaits(sb, THREAD_PARK, parkWaits);
+        return sb.toString();
+    }
+
+    /**
+     * Formats waits by kind of thread, if there are any.
+     *
+     * @param sb    Where to add the waits.
+     * @param event Name of the event the waits came from.
+     * @param waits Waits by kind of thread.
+     */
+    private static void appendWaits(StringBuilder sb, String event, Map<String, ThreadWaits> waits) {
+        if (waits.isEmpty()) {
+            return;
+        }
+        sb.append(event).append(" by thread:");
+        for (Map.Entry<String, ThreadWaits> e : waits.entrySet()) {
+            sb.append(String.format(" %s=%d/%.3fs", e.getKey(), e.getValue().count, seconds(e.getValue().nanos)));
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Converts nanoseconds to seconds.
+     *
+     * @param nanos Time in nanoseconds.
+     * @return Time in seconds.
+     */
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
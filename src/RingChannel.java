@@ -0,0 +1,171 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code RingChannel} class is the base of the array backed, lock free {@link StageChannel} implementations.
+ * Subclasses only implement the non-blocking {@link #tryOffer(Orange)} and {@link #tryPoll()}, waiting for space
+ * or oranges is done here with the channel's {@link WaitStrategy}. Subclasses can also override
+ * {@link #tryOfferAll(List, int)} and {@link #tryDrain(List, int)} if they can pass a batch in one step.
+ *
+ * <p>Slots are reused, so no memory is allocated when oranges are passed through the channel.</p>
+ */
+public abstract class RingChannel implements StageChannel {
+    /** Maximum number of oranges in the channel. */
+    protected final int capacity;
+
+    /** What a thread does while it waits for space or an orange. */
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * Creates a new RingChannel object.
+     *
+     * @param capacity     Maximum number of oranges in the channel.
+     * @param waitStrategy What a thread does while it waits for space or an orange.
+     */
+    protected RingChannel(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds an orange to the channel if there is space.
+     *
+     * @param o Orange to add.
+     * @return {@code true} if the orange was added, {@code false} if the channel is full.
+     */
+    protected abstract boolean tryOffer(Orange o);
+
+    /**
+     * Takes an orange from the channel if there is one.
+     *
+     * @return The orange, or null if the channel is empty.
+     */
+    protected abstract Orange tryPoll();
+
+    /**
+     * Adds oranges from a list in order while there is space, without removing them from the list.
+     *
+     * @param oranges Oranges to add.
+     * @param from    Index of the first orange to add.
+     * @return Number of oranges added.
+     */
+    protected int tryOfferAll(List<Orange> oranges, int from) {
+        int added = 0;
+        while (from + added < oranges.size() && tryOffer(oranges.get(from + added))) {
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Takes oranges from the channel while there are some, up to a maximum.
+     *
+     * @param to  List the oranges are added to.
+     * @param max Maximum number of oranges to take.
+     * @return Number of oranges taken.
+     */
+    protected int tryDrain(List<Orange> to, int max) {
+        int taken = 0;
+        Orange o;
+        while (taken < max && (o = tryPoll()) != null) {
+            to.add(o);
+            taken++;
+        }
+        return taken;
+    }
+
+    @Override
+    public boolean offer(Orange o, long timeout, TimeUnit unit) throws InterruptedException {
+        if (tryOffer(o)) {
+            return true;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!tryOffer(o)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            waitStrategy.idle();
+        }
+        return true;
+    }
+
+    @Override
+    public Orange poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Orange o = tryPoll();
+        if (o != null) {
+            return o;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while ((o = tryPoll()) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            waitStrategy.idle();
+        }
+        return o;
+    }
+
+    @Override
+    public Orange poll() {
+        return tryPoll();
+    }
+
+    @Override
+    public int drainTo(List<Orange> to, int max) {
+        return tryDrain(to, max);
+    }
+
+    @Override
+    public int offerAll(List<Orange> oranges, long timeout, TimeUnit unit) throws InterruptedException {
+        int added = tryOfferAll(oranges, 0);
+        if (added < oranges.size()) {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (added < oranges.size()) {
+                final int n = tryOfferAll(oranges, added);
+                if (n > 0) {
+                    added += n;
+                    continue;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    break;
+                }
+                waitStrategy.idle();
+            }
+        }
+        // Clearing the whole list doesn't allocate a view, which is the usual case
+        if (added == oranges.size()) {
+            oranges.clear();
+        } else {
+            oranges.subList(0, added).clear();
+        }
+        return added;
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the number of oranges between two positions, clamped to the capacity of the channel.
+     *
+     * @param head Position of the next orange to take.
+     * @param tail Position of the next orange to add.
+     * @return Number of oranges in the channel.
+     */
+    protected int sizeBetween(long head, long tail) {
+        return (int) Math.max(0, Math.min(capacity, tail - head));
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * The {@code RunResult} class holds the totals of one run of a set of plants: how many bottles they made per second,
+ * how many oranges were provided, processed and wasted, how many missed their deadline, and how long oranges took
+ * from fetching to bottling. Results
+ * come from real {@link Plant plants} with {@link #runThreads(PlantConfig)} or from a {@link Simulation} with
+ * {@link #simulate(PlantConfig, long, double)}.
+ */
+public class RunResult {
+    /** Number of full bottles made by every plant until it was stopped, see {@link Plant#getOrangesBottledAtStop()}. */
+    private final long bottled;
+
+    /** Number of oranges given to the first queue of every plant. */
+    private final long provided;
+
+    /** Number of oranges that reached the bottle assembler of every plant. */
+    private final long processed;
+
+    /** Number of oranges wasted by every plant. */
+    private final long wasted;
+
+    /** Number of oranges of every plant thrown away or bottled after they had gone off. */
+    private final long deadlineMisses;
+
+    /** How long the plants ran for, in seconds of real or virtual time. */
+    private final double seconds;
+
+    /** Time from fetching an orange to bottling it, for every plant. */
+    private final LatencyHistogram endToEnd;
+
+    /**
+     * Creates a new RunResult object.
+     *
+     * @param bottled   Number of full bottles.
+     * @param provided  Number of oranges provided.
+     * @param processed Number of oranges processed.
+     * @param wasted         Number of oranges wasted.
+     * @param deadlineMisses Number of oranges that missed their deadline.
+     * @param seconds        How long the plants ran for, in seconds.
+     * @param endToEnd       Time from fetching an orange to bottling it.
+     */
+    public RunResult(long bottled, long provided, long processed, long wasted, long deadlineMisses, double seconds,
+                     LatencyHistogram endToEnd) {
+        this.bottled = bottled;
+        this.provided = provided;
+        this.processed = processed;
+        this.wasted = wasted;
+        this.deadlineMisses = deadlineMisses;
+        this.seconds = seconds;
+        this.endToEnd = endToEnd;
+    }
+
+    /**
+     * Runs plants for {@link PlantConfig#getProcessingTimeMillis()}, either simulated or for real.
+     *
+     * @param config       Settings of the plants.
+     * @param simulate     {@code true} to {@link #simulate(PlantConfig, long, double) simulate} the plants,
+     *                     {@code false} to {@link #runThreads(PlantConfig) run} them.
+     * @param seed         Seed of the simulation, ignored by real plants.
+     * @param jitterMillis Jitter of the simulation in milliseconds, ignored by real plants.
+     * @return Totals of the plants.
+     */
+    public static RunResult run(PlantConfig config, boolean simulate, long seed, double jitterMillis) {
+        return simulate ? simulate(config, seed, jitterMillis) : runThreads(config);
+    }
+
+    /**
+     * Runs real plants with {@link Plant#runPlants(PlantConfig)} and totals them. Like a simulation, the bottles and
+     * the time are counted up to when the plants are stopped, leaving out starting the threads and draining, so
+     * bottles per second mean the same in both. The other totals include the oranges finished while draining.
+     *
+     * @param config Settings of the plants.
+     * @return Totals of the plants.
+     */
+    public static RunResult runThreads(PlantConfig config) {
+        final Plant[] plants = Plant.runPlants(config);
+        long workingNanos = 0;
+        long bottled = 0;
+        long provided = 0;
+        long processed = 0;
+        long wasted = 0;
+        long deadlineMisses = 0;
+        final LatencyHistogram endToEnd = new LatencyHistogram();
+        for (Plant p : plants) {
+            workingNanos = Math.max(workingNanos, p.getWorkingNanos());
+            bottled += p.getOrangesBottledAtStop();
+            provided += p.getOrangesProvided();
+            processed += p.getOrangesProcessed();
+            wasted += p.getOrangesWasted();
+            deadlineMisses += p.getOrangesExpired() + p.getOrangesLate();
+            endToEnd.add(p.getMetrics().getEndToEnd());
+        }
+        return new RunResult(bottled, provided, processed, wasted, deadlineMisses, workingNanos / 1e9, endToEnd);
+    }
+
+    /**
+     * Simulates plants on a virtual clock and totals them. Simulated oranges never go off, so there are no deadline
+     * misses.
+     *
+     * @param config       Settings of the plants.
+     * @param seed         Seed of the simulation.
+     * @param jitterMillis Largest random overhead added to each step of work, in milliseconds.
+     * @return Totals of the plants.
+     */
+    public static RunResult simulate(PlantConfig config, long seed, double jitterMillis) {
+        final Simulation simulation = new Simulation(config, seed, jitterMillis);
+        simulation.run();
+        long bottled = 0;
+        long provided = 0;
+        long processed = 0;
+        long wasted = 0;
+        final LatencyHistogram endToEnd = new LatencyHistogram();
+        for (SimulatedPlant p : simulation.getPlants()) {
+            bottled += p.getOrangesBottledAtStop();
+            provided += p.getOrangesProvided();
+            processed += p.getOrangesProcessed();
+            wasted += p.getOrangesWasted();
+            endToEnd.add(p.getEndToEnd());
+        }
+        return new RunResult(bottled, provided, processed, wasted, 0, config.getProcessingTimeMillis() / 1000.0,
+                endToEnd);
+    }
+
+    /**
+     * Gets the number of full bottles made.
+     *
+     * @return Number of bottles.
+     */
+    public long getBottled() {
+        return bottled;
+    }
+
+    /**
+     * Gets the number of oranges provided to the plants.
+     *
+     * @return Number of oranges provided.
+     */
+    public long getProvided() {
+        return provided;
+    }
+
+    /**
+     * Gets the number of oranges that reached the bottle assemblers.
+     *
+     * @return Number of oranges processed.
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Gets the number of oranges wasted.
+     *
+     * @return Number of oranges wasted.
+     */
+    public long getWasted() {
+        return wasted;
+    }
+
+    /**
+     * Gets the fraction of the oranges provided that were wasted.
+     *
+     * @return Waste ratio from 0 to 1, 0 if no oranges were provided.
+     */
+    public double getWasteRatio() {
+        return provided == 0 ? 0 : (double) wasted / provided;
+    }
+
+    /**
+     * Gets the number of oranges that missed their deadline, thrown away or bottled after they had gone off.
+     *
+     * @return Number of deadline misses, 0 if oranges never go off.
+     */
+    public long getDeadlineMisses() {
+        return deadlineMisses;
+    }
+
+    /**
+     * Gets how long the plants ran for.
+     *
+     * @return Run time in seconds of real or virtual time.
+     */
+    public double getSeconds() {
+        return seconds;
+    }
+
+    /**
+     * Gets the bottles made per second, like the {@code Bottles/s} printed by {@link Simulation}.
+     *
+     * @return Bottles per second.
+     */
+    public double getBottlesPerSecond() {
+        return seconds == 0 ? 0 : bottled / seconds;
+    }
+
+    /**
+     * Gets the time from fetching an orange to bottling it.
+     *
+     * @return Histogram of end to end times.
+     */
+    public LatencyHistogram getEndToEnd() {
+        return endToEnd;
+    }
+}
@@ -0,0 +1,445 @@
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * The {@code SimulatedPlant} class is a {@link Plant} run by an {@link EventScheduler} instead of by threads. It has
+ * the same fetchers, stages, queues and workers as a real plant, but work takes virtual time: an {@link Orange.State}
+ * that takes 38 milliseconds moves the virtual clock 38 milliseconds without waiting for it.
+ *
+ * <p>Queues are bounded like the real ones. A worker or fetcher whose give queue is full waits until there is space,
+ * and a worker whose take queue is empty waits until an orange arrives. Handing off an orange takes no time. Each step
+ * of work takes its {@link Orange.State} time plus a random overhead, standing in for how late a sleeping thread wakes
+ * up, drawn from the plant's seeded {@link Random} so a simulation always gives the same result.</p>
+ *
+ * <p>Workers stay in the stage they start in, the {@link WorkerRebalancer} isn't simulated.</p>
+ *
+ * <p>Once {@link #stop() stopped}, the fetchers hand off the oranges they are fetching and fetch no more, and the
+ * workers carry on with the oranges in the plant, like a real plant draining.</p>
+ */
+public class SimulatedPlant {
+    /**
+     * Something that takes oranges from a {@link SimQueue}.
+     */
+    private interface Consumer {
+        /**
+         * Called when the consumer gets an orange it was waiting for.
+         *
+         * @param o The orange.
+         */
+        void receive(Orange o);
+    }
+
+    /**
+     * A bounded queue of oranges between simulated workers.
+     */
+    private final class SimQueue {
+        /** Maximum number of oranges in the queue. */
+        private final int capacity;
+
+        /** Oranges in the queue. */
+        private final ArrayDeque<Orange> oranges;
+
+        /** Consumers waiting for an orange, in the order they started waiting. */
+        private final ArrayDeque<Consumer> waitingConsumers;
+
+        /** Oranges waiting for space, in the order they were offered. */
+        private final ArrayDeque<Orange> blockedOranges;
+
+        /** What to do once each of the {@link #blockedOranges} is accepted. */
+        private final ArrayDeque<Runnable> blockedProducers;
+
+        /**
+         * Creates a new SimQueue object.
+         *
+         * @param capacity Maximum number of oranges in the queue.
+         */
+        private SimQueue(int capacity) {
+            this.capacity = capacity;
+            this.oranges = new ArrayDeque<>(capacity);
+            this.waitingConsumers = new ArrayDeque<>();
+            this.blockedOranges = new ArrayDeque<>();
+            this.blockedProducers = new ArrayDeque<>();
+        }
+
+        /**
+         * Offers an orange to the queue. If a consumer is waiting it gets the orange, otherwise the orange is added
+         * to the queue if there is space.
+         *
+         * @param o            Orange to offer.
+         * @param whenAccepted What the producer does once the orange is accepted, if it isn't accepted right away.
+         * @return {@code true} if the orange was accepted right away, {@code false} if the producer has to wait.
+         */
+        private boolean offer(Orange o, Runnable whenAccepted) {
+            if (!waitingConsumers.isEmpty()) {
+                final Consumer c = waitingConsumers.poll();
+                scheduler.schedule(0, () -> c.receive(o));
+                return true;
+            }
+            if (oranges.size() < capacity) {
+                oranges.add(o);
+                return true;
+            }
+            blockedOranges.add(o);
+            blockedProducers.add(whenAccepted);
+            return false;
+        }
+
+        /**
+         * Takes an orange from the queue for a consumer. If the queue is empty, the consumer gets the next orange
+         * offered.
+         *
+         * @param c Consumer taking the orange.
+         */
+        private void take(Consumer c) {
+            final Orange o = oranges.poll();
+            if (o == null) {
+                waitingConsumers.add(c);
+                return;
+            }
+            // There is space now, let the first blocked producer in
+            if (!blockedOranges.isEmpty()) {
+                oranges.add(blockedOranges.poll());
+                scheduler.schedule(0, blockedProducers.poll());
+            }
+            scheduler.schedule(0, () -> c.receive(o));
+        }
+
+        /**
+         * Gets the number of oranges in the queue.
+         *
+         * @return Number of oranges in the queue.
+         */
+        private int size() {
+            return oranges.size();
+        }
+    }
+
+    /**
+     * One step of a simulated plant's pipeline, like a {@link Stage}.
+     */
+    private static final class SimStage {
+        /** Queue to get oranges from. */
+        private final SimQueue takeQueue;
+
+        /** Queue to add oranges to after the stage's job is complete. */
+        private final SimQueue giveQueue;
+
+        /** State an orange should be in when it leaves the stage. */
+        private final Orange.State job;
+
+        /** Number of workers in this stage. */
+        private int workerCount;
+
+        /** Number of oranges that have completed this stage. */
+        private long orangesCompleted;
+
+        /** Total virtual time workers in this stage spent processing oranges, in nanoseconds. */
+        private long busyNanos;
+
+        /**
+         * Creates a new SimStage object.
+         *
+         * @param takeQueue Queue to take oranges from.
+         * @param giveQueue Queue to add oranges to after the stage's job is complete.
+         * @param job       State an orange should be in when it leaves the stage.
+         */
+        private SimStage(SimQueue takeQueue, SimQueue giveQueue, Orange.State job) {
+            this.takeQueue = takeQueue;
+            this.giveQueue = giveQueue;
+            this.job = job;
+        }
+    }
+
+    /**
+     * A simulated {@link Worker}.
+     */
+    private final class SimWorker implements Consumer {
+        /** Stage the worker works in. */
+        private final SimStage stage;
+
+        /**
+         * Creates a new SimWorker object.
+         *
+         * @param stage Stage the worker works in.
+         */
+        private SimWorker(SimStage stage) {
+            this.stage = stage;
+            stage.workerCount++;
+        }
+
+        /** Takes the next orange from the stage's take queue, or waits for one. */
+        private void takeNext() {
+            stage.takeQueue.take(this);
+        }
+
+        @Override
+        public void receive(Orange o) {
+            long work = 0;
+            while (o.getState() != stage.job) {
+                work += stepNanos(o.advance());
+            }
+            stage.busyNanos += work;
+            scheduler.schedule(work, () -> handOff(o));
+        }
+
+        /**
+         * Hands a finished orange to the stage's give queue, waiting for space if it's full.
+         *
+         * @param o The finished orange.
+         */
+        private void handOff(Orange o) {
+            final Runnable done = () -> {
+                stage.orangesCompleted++;
+                takeNext();
+            };
+            if (stage.giveQueue.offer(o, done)) {
+                done.run();
+            }
+        }
+    }
+
+    /** Number of virtual nanoseconds in a millisecond. */
+    private static final long NANOS_PER_MILLI = 1_000_000;
+
+    /** Scheduler running the simulation. */
+    private final EventScheduler scheduler;
+
+    /** Source of the random overhead of each step of work. */
+    private final Random random;
+
+    /** Largest random overhead added to each step of work, in nanoseconds. */
+    private final long jitterNanos;
+
+    /** Number of oranges put in each bottle. */
+    private final int orangesPerBottle;
+
+    /** Time it takes to complete each state in milliseconds, indexed by {@link Enum#ordinal() ordinal}. */
+    private final int[] stateMillis;
+
+    /** Number of fetchers feeding the peel queue. */
+    private final int numFetchers;
+
+    /** Queues in pipeline order, from the one fetchers give oranges to, to the one the assembler takes from. */
+    private final SimQueue[] queues;
+
+    /** Stages of the plant, in pipeline order. */
+    private final SimStage[] stages;
+
+    /** Workers of the plant. */
+    private final SimWorker[] workers;
+
+    /** Time from starting to fetch an orange until it is bottled, in virtual time. */
+    private final LatencyHistogram endToEnd;
+
+    /** Number of oranges given to the peel queue. */
+    private int orangesProvided;
+
+    /** Number of oranges consumed by the assembler. */
+    private int orangesProcessed;
+
+    /** Number of full bottles assembled. */
+    private int bottles;
+
+    /** Number of oranges in the bottle currently being filled. */
+    private int orangesInPartialBottle;
+
+    /** When true, the fetchers fetch another orange once they have handed one off. */
+    private boolean fetching;
+
+    /** Virtual time the plant was stopped at, in nanoseconds, or -1 while it is working. */
+    private long stopNanos = -1;
+
+    /** Number of full bottles assembled by the time the plant was stopped. */
+    private int bottlesAtStop;
+
+    /**
+     * Creates a new SimulatedPlant object.
+     *
+     * @param config      Settings of the plant, the worker counts, queue capacity, state times and oranges per bottle
+     *                    are used.
+     * @param scheduler   Scheduler to run the plant with.
+     * @param random      Source of the random overhead of each step of work.
+     * @param jitterNanos Largest random overhead added to each step of work, in nanoseconds, 0 for none.
+     */
+    public SimulatedPlant(PlantConfig config, EventScheduler scheduler, Random random, long jitterNanos) {
+        this.scheduler = scheduler;
+        this.random = random;
+        this.jitterNanos = jitterNanos;
+        this.orangesPerBottle = config.getOrangesPerBottle();
+        this.numFetchers = config.getNumFetchers();
+        this.stateMillis = config.getStateMillis();
+        this.endToEnd = new LatencyHistogram();
+
+        // Same topology as a real plant, a fused stage gets the workers of all its steps
+        final Orange.State[] handoffStates = config.getHandoffStates();
+        queues = new SimQueue[handoffStates.length];
+        for (int q = 0; q < queues.length; q++) {
+            queues[q] = new SimQueue(config.getQueueCapacity());
+        }
+        stages = new SimStage[handoffStates.length - 1];
+        workers = new SimWorker[config.getTotalWorkers()];
+        int ind = 0;
+        for (int s = 0; s < stages.length; s++) {
+            stages[s] = new SimStage(queues[s], queues[s + 1], handoffStates[s + 1]);
+            for (int step = handoffStates[s].ordinal() + 1; step <= handoffStates[s + 1].ordinal(); step++) {
+                for (int i = 0; i < config.getNumWorkers(Orange.State.values()[step]); i++) {
+                    workers[ind++] = new SimWorker(stages[s]);
+                }
+            }
+        }
+    }
+
+    /** Schedules the assembler, workers and fetchers to start at the current virtual time. */
+    public void start() {
+        fetching = true;
+        scheduler.schedule(0, this::assembleNext);
+        for (SimWorker w : workers) {
+            scheduler.schedule(0, w::takeNext);
+        }
+        for (int i = 0; i < numFetchers; i++) {
+            scheduler.schedule(0, this::fetch);
+        }
+    }
+
+    /**
+     * Stops fetching new oranges at the current virtual time, like {@link Plant#stopPlant()}. Everyone else keeps
+     * working on the oranges the plant already has for as long as the scheduler runs.
+     */
+    public void stop() {
+        fetching = false;
+        stopNanos = scheduler.now();
+        bottlesAtStop = bottles;
+    }
+
+    /**
+     * Gets how long one step of work takes, in virtual time.
+     *
+     * @param millis Time the step takes without overhead, in milliseconds.
+     * @return Time the step takes, in nanoseconds.
+     */
+    private long stepNanos(int millis) {
+        final long overhead = jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0;
+        return millis * NANOS_PER_MILLI + overhead;
+    }
+
+    /** Fetches an orange and gives it to the peel queue, then fetches the next one unless the plant was stopped. */
+    private void fetch() {
+        final long fetchedNanos = scheduler.now();
+        scheduler.schedule(stepNanos(stateMillis[Orange.State.Fetched.ordinal()]), () -> {
+            final Runnable provided = () -> {
+                orangesProvided++;
+                if (fetching) {
+                    fetch();
+                }
+            };
+            if (queues[0].offer(new Orange(fetchedNanos, stateMillis), provided)) {
+                provided.run();
+            }
+        });
+    }
+
+    /** Takes the next orange from the done queue and adds it to the bottle, like the {@link BottleAssembler}. */
+    private void assembleNext() {
+        queues[queues.length - 1].take(o -> {
+            endToEnd.record(scheduler.now() - o.getFetchedNanos());
+            orangesProcessed++;
+            orangesInPartialBottle++;
+            if (orangesInPartialBottle == orangesPerBottle) {
+                bottles++;
+                orangesInPartialBottle = 0;
+            }
+            assembleNext();
+        });
+    }
+
+    /**
+     * Gets the number of oranges provided to workers.
+     *
+     * @return Number of oranges provided.
+     */
+    public int getOrangesProvided() {
+        return orangesProvided;
+    }
+
+    /**
+     * Gets the number of full bottles assembled.
+     *
+     * @return Number of bottles.
+     */
+    public int getOrangesBottled() {
+        return bottles;
+    }
+
+    /**
+     * Gets the number of full bottles assembled by the time the plant was {@link #stop() stopped}, like
+     * {@link Plant#getOrangesBottledAtStop()}.
+     *
+     * @return Number of bottles made while the plant was working.
+     */
+    public int getOrangesBottledAtStop() {
+        return bottlesAtStop;
+    }
+
+    /**
+     * Gets the number of oranges consumed by the assembler.
+     *
+     * @return Number of oranges processed.
+     */
+    public int getOrangesProcessed() {
+        return orangesProcessed;
+    }
+
+    /**
+     * Gets the number of oranges in the partially filled bottle.
+     *
+     * @return Number of oranges not bottled.
+     */
+    public int getOrangesNotBottled() {
+        return orangesInPartialBottle;
+    }
+
+    /**
+     * Gets the number of oranges left in all queues besides the done queue.
+     *
+     * @return The number of oranges left in queues.
+     */
+    public int getOrangesLeftInQueue() {
+        int left = 0;
+        for (int q = 0; q < queues.length - 1; q++) {
+            left += queues[q].size();
+        }
+        return left;
+    }
+
+    /**
+     * Gets the number of oranges wasted, which is the number of oranges not bottled and those still in the plant, in
+     * queues or held by workers. A real plant counts the same once it has stopped, see {@link Plant#waitToStop()}.
+     *
+     * @return The number of oranges wasted.
+     */
+    public int getOrangesWasted() {
+        return getOrangesNotBottled() + orangesProvided - orangesProcessed;
+    }
+
+    /**
+     * Gets the fraction of the virtual time so far that the workers of a stage were busy, until the plant was stopped
+     * if it was.
+     *
+     * @param stage Index of the stage in pipeline order.
+     * @return Utilisation of the stage, from 0 to 1.
+     */
+    public double getUtilisation(int stage) {
+        final SimStage s = stages[stage];
+        final long elapsed = stopNanos >= 0 ? stopNanos : scheduler.now();
+        return elapsed == 0 ? 0 : Math.min(1, (double) s.busyNanos / elapsed / s.workerCount);
+    }
+
+    /**
+     * Gets the time from starting to fetch an orange until it was bottled, in virtual time.
+     *
+     * @return Histogram of end to end times.
+     */
+    public LatencyHistogram getEndToEnd() {
+        return endToEnd;
+    }
+}
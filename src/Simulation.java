@@ -0,0 +1,183 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The {@code Simulation} class runs {@link SimulatedPlant simulated plants} on a virtual clock, so a configuration can
+ * be tried out without waiting for it. The plants run for {@link PlantConfig#getProcessingTimeMillis()} of virtual
+ * time, which takes milliseconds of real time rather than seconds. Then they are stopped and drain for up to
+ * {@link PlantConfig#getDrainDeadlineMillis()} of virtual time, like real plants, so they waste the same oranges.
+ *
+ * <p>A simulation is deterministic: the same config, seed and jitter always give the same result. Only the settings
+ * the plants are built from are {@link #isSimulated(String) simulated}, the simulated plants have plain queues and
+ * fixed workers, and their oranges never go off.</p>
+ *
+ * <p>Usage: {@code java Simulation [--seed=<seed>] [--jitterMillis=<millis>] [settings]}, where the settings are
+ * those of {@link PlantConfig#fromArgs(String[])}, for example {@code --processingTimeMillis=3600000}.</p>
+ */
+public class Simulation {
+    /** Seed used if none is given. */
+    public static final long DEFAULT_SEED = 1;
+
+    /**
+     * Largest random overhead added to each step of work if none is given, in milliseconds. A sleeping thread wakes up
+     * about half a millisecond late on average, so this makes the simulated throughput match the threaded plants.
+     */
+    public static final double DEFAULT_JITTER_MILLIS = 1.0;
+
+    /** Names of the settings that change how simulated plants behave, besides the {@code stateMillis.<State>} ones. */
+    private static final Set<String> SIMULATED_SETTINGS = Set.of(
+            "processingTimeMillis", "numPlants", "orangesPerBottle", "numFetchers", "numPeelers", "numSqueezers",
+            "numBottlers", "queueCapacity", "fusePeelSqueeze", "fuseSqueezeBottle", "drainDeadlineMillis");
+
+    /** Settings of the plants. */
+    private final PlantConfig config;
+
+    /** Scheduler running every plant. */
+    private final EventScheduler scheduler;
+
+    /** The simulated plants. */
+    private final SimulatedPlant[] plants;
+
+    /**
+     * Checks if a setting makes any difference to a simulation.
+     *
+     * @param key Name of the setting, see {@link PlantConfig#set(String, String)}.
+     * @return {@code true} if simulated plants use the setting, {@code false} if they ignore it.
+     */
+    static boolean isSimulated(String key) {
+        return SIMULATED_SETTINGS.contains(key) || key.startsWith("stateMillis.");
+    }
+
+    /**
+     * Main method, simulates the default plants and prints the results like {@link Plant#main(String[])}.
+     *
+     * @param args Optionally the seed, the jitter in milliseconds and settings of the plants, see the class
+     *             description.
+     */
+    public static void main(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        options.put("seed", Long.toString(DEFAULT_SEED));
+        options.put("jitterMillis", Double.toString(DEFAULT_JITTER_MILLIS));
+        final PlantConfig config;
+        final long seed;
+        final double jitterMillis;
+        try {
+            config = PlantConfig.fromArgs(args, options);
+            seed = Long.parseLong(options.get("seed"));
+            jitterMillis = Double.parseDouble(options.get("jitterMillis"));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        final Simulation simulation = new Simulation(config, seed, jitterMillis);
+        final long start = System.nanoTime();
+        simulation.run();
+        final double realMillis = (System.nanoTime() - start) / 1e6;
+
+        int totalProvided = 0;
+        int totalBottled = 0;
+        int totalProcessed = 0;
+        int totalWasted = 0;
+        int totalLeftInQueue = 0;
+        int totalNotBottled = 0;
+        for (SimulatedPlant p : simulation.getPlants()) {
+            totalProvided += p.getOrangesProvided();
+            totalProcessed += p.getOrangesProcessed();
+            totalBottled += p.getOrangesBottled();
+            totalWasted += p.getOrangesWasted();
+            totalLeftInQueue += p.getOrangesLeftInQueue();
+            totalNotBottled += p.getOrangesNotBottled();
+        }
+        System.out.println("=".repeat(10) + "Simulation" + "=".repeat(10));
+        System.out.printf("Simulated %.1f s of plant time in %.1f ms (%d events, seed %d, jitter %.2f ms)%n",
+                config.getProcessingTimeMillis() / 1000.0, realMillis, simulation.getScheduler().getEventsRun(),
+                seed, jitterMillis);
+        System.out.println("Total provided/processed = " + totalProvided + "/" + totalProcessed);
+        System.out.println("Total left in queues = " + totalLeftInQueue);
+        System.out.println("Total leftover after bottling oranges = " + totalNotBottled);
+        System.out.println("Created " + totalBottled + ", wasted " + totalWasted + " oranges");
+        System.out.printf("Bottles/s = %.1f%n", simulation.getBottlesPerSecond());
+    }
+
+    /**
+     * Creates a new Simulation object with the {@link #DEFAULT_JITTER_MILLIS default jitter}.
+     *
+     * @param config Settings of the plants.
+     * @param seed   Seed of the random overhead of each step of work.
+     */
+    public Simulation(PlantConfig config, long seed) {
+        this(config, seed, DEFAULT_JITTER_MILLIS);
+    }
+
+    /**
+     * Creates a new Simulation object.
+     *
+     * @param config       Settings of the plants, {@link PlantConfig#getNumPlants()} plants are simulated.
+     * @param seed         Seed of the random overhead of each step of work.
+     * @param jitterMillis Largest random overhead added to each step of work, in milliseconds, 0 for none.
+     */
+    public Simulation(PlantConfig config, long seed, double jitterMillis) {
+        if (jitterMillis < 0) {
+            throw new IllegalArgumentException("jitterMillis must be at least 0, got " + jitterMillis);
+        }
+        this.config = config;
+        this.scheduler = new EventScheduler();
+        this.plants = new SimulatedPlant[config.getNumPlants()];
+        final Random seeds = new Random(seed);
+        for (int i = 0; i < plants.length; i++) {
+            // Each plant gets its own random, so adding a plant doesn't change the others
+            plants[i] = new SimulatedPlant(config, scheduler, new Random(seeds.nextLong()), (long) (jitterMillis * 1e6));
+        }
+    }
+
+    /**
+     * Starts the plants, runs them for the processing time and lets them drain until the drain deadline, in virtual
+     * time. Should only be called once.
+     */
+    public void run() {
+        for (SimulatedPlant p : plants) {
+            p.start();
+        }
+        scheduler.runUntil(config.getProcessingTimeMillis() * 1_000_000);
+        for (SimulatedPlant p : plants) {
+            p.stop();
+        }
+        // Anything still in the plant at the deadline is wasted, a real plant halts its workers then
+        scheduler.runUntil(scheduler.now() + config.getDrainDeadlineMillis() * 1_000_000);
+    }
+
+    /**
+     * Gets the simulated plants.
+     *
+     * @return The plants.
+     */
+    public SimulatedPlant[] getPlants() {
+        return plants;
+    }
+
+    /**
+     * Gets the scheduler running the plants.
+     *
+     * @return The scheduler.
+     */
+    public EventScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Gets the bottles made by every plant per second of virtual time they worked for, leaving out the drain.
+     *
+     * @return Bottles per second.
+     */
+    public double getBottlesPerSecond() {
+        long bottles = 0;
+        for (SimulatedPlant p : plants) {
+            bottles += p.getOrangesBottledAtStop();
+        }
+        return bottles * 1000.0 / config.getProcessingTimeMillis();
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The {@code SpscRingChannel} class is a {@link RingChannel} with exactly one thread adding and one thread taking.
+ * Each side owns one position and only publishes it, so neither side ever needs compare-and-set.
+ */
+public class SpscRingChannel extends RingChannel {
+    /** Oranges in the channel, published by the ordered write to {@link #tail}. */
+    private final Orange[] buffer;
+
+    /** Position of the next orange to take, only written by the consumer. */
+    private final AtomicLong head;
+
+    /** Position of the next orange to add, only written by the producer. */
+    private final AtomicLong tail;
+
+    /** Last head seen by the producer, so it doesn't read {@link #head} on every add. */
+    private long cachedHead;
+
+    /** Last tail seen by the consumer, so it doesn't read {@link #tail} on every take. */
+    private long cachedTail;
+
+    /**
+     * Creates a new SpscRingChannel object.
+     *
+     * @param capacity     Maximum number of oranges in the channel.
+     * @param waitStrategy What a thread does while it waits for space or an orange.
+     */
+    public SpscRingChannel(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        buffer = new Orange[capacity];
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+    @Override
+    protected boolean tryOffer(Orange o) {
+        final long pos = tail.get();
+        if (pos - cachedHead >= capacity) {
+            cachedHead = head.get();
+            if (pos - cachedHead >= capacity) {
+                return false;
+            }
+        }
+        buffer[(int) (pos % capacity)] = o;
+        tail.lazySet(pos + 1);
+        return true;
+    }
+
+    @Override
+    protected Orange tryPoll() {
+        final long pos = head.get();
+        if (pos >= cachedTail) {
+            cachedTail = tail.get();
+            if (pos >= cachedTail) {
+                return null;
+            }
+        }
+        final int index = (int) (pos % capacity);
+        final Orange o = buffer[index];
+        buffer[index] = null;
+        head.lazySet(pos + 1);
+        return o;
+    }
+
+    @Override
+    protected int tryOfferAll(List<Orange> oranges, int from) {
+        final int count = oranges.size() - from;
+        final long pos = tail.get();
+        if (pos + count - cachedHead > capacity) {
+            cachedHead = head.get();
+        }
+        final int n = (int) Math.min(count, capacity - (pos - cachedHead));
+        for (int i = 0; i < n; i++) {
+            buffer[(int) ((pos + i) % capacity)] = oranges.get(from + i);
+        }
+        // Publish the whole batch with one write
+        if (n > 0) {
+            tail.lazySet(pos + n);
+        }
+        return n;
+    }
+
+    @Override
+    protected int tryDrain(List<Orange> to, int max) {
+        final long pos = head.get();
+        if (pos + max > cachedTail) {
+            cachedTail = tail.get();
+        }
+        final int n = (int) Math.min(max, cachedTail - pos);
+        for (int i = 0; i < n; i++) {
+            final int index = (int) ((pos + i) % capacity);
+            to.add(buffer[index]);
+            buffer[index] = null;
+        }
+        // Free the whole batch with one write
+        if (n > 0) {
+            head.lazySet(pos + n);
+        }
+        return n;
+    }
+
+    @Override
+    public int size() {
+        return sizeBetween(head.get(), tail.get());
+    }
+}
@@ -0,0 +1,453 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code Stage} class represents one step of a {@link Plant}'s pipeline. A stage has a {@link #takeQueue} that
+ * {@link Worker workers} get oranges from, a {@link #giveQueue} they pass the oranges on to, and a {@link #job}
+ * which is the {@link Orange.State} an orange should be in when it leaves the stage.
+ *
+ * <p>Workers aren't tied to a stage for life, the {@link WorkerRebalancer} can move them between stages, so the
+ * stage keeps track of how many workers are currently assigned to it, how many oranges it has completed and how long
+ * its workers were busy.</p>
+ *
+ * <p>With work stealing, a stage knows the same stage of the other plants as its {@link #peers}. An idle worker
+ * takes an orange from a peer's take queue, does the peer's job on it and hands it to the peer's give queue, so the
+ * orange stays in the plant it was fetched by. Once a stage is {@link #startDraining() draining}, nobody starts
+ * stealing from it anymore, and the plant waits for the {@link #tryBeginSteal() steals} already going on to be handed
+ * back before it tells its own workers to stop.</p>
+ *
+ * <p>If the stage {@link #isDropExpired() drops expired oranges}, workers throw away oranges that have gone off
+ * before working on them, and the stage counts them as {@link #getOrangesExpired() expired}.</p>
+ *
+ * <p>A worker {@link Worker#halt() halted} while it holds oranges taken from this stage's take queue counts them as
+ * {@link #getOrangesDropped() dropped} here, so the plant knows they were wasted.</p>
+ */
+public class Stage implements StageMBean {
+    /** Name of the stage, used in messages. */
+    private final String name;
+
+    /** Queue to get oranges from to process them. */
+    private final StageChannel takeQueue;
+
+    /** Queue to add oranges to after the stage's job is complete. */
+    private final StageChannel giveQueue;
+
+    /** {@link Orange.State} object which represents when a worker should stop processing an orange. */
+    private final Orange.State job;
+
+    /** Time it takes to take an orange from the state it arrives in to the {@link #job}, in milliseconds. */
+    private final int workMillis;
+
+    /** Maximum number of oranges a worker takes from the {@link #takeQueue} at once. */
+    private final int batchSize;
+
+    /** Longest a worker waits for a batch to fill up once it has an orange, in nanoseconds. */
+    private final long batchLingerNanos;
+
+    /** Number of workers currently assigned to this stage. */
+    private final AtomicInteger workerCount;
+
+    /** Number of oranges that have completed this stage and been handed off to the {@link #giveQueue}. */
+    private final LongAdder orangesCompleted;
+
+    /** Number of oranges workers of this stage threw away because they had gone off. */
+    private final LongAdder orangesExpired;
+
+    /** Number of oranges workers of this stage were holding when they were halted. */
+    private final LongAdder orangesDropped;
+
+    /** If true, workers throw away oranges that have gone off instead of working on them. */
+    private volatile boolean dropExpired;
+
+    /** Number of oranges workers of this stage took from {@link #peers} and processed for them. */
+    private final LongAdder orangesStolen;
+
+    /** The same stage in other plants, idle workers of this stage take oranges from their take queues. */
+    private volatile Stage[] peers;
+
+    /** Number of workers of other plants that have stolen from this stage and not handed the oranges back yet. */
+    private final AtomicInteger stealsInFlight;
+
+    /** If true, the plant is stopping and no more oranges may be stolen from this stage. */
+    private volatile boolean draining;
+
+    /** Total time workers in this stage spent processing oranges, in nanoseconds. */
+    private final LongAdder busyNanos;
+
+    /** Fraction of time the workers were busy between the last two samples. */
+    private volatile double utilisation;
+
+    /** {@link #busyNanos} at the last sample, only used by the sampling thread. */
+    private long busyNanosAtSample;
+
+    /** {@link System#nanoTime()} of the last sample, only used by the sampling thread. */
+    private long lastSampleNanos;
+
+    /**
+     * Creates a new Stage object.
+     *
+     * @param name      Name of the stage.
+     * @param takeQueue Queue to take oranges from.
+     * @param giveQueue Queue to add oranges to after the stage's job is complete.
+     * @param job       Workers will process an orange until it's {@link Orange.State} equals job.
+     */
+    public Stage(String name, StageChannel takeQueue, StageChannel giveQueue, Orange.State job) {
+        this(name, takeQueue, giveQueue, Orange.State.values()[job.ordinal() - 1], job, Orange.defaultStateMillis(),
+                1, 0);
+    }
+
+    /**
+     * Creates a new Stage object that may do several steps and pass oranges on in batches.
+     *
+     * @param name               Name of the stage.
+     * @param takeQueue          Queue to take oranges from.
+     * @param giveQueue          Queue to add oranges to after the stage's job is complete.
+     * @param from               {@link Orange.State} the oranges in the take queue are in.
+     * @param job                Workers will process an orange until it's {@link Orange.State} equals job.
+     * @param stateMillis        Time it takes to complete each state in milliseconds, indexed by
+     *                           {@link Enum#ordinal() ordinal}, used to estimate the stage's capacity.
+     * @param batchSize          Maximum number of oranges a worker takes at once.
+     * @param batchLingerMillis  Longest a worker waits for a batch to fill up once it has an orange, in milliseconds.
+     */
+    public Stage(String name, StageChannel takeQueue, StageChannel giveQueue, Orange.State from, Orange.State job,
+                 int[] stateMillis, int batchSize, long batchLingerMillis) {
+        if (from.ordinal() >= job.ordinal()) {
+            throw new IllegalArgumentException("Stage " + name + " has no work, from " + from + " to " + job);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        this.name = name;
+        this.takeQueue = takeQueue;
+        this.giveQueue = giveQueue;
+        this.job = job;
+        int millis = 0;
+        for (int s = from.ordinal() + 1; s <= job.ordinal(); s++) {
+            millis += stateMillis[s];
+        }
+        this.workMillis = millis;
+        this.batchSize = batchSize;
+        this.batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(batchLingerMillis);
+        this.workerCount = new AtomicInteger();
+        this.orangesCompleted = new LongAdder();
+        this.orangesExpired = new LongAdder();
+        this.orangesDropped = new LongAdder();
+        this.orangesStolen = new LongAdder();
+        this.peers = new Stage[0];
+        this.stealsInFlight = new AtomicInteger();
+        this.busyNanos = new LongAdder();
+        this.lastSampleNanos = System.nanoTime();
+    }
+
+    /**
+     * Gets the name of the stage.
+     *
+     * @return Name of the stage.
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the queue workers take oranges from.
+     *
+     * @return The take queue.
+     */
+    public StageChannel getTakeQueue() {
+        return takeQueue;
+    }
+
+    /**
+     * Gets the queue workers give oranges to once the job is done.
+     *
+     * @return The give queue.
+     */
+    public StageChannel getGiveQueue() {
+        return giveQueue;
+    }
+
+    /**
+     * Gets the {@link Orange.State} an orange should be in when it leaves this stage.
+     *
+     * @return The job of this stage.
+     */
+    public Orange.State getJob() {
+        return job;
+    }
+
+    /**
+     * Gets the maximum number of oranges a worker takes from the take queue at once.
+     *
+     * @return Batch size, 1 if oranges are passed on one at a time.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Gets the longest a worker waits for a batch to fill up once it has an orange.
+     *
+     * @return Linger time in nanoseconds.
+     */
+    public long getBatchLingerNanos() {
+        return batchLingerNanos;
+    }
+
+    /**
+     * Gets how full the {@link #takeQueue} is, from 0 (empty) to 1 (full).
+     *
+     * @return Fraction of the take queue's capacity in use.
+     */
+    public double getBacklog() {
+        return backlog(takeQueue);
+    }
+
+    /**
+     * Gets how full the {@link #giveQueue} is, from 0 (empty) to 1 (full). A stage with a full give queue
+     * is held up by the next stage, not by its own workers.
+     *
+     * @return Fraction of the give queue's capacity in use.
+     */
+    public double getOutputBacklog() {
+        return backlog(giveQueue);
+    }
+
+    /**
+     * Gets how full a queue is, from 0 (empty) to 1 (full).
+     *
+     * @param queue Queue to check.
+     * @return Fraction of the queue's capacity in use.
+     */
+    private static double backlog(StageChannel queue) {
+        final int capacity = queue.capacity();
+        return capacity == 0 ? 0 : (double) queue.size() / capacity;
+    }
+
+    /**
+     * Gets how many oranges per second a number of workers could complete in this stage, based on the
+     * time of every step up to the {@link #job}.
+     *
+     * @param workers Number of workers.
+     * @return Oranges per second the workers could complete.
+     */
+    public double getCapacity(int workers) {
+        return workers * 1000.0 / workMillis;
+    }
+
+    /**
+     * Gets the number of workers currently assigned to this stage.
+     *
+     * @return Number of workers.
+     */
+    @Override
+    public int getWorkerCount() {
+        return workerCount.get();
+    }
+
+    /** Called when a worker is assigned to this stage. */
+    void workerJoined() {
+        workerCount.incrementAndGet();
+    }
+
+    /** Called when a worker is moved away from this stage. */
+    void workerLeft() {
+        workerCount.decrementAndGet();
+    }
+
+    /**
+     * Gets the number of oranges that have completed this stage.
+     *
+     * @return Number of oranges completed.
+     */
+    @Override
+    public long getOrangesCompleted() {
+        return orangesCompleted.sum();
+    }
+
+    /**
+     * Called by a worker before it hands oranges off to the {@link #giveQueue}, so the next stage can never have
+     * completed an orange this stage hasn't counted yet. Also called by a plant {@link PlantCheckpoint resuming} with
+     * the oranges the stage had completed before.
+     *
+     * @param count Number of oranges about to be handed off, or minus the number it then couldn't hand off.
+     */
+    void addOrangesCompleted(long count) {
+        orangesCompleted.add(count);
+    }
+
+    @Override
+    public long getOrangesExpired() {
+        return orangesExpired.sum();
+    }
+
+    /**
+     * Called by a worker after it threw away oranges that had gone off, instead of handing them off. Also called by a
+     * plant {@link PlantCheckpoint resuming} with the oranges the stage had thrown away before.
+     *
+     * @param count Number of oranges thrown away.
+     */
+    void addOrangesExpired(long count) {
+        orangesExpired.add(count);
+    }
+
+    @Override
+    public long getOrangesDropped() {
+        return orangesDropped.sum();
+    }
+
+    /**
+     * Called by a halted worker with the oranges from this stage it was still holding. Also called by a plant
+     * {@link PlantCheckpoint resuming} with the oranges the stage had dropped before.
+     *
+     * @param count Number of oranges dropped.
+     */
+    void addOrangesDropped(long count) {
+        orangesDropped.add(count);
+    }
+
+    /**
+     * Checks if workers throw away oranges that have gone off.
+     *
+     * @return {@code true} if expired oranges are dropped.
+     */
+    public boolean isDropExpired() {
+        return dropExpired;
+    }
+
+    /**
+     * Sets if workers throw away oranges that have gone off before working on them, see
+     * {@link PlantConfig#isDropExpired()}.
+     *
+     * @param dropExpired {@code true} to drop expired oranges.
+     */
+    void setDropExpired(boolean dropExpired) {
+        this.dropExpired = dropExpired;
+    }
+
+    /**
+     * Gets the number of oranges workers of this stage took from other plants and processed for them.
+     *
+     * @return Number of oranges stolen.
+     */
+    public long getOrangesStolen() {
+        return orangesStolen.sum();
+    }
+
+    /**
+     * Called by a worker of this stage after it processes oranges taken from a peer.
+     *
+     * @param count Number of oranges processed for the peer.
+     */
+    void addOrangesStolen(int count) {
+        orangesStolen.add(count);
+    }
+
+    /**
+     * Gets the same stage in other plants.
+     *
+     * @return The peers of this stage, empty if work stealing is off.
+     */
+    public Stage[] getPeers() {
+        return peers;
+    }
+
+    /**
+     * Sets the same stage in other plants, so idle workers of this stage can take oranges from them.
+     *
+     * @param peers The peers of this stage, not including this stage.
+     */
+    void setPeers(Stage[] peers) {
+        this.peers = peers.clone();
+    }
+
+    /**
+     * Finds the peer with the most oranges waiting in its take queue.
+     *
+     * @return The most backed up peer, or {@code null} if no peer has oranges waiting.
+     */
+    public Stage getMostBackedUpPeer() {
+        Stage victim = null;
+        int most = 0;
+        for (Stage p : peers) {
+            if (p.draining) {
+                continue;
+            }
+            final int depth = p.takeQueue.size();
+            if (depth > most) {
+                victim = p;
+                most = depth;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Called by a worker of another plant before it steals from this stage's take queue. If this returns
+     * {@code true} the worker must call {@link #endSteal()} once the stolen oranges are handed to the
+     * {@link #giveQueue}, or given up.
+     *
+     * @return {@code true} if the worker may steal, {@code false} if this stage is draining.
+     */
+    boolean tryBeginSteal() {
+        stealsInFlight.incrementAndGet();
+        if (draining) {
+            stealsInFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /** Called by a worker of another plant once it has handed back what it stole, see {@link #tryBeginSteal()}. */
+    void endSteal() {
+        stealsInFlight.decrementAndGet();
+    }
+
+    /** Stops other plants from stealing from this stage, the plant is about to tell its workers to stop. */
+    void startDraining() {
+        draining = true;
+    }
+
+    /**
+     * Checks if every worker of another plant that stole from this stage has handed the oranges back. Once the
+     * stage is {@link #startDraining() draining} and this is true, it stays true.
+     *
+     * @return {@code true} if no stolen oranges are out.
+     */
+    boolean isStealingDone() {
+        return stealsInFlight.get() == 0;
+    }
+
+    /**
+     * Called by a worker after it has processed an orange.
+     *
+     * @param nanos Time the worker spent processing the orange.
+     */
+    void addBusyNanos(long nanos) {
+        busyNanos.add(nanos);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return takeQueue.size();
+    }
+
+    @Override
+    public double getUtilisation() {
+        return utilisation;
+    }
+
+    /**
+     * Updates {@link #getUtilisation()} with how busy the workers were since the last sample. Should only be
+     * called from one thread.
+     */
+    void sampleUtilisation() {
+        final long now = System.nanoTime();
+        final long busy = busyNanos.sum();
+        final long available = (now - lastSampleNanos) * Math.max(1, workerCount.get());
+        utilisation = available <= 0 ? 0 : Math.min(1, (double) (busy - busyNanosAtSample) / available);
+        busyNanosAtSample = busy;
+        lastSampleNanos = now;
+    }
+}
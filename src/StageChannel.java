@@ -0,0 +1,103 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@code StageChannel} passes oranges from one stage of a {@link Plant} to the next. It is bounded, so a producer
+ * has to wait when the next stage is backed up, and a consumer has to wait when there is nothing to do.
+ *
+ * <p>The default implementation is {@link LinkedStageChannel}, which wraps a
+ * {@link java.util.concurrent.LinkedBlockingQueue}. The {@link RingChannel} implementations are array backed and
+ * lock free, see {@link ChannelType}. A {@link ValidatingChannel} can be wrapped around any of them to inspect
+ * oranges as they are handed off.</p>
+ *
+ * <p>Oranges can also be passed in batches with {@link #drainTo(List, int)} and {@link #offerAll(List, long, TimeUnit)}.
+ * The defaults pass them one at a time, implementations override them where a batch can be passed for the cost of one
+ * orange.</p>
+ */
+public interface StageChannel {
+    /**
+     * Adds an orange to the channel, waiting up to the given time for space to become available.
+     *
+     * @param o       Orange to add.
+     * @param timeout How long to wait before giving up.
+     * @param unit    Unit of the timeout.
+     * @return {@code true} if the orange was added, {@code false} if the channel was still full.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    boolean offer(Orange o, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Takes an orange from the channel, waiting up to the given time for one to become available.
+     *
+     * @param timeout How long to wait before giving up.
+     * @param unit    Unit of the timeout.
+     * @return The orange, or null if the channel was still empty.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    Orange poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Takes an orange from the channel without waiting.
+     *
+     * @return The orange, or null if the channel is empty.
+     */
+    Orange poll();
+
+    /**
+     * Takes as many oranges as are available, up to a maximum, without waiting.
+     *
+     * @param to  List the oranges are added to, in the order they are taken.
+     * @param max Maximum number of oranges to take.
+     * @return Number of oranges taken.
+     */
+    default int drainTo(List<Orange> to, int max) {
+        int taken = 0;
+        Orange o;
+        while (taken < max && (o = poll()) != null) {
+            to.add(o);
+            taken++;
+        }
+        return taken;
+    }
+
+    /**
+     * Adds oranges from the front of a list to the channel, in order, waiting up to the given time in total for
+     * space to become available. Oranges that were added are removed from the list, so the list is left with the
+     * oranges that didn't fit.
+     *
+     * @param oranges Oranges to add.
+     * @param timeout How long to wait before giving up.
+     * @param unit    Unit of the timeout.
+     * @return Number of oranges added.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    default int offerAll(List<Orange> oranges, long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int added = 0;
+        while (added < oranges.size()
+                && offer(oranges.get(added), Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            added++;
+        }
+        // Clearing the whole list doesn't allocate a view, which is the usual case
+        if (added == oranges.size()) {
+            oranges.clear();
+        } else {
+            oranges.subList(0, added).clear();
+        }
+        return added;
+    }
+
+    /**
+     * Gets the number of oranges in the channel. May be out of date as soon as it returns.
+     *
+     * @return Number of oranges in the channel.
+     */
+    int size();
+
+    /**
+     * Gets the maximum number of oranges the channel can hold.
+     *
+     * @return Capacity of the channel.
+     */
+    int capacity();
+}
@@ -0,0 +1,53 @@
+/**
+ * JMX view of a {@link Stage}.
+ */
+public interface StageMBean {
+    /**
+     * Gets the name of the stage.
+     *
+     * @return Name of the stage.
+     */
+    String getName();
+
+    /**
+     * Gets the number of oranges waiting in the stage's take queue.
+     *
+     * @return Queue depth.
+     */
+    int getQueueDepth();
+
+    /**
+     * Gets the number of workers currently assigned to the stage.
+     *
+     * @return Number of workers.
+     */
+    int getWorkerCount();
+
+    /**
+     * Gets the number of oranges that have completed the stage.
+     *
+     * @return Number of oranges completed.
+     */
+    long getOrangesCompleted();
+
+    /**
+     * Gets the number of oranges the stage's workers threw away because they had gone off.
+     *
+     * @return Number of oranges expired.
+     */
+    long getOrangesExpired();
+
+    /**
+     * Gets the number of oranges the stage's workers were holding when they were halted.
+     *
+     * @return Number of oranges dropped.
+     */
+    long getOrangesDropped();
+
+    /**
+     * Gets the fraction of time the stage's workers spent processing oranges, between the last two samples.
+     *
+     * @return Utilisation from 0 to 1.
+     */
+    double getUtilisation();
+}
@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The {@code Sweep} class runs plants with every combination of a set of settings and writes how each combination did:
+ * bottles per second, oranges provided, processed and wasted, and the p50, p99 and max time from fetching an orange to
+ * bottling it. Combinations run concurrently, by default {@link Simulation simulated} on every core.
+ *
+ * <p>Usage: {@code java Sweep --sweep=<name>=<values> ... [options] [settings]}</p>
+ * <ul>
+ *     <li>{@code --sweep=<name>=<values>}: a setting to sweep, named like in {@link PlantConfig#set(String, String)}.
+ *     The values are a list like {@code 4,6,8} or a range like {@code 2..10} or {@code 2..10:2}. Can be given more
+ *     than once, every combination of the values is run.</li>
+ *     <li>{@code --mode=sim|threads}: simulate the plants, or run real plants for the processing time. Default sim.
+ *     Settings the simulation {@link Simulation#isSimulated(String) ignores} can only be swept with real plants.</li>
+ *     <li>{@code --parallel=<n>}: number of combinations run at once. Defaults to the number of cores when
+ *     simulating, and 1 for real plants, whose throughput depends on having the cores to themselves.</li>
+ *     <li>{@code --runs=<n>}: number of times each combination is run, each simulated run has its own seed.
+ *     Default 1.</li>
+ *     <li>{@code --jitterMillis=<millis>}: jitter of simulated runs, see {@link Simulation}.</li>
+ *     <li>{@code --csv=<file>}, {@code --json=<file>}: where to write the results. They are always printed as CSV.</li>
+ * </ul>
+ *
+ * <p>Any other argument is a setting every combination starts from, see {@link PlantConfig#fromArgs(String[])}.
+ * JMX is turned off, so plants running at the same time don't register the same names.</p>
+ */
+public class Sweep {
+    /** Prefix of the arguments naming a setting to sweep. */
+    private static final String SWEEP_PREFIX = "--sweep=";
+
+    /** Names of the result columns, after the swept settings. */
+    private static final String[] RESULT_COLUMNS = {
+            "run", "bottlesPerSecond", "provided", "processed", "bottled", "wasted", "wasteRatio", "deadlineMisses",
+            "p50Millis", "p99Millis", "maxMillis"
+    };
+
+    /**
+     * A setting being swept, and the values it takes.
+     */
+    private static final class Dimension {
+        /** Name of the setting. */
+        private final String key;
+
+        /** Values of the setting. */
+        private final List<String> values;
+
+        /**
+         * Creates a new Dimension object.
+         *
+         * @param key    Name of the setting.
+         * @param values Values of the setting.
+         */
+        private Dimension(String key, List<String> values) {
+            this.key = key;
+            this.values = values;
+        }
+    }
+
+    /**
+     * One run of one combination.
+     */
+    private static final class Row {
+        /** Value of each swept setting, in the order the settings were given. */
+        private final String[] values;
+
+        /** Number of the run of this combination, from 1. */
+        private final int run;
+
+        /** Totals of the run, set once it's done. */
+        private RunResult result;
+
+        /**
+         * Creates a new Row object.
+         *
+         * @param values Value of each swept setting.
+         * @param run    Number of the run of this combination.
+         */
+        private Row(String[] values, int run) {
+            this.values = values;
+            this.run = run;
+        }
+    }
+
+    /**
+     * Main method, parses the options, runs every combination and writes the results.
+     *
+     * @param args Options and settings, see the class description.
+     * @throws Exception If a run fails, or the results can't be written.
+     */
+    public static void main(String[] args) throws Exception {
+        final List<Dimension> dimensions = new ArrayList<>();
+        final List<String> rest = new ArrayList<>();
+        final Map<String, String> options = new HashMap<>();
+        options.put("mode", "sim");
+        options.put("parallel", "0");
+        options.put("runs", "1");
+        options.put("jitterMillis", Double.toString(Simulation.DEFAULT_JITTER_MILLIS));
+        options.put("csv", "");
+        options.put("json", "");
+
+        final PlantConfig base;
+        final boolean simulate;
+        final int runs;
+        final double jitterMillis;
+        int parallel;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith(SWEEP_PREFIX)) {
+                    dimensions.add(parseDimension(arg.substring(SWEEP_PREFIX.length())));
+                } else {
+                    rest.add(arg);
+                }
+            }
+            base = PlantConfig.fromArgs(rest.toArray(new String[0]), options).setJmxEnabled(false);
+            switch (options.get("mode")) {
+                case "sim":
+                    simulate = true;
+                    break;
+                case "threads":
+                    simulate = false;
+                    break;
+                default:
+                    throw new IllegalArgumentException("mode must be sim or threads, got " + options.get("mode"));
+            }
+            // Every value would give the same simulated result, which looks like the setting doesn't matter
+            for (Dimension d : dimensions) {
+                if (simulate && !Simulation.isSimulated(d.key)) {
+                    throw new IllegalArgumentException(d.key + " isn't simulated, sweep it with --mode=threads");
+                }
+            }
+            parallel = Integer.parseInt(options.get("parallel"));
+            runs = Integer.parseInt(options.get("runs"));
+            jitterMillis = Double.parseDouble(options.get("jitterMillis"));
+            if (runs < 1 || parallel < 0) {
+                throw new IllegalArgumentException("runs must be at least 1 and parallel at least 0");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        if (parallel == 0) {
+            parallel = simulate ? Runtime.getRuntime().availableProcessors() : 1;
+        }
+
+        // Build every config up front, so a bad value is reported before anything runs
+        final List<String[]> combinations = combinations(dimensions);
+        final List<Row> rows = new ArrayList<>();
+        final List<PlantConfig> configs = new ArrayList<>();
+        for (String[] values : combinations) {
+            final PlantConfig config = base.copy();
+            try {
+                for (int d = 0; d < values.length; d++) {
+                    config.set(dimensions.get(d).key, values[d]);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+                return;
+            }
+            for (int run = 1; run <= runs; run++) {
+                rows.add(new Row(values, run));
+                configs.add(config);
+            }
+        }
+        System.err.printf("Running %d combinations %d times each, %d at a time (%s)%n", combinations.size(), runs,
+                parallel, simulate ? "simulated" : "threads");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(parallel);
+        final List<Future<RunResult>> futures = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            final PlantConfig config = configs.get(i);
+            final long seed = Simulation.DEFAULT_SEED + rows.get(i).run - 1;
+            futures.add(executor.submit(() -> RunResult.run(config, simulate, seed, jitterMillis)));
+        }
+        final PrintWriter out = new PrintWriter(System.out, true);
+        writeCsvHeader(out, dimensions);
+        Row best = null;
+        try {
+            for (int i = 0; i < rows.size(); i++) {
+                final Row row = rows.get(i);
+                row.result = futures.get(i).get();
+                writeCsvRow(out, row);
+                if (best == null || row.result.getBottlesPerSecond() > best.result.getBottlesPerSecond()) {
+                    best = row;
+                }
+            }
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw e;
+        }
+        executor.shutdown();
+
+        if (!options.get("csv").isEmpty()) {
+            try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(options.get("csv"))))) {
+                writeCsvHeader(csv, dimensions);
+                for (Row row : rows) {
+                    writeCsvRow(csv, row);
+                }
+            }
+        }
+        if (!options.get("json").isEmpty()) {
+            writeJson(options.get("json"), dimensions, rows);
+        }
+        if (best != null && !dimensions.isEmpty()) {
+            final StringBuilder settings = new StringBuilder();
+            for (int d = 0; d < dimensions.size(); d++) {
+                settings.append(' ').append(dimensions.get(d).key).append('=').append(best.values[d]);
+            }
+            System.err.printf(Locale.ROOT, "Most bottles/s: %.1f with%s%n", best.result.getBottlesPerSecond(), settings);
+        }
+    }
+
+    /**
+     * Parses a swept setting, like {@code numPeelers=4,6,8}, {@code numPeelers=2..10} or {@code numPeelers=2..10:2}.
+     *
+     * @param spec Name of the setting and its values.
+     * @return The setting and its values.
+     */
+    private static Dimension parseDimension(String spec) {
+        final int eq = spec.indexOf('=');
+        if (eq <= 0 || eq == spec.length() - 1) {
+            throw new IllegalArgumentException("Expected --sweep=<name>=<values>, got --sweep=" + spec);
+        }
+        final String key = spec.substring(0, eq);
+        final String values = spec.substring(eq + 1);
+        final List<String> list = new ArrayList<>();
+        final int range = values.indexOf("..");
+        if (range < 0) {
+            for (String v : values.split(",")) {
+                list.add(v.trim());
+            }
+            return new Dimension(key, list);
+        }
+        final int colon = values.indexOf(':', range);
+        try {
+            final long lo = Long.parseLong(values.substring(0, range).trim());
+            final long hi = Long.parseLong(values.substring(range + 2, colon < 0 ? values.length() : colon).trim());
+            final long step = colon < 0 ? 1 : Long.parseLong(values.substring(colon + 1).trim());
+            if (step < 1 || hi < lo) {
+                throw new IllegalArgumentException("Range of " + key + " must go up in steps of at least 1, got "
+                        + values);
+            }
+            for (long v = lo; v <= hi; v += step) {
+                list.add(Long.toString(v));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Range of " + key + " must be whole numbers, got " + values);
+        }
+        return new Dimension(key, list);
+    }
+
+    /**
+     * Gets every combination of the values of the swept settings, the last setting changing fastest.
+     *
+     * @param dimensions Swept settings.
+     * @return The value of each setting, for each combination. A single empty combination if nothing is swept.
+     */
+    private static List<String[]> combinations(List<Dimension> dimensions) {
+        List<String[]> combinations = new ArrayList<>();
+        combinations.add(new String[0]);
+        for (Dimension d : dimensions) {
+            final List<String[]> next = new ArrayList<>();
+            for (String[] prefix : combinations) {
+                for (String v : d.values) {
+                    final String[] values = Arrays.copyOf(prefix, prefix.length + 1);
+                    values[prefix.length] = v;
+                    next.add(values);
+                }
+            }
+            combinations = next;
+        }
+        return combinations;
+    }
+
+    /**
+     * Writes the CSV header, the swept settings followed by the {@link #RESULT_COLUMNS}.
+     *
+     * @param out        Where to write.
+     * @param dimensions Swept settings.
+     */
+    private static void writeCsvHeader(PrintWriter out, List<Dimension> dimensions) {
+        final List<String> columns = new ArrayList<>();
+        for (Dimension d : dimensions) {
+            columns.add(csvValue(d.key));
+        }
+        columns.addAll(List.of(RESULT_COLUMNS));
+        out.println(String.join(",", columns));
+    }
+
+    /**
+     * Writes one finished run as a CSV line.
+     *
+     * @param out Where to write.
+     * @param row The run.
+     */
+    private static void writeCsvRow(PrintWriter out, Row row) {
+        final StringBuilder line = new StringBuilder();
+        for (String v : row.values) {
+            line.append(csvValue(v)).append(',');
+        }
+        final RunResult r = row.result;
+        line.append(String.format(Locale.ROOT, "%d,%.2f,%d,%d,%d,%d,%.4f,%d,%.1f,%.1f,%.1f", row.run,
+                r.getBottlesPerSecond(), r.getProvided(), r.getProcessed(), r.getBottled(), r.getWasted(),
+                r.getWasteRatio(), r.getDeadlineMisses(), r.getEndToEnd().getP50Millis(), r.getEndToEnd().getP99Millis(),
+                r.getEndToEnd().getMaxMillis()));
+        out.println(line);
+    }
+
+    /**
+     * Writes every run to a JSON file, as an array with one object per run holding its settings and results.
+     *
+     * @param file       Path of the file.
+     * @param dimensions Swept settings.
+     * @param rows       The runs.
+     * @throws IOException If the file can't be written.
+     */
+    private static void writeJson(String file, List<Dimension> dimensions, List<Row> rows) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file)))) {
+            out.println("[");
+            for (int i = 0; i < rows.size(); i++) {
+                final Row row = rows.get(i);
+                final RunResult r = row.result;
+                final StringBuilder settings = new StringBuilder();
+                for (int d = 0; d < dimensions.size(); d++) {
+                    settings.append(d == 0 ? "" : ", ").append('"').append(dimensions.get(d).key).append("\": ")
+                            .append(jsonValue(row.values[d]));
+                }
+                out.printf(Locale.ROOT, "  {\"settings\": {%s}, \"run\": %d, \"bottlesPerSecond\": %.2f, "
+                                + "\"provided\": %d, \"processed\": %d, \"bottled\": %d, \"wasted\": %d, "
+                                + "\"wasteRatio\": %.4f, \"deadlineMisses\": %d, \"p50Millis\": %.1f, \"p99Millis\": %.1f, \"maxMillis\": %.1f}%s%n",
+                        settings, row.run, r.getBottlesPerSecond(), r.getProvided(), r.getProcessed(), r.getBottled(),
+                        r.getWasted(), r.getWasteRatio(), r.getDeadlineMisses(), r.getEndToEnd().getP50Millis(),
+                        r.getEndToEnd().getP99Millis(), r.getEndToEnd().getMaxMillis(),
+                        i == rows.size() - 1 ? "" : ",");
+            }
+            out.println("]");
+        }
+    }
+
+    /**
+     * Formats a setting's name or value as a CSV cell, quoted if it holds a comma, quote or line break.
+     *
+     * @param value Name or value of the setting.
+     * @return The CSV cell.
+     */
+    private static String csvValue(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Formats a setting's value as JSON, a number or boolean as it is and anything else as a string.
+     *
+     * @param value Value of the setting.
+     * @return The JSON value.
+     */
+    private static String jsonValue(String value) {
+        if (value.matches("-?\\d+(\\.\\d+)?") || value.equals("true") || value.equals("false")) {
+            return value;
+        }
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
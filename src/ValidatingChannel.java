@@ -0,0 +1,134 @@
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code ValidatingChannel} class is the line inspector of a {@link Plant}. It wraps another
+ * {@link StageChannel} and checks every orange as it is handed off: an orange that isn't in the
+ * {@link #expectedState} is taken off the line instead of being added, and counted.
+ *
+ * <p>Oranges aren't changed while they wait in a channel, so checking each one once when it is added finds the
+ * same oranges as scanning the whole channel would, but the cost is paid by the producer of that orange only and
+ * doesn't depend on how many oranges are in the channel.</p>
+ *
+ * <p>The {@link Orange#POISON_PILL poison pill} isn't an orange, so it is always let through.</p>
+ */
+public class ValidatingChannel implements StageChannel {
+    /** Channel holding the oranges that passed inspection. */
+    private final StageChannel channel;
+
+    /** {@link Orange.State} every orange added to this channel should be in. */
+    private final Orange.State expectedState;
+
+    /** Name of the channel, used in messages. */
+    private final String name;
+
+    /** Number of oranges taken off the line because they were in the wrong state. */
+    private final LongAdder orangesRemoved;
+
+    /**
+     * Creates a new ValidatingChannel object.
+     *
+     * @param channel       Channel to add oranges that pass inspection to.
+     * @param expectedState State every orange added to this channel should be in.
+     * @param name          Name of the channel, used in messages.
+     */
+    public ValidatingChannel(StageChannel channel, Orange.State expectedState, String name) {
+        this.channel = channel;
+        this.expectedState = expectedState;
+        this.name = name;
+        this.orangesRemoved = new LongAdder();
+    }
+
+    /**
+     * Adds an orange to the channel if it is in the {@link #expectedState}. Otherwise the orange is taken off the
+     * line and counted, which also counts as handing it off, so the producer moves on.
+     *
+     * @param o       Orange to add.
+     * @param timeout How long to wait before giving up.
+     * @param unit    Unit of the timeout.
+     * @return {@code true} if the orange was added or taken off the line, {@code false} if the channel was still full.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    @Override
+    public boolean offer(Orange o, long timeout, TimeUnit unit) throws InterruptedException {
+        if (o.getState() != expectedState && o != Orange.POISON_PILL) {
+            orangesRemoved.increment();
+            System.err.println("Removed orange with state '" + o.getState() + "' from " + name + ", expected '" + expectedState + "'.");
+            return true;
+        }
+        return channel.offer(o, timeout, unit);
+    }
+
+    @Override
+    public Orange poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return channel.poll(timeout, unit);
+    }
+
+    @Override
+    public Orange poll() {
+        return channel.poll();
+    }
+
+    @Override
+    public int drainTo(List<Orange> to, int max) {
+        return channel.drainTo(to, max);
+    }
+
+    @Override
+    public int offerAll(List<Orange> oranges, long timeout, TimeUnit unit) throws InterruptedException {
+        // Take wrong oranges off the line and close the gaps, without allocating
+        int kept = 0;
+        for (int i = 0; i < oranges.size(); i++) {
+            final Orange o = oranges.get(i);
+            if (o.getState() == expectedState || o == Orange.POISON_PILL) {
+                oranges.set(kept++, o);
+            } else {
+                orangesRemoved.increment();
+                System.err.println("Removed orange with state '" + o.getState() + "' from " + name + ", expected '" + expectedState + "'.");
+            }
+        }
+        final int removed = oranges.size() - kept;
+        while (oranges.size() > kept) {
+            oranges.remove(oranges.size() - 1);
+        }
+        return removed + channel.offerAll(oranges, timeout, unit);
+    }
+
+    @Override
+    public int size() {
+        return channel.size();
+    }
+
+    @Override
+    public int capacity() {
+        return channel.capacity();
+    }
+
+    /**
+     * Gets the state every orange in this channel is in.
+     *
+     * @return State of the oranges.
+     */
+    public Orange.State getExpectedState() {
+        return expectedState;
+    }
+
+    /**
+     * Gets how many oranges were taken off the line because they were in the wrong state.
+     *
+     * @return Number of oranges removed.
+     */
+    public long getOrangesRemoved() {
+        return orangesRemoved.sum();
+    }
+
+    /**
+     * Adds the oranges the channel had removed before a plant was restarted, see {@link PlantCheckpoint}.
+     *
+     * @param removed Number of oranges removed before.
+     */
+    void restoreOrangesRemoved(long removed) {
+        orangesRemoved.add(removed);
+    }
+}
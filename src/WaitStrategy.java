@@ -0,0 +1,33 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Enumeration used to define what a thread does while it waits on a {@link RingChannel} that is full or empty.
+ */
+public enum WaitStrategy {
+    /** Busy spins, lowest latency but keeps a core busy. */
+    SPIN,
+
+    /** Gives the core to another thread between attempts. */
+    YIELD,
+
+    /** Parks the thread for a short time between attempts, costs the least CPU. */
+    PARK;
+
+    /** How long a thread is parked for between attempts, in nanoseconds. */
+    private static final long PARK_NANOS = 50_000;
+
+    /** Waits a little before the next attempt. */
+    void idle() {
+        switch (this) {
+            case SPIN:
+                Thread.onSpinWait();
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+        }
+    }
+}
@@ -1,44 +1,98 @@
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
- * The {@code Worker} class is meant to be spawned from the {@link Plant} class. A worker will have a {@link #job}, which
- * represents when to stop doing work on an {@link Orange}. The worker will get oranges to do work on from the {@link #takeQueue},
- * and then add the oranges to the {@link #giveQueue} when the worker is done doing its job on it.
+ * The {@code Worker} class is meant to be spawned from the {@link Plant} class. A worker is assigned to a {@link Stage},
+ * which has a job that represents when to stop doing work on an {@link Orange}. The worker will get oranges to do work
+ * on from the stage's take queue, and then add the oranges to the stage's give queue when the worker is done doing its
+ * job on it. A worker can be moved to another stage with {@link #assign(Stage)}, it will finish the orange it is
+ * working on before switching.
+ *
+ * <p>If the worker's stage has {@link Stage#getPeers() peers} in other plants, a worker that finds its own take queue
+ * empty steals an orange from the most backed up peer instead of waiting, and gives it back to that peer's pipeline
+ * once its job is done.</p>
+ *
+ * <p>If the stage has a {@link Stage#getBatchSize() batch size} above 1, the worker takes as many oranges as are
+ * waiting, up to the batch size, waiting at most the stage's linger time for more once it has one. It processes the
+ * whole batch and then hands it off at once, so the queues are touched once per batch instead of once per orange.</p>
+ *
+ * <p>If the stage {@link Stage#isDropExpired() drops expired oranges}, the worker throws away every orange of a batch
+ * that has gone off before doing any work on it, so its time goes to oranges that can still make their deadline.</p>
+ *
+ * <p>A worker stops once it takes an {@link Orange#POISON_PILL poison pill} from its own take queue. The plant puts
+ * one in for each worker of a stage behind the last real orange, so every orange already in the queue is processed
+ * first. {@link #halt()} stops the worker right away instead.</p>
+ *
+ * <p>The worker records a {@link QueueTakeEvent} for every wait on its take queue, an {@link OrangeStageEvent} for every
+ * orange and a {@link QueuePutEvent} for every hand off, if a Flight Recorder recording is running.</p>
  */
 public class Worker implements Runnable {
     /** Max amount of time a worker will wait to get/add an orange from/to a queue. */
     private static final int MAX_TIMEOUT_TIME_MILLIS = 100;
 
+    /** Time a worker waits on its own take queue before looking for an orange to steal. */
+    private static final int STEAL_TIMEOUT_TIME_MILLIS = 5;
+
     /** Thread for the worker. */
     private final Thread thread;
 
+    /** Name of the plant the worker works in, used in Flight Recorder events. */
+    private final String plantName;
+
     /** When true, the worker should do work. */
     private volatile boolean timeToWork;
 
-    /** Queue to get oranges from to process them. */
-    private final BlockingQueue<Orange> takeQueue;
+    /** {@link Stage} the worker is currently working in. */
+    private volatile Stage stage;
 
-    /** Queue to add oranges to after the workers job is complete. */
-    private final BlockingQueue<Orange> giveQueue;
+    /** Metrics of the plant, records how long each state takes. */
+    private final PlantMetrics metrics;
 
-    /** {@link Orange.State} object which represents when the worker should stop processing an orange. */
-    private final Orange.State job;
+    /** Oranges the worker is working on, only used by the worker's thread. */
+    private final List<Orange> batch;
 
     /**
      * Creates a new Worker object.
      *
-     * @param plantNum  Number of plant this worker is working in, used to name worker thread.
-     * @param threadNum Number of thread/worker.
-     * @param takeQueue Queue to take oranges from.
-     * @param giveQueue Queue to add oranges to after the workers job is complete
-     * @param job       The worker will process an orange until it's {@link Orange.State} equals job.
+     * @param plantNum      Number of plant this worker is working in, used to name worker thread.
+     * @param threadNum     Number of thread/worker.
+     * @param stage         Stage the worker starts working in.
+     * @param metrics       Metrics of the plant.
+     * @param threadFactory Factory used to create the worker's thread.
      */
-    public Worker(int plantNum, int threadNum, BlockingQueue<Orange> takeQueue, BlockingQueue<Orange> giveQueue, Orange.State job) {
-        this.takeQueue = takeQueue;
-        this.giveQueue = giveQueue;
-        this.thread = new Thread(this, "Worker[" + plantNum + "." + threadNum + "]");
-        this.job = job;
+    public Worker(int plantNum, int threadNum, Stage stage, PlantMetrics metrics, ThreadFactory threadFactory) {
+        this.metrics = metrics;
+        this.batch = new ArrayList<>();
+        this.plantName = "Plant[" + plantNum + "]";
+        this.thread = ExecutionMode.newThread(threadFactory, this, "Worker[" + plantNum + "." + threadNum + "]");
+        this.stage = stage;
+        stage.workerJoined();
+    }
+
+    /**
+     * Moves the worker to a different stage. The worker finishes and hands off the orange it is currently
+     * working on in its old stage, so no oranges are lost.
+     *
+     * @param newStage Stage to work in from now on.
+     */
+    public synchronized void assign(Stage newStage) {
+        if (newStage == stage) {
+            return;
+        }
+        stage.workerLeft();
+        newStage.workerJoined();
+        stage = newStage;
+    }
+
+    /**
+     * Gets the stage the worker is currently working in.
+     *
+     * @return The worker's stage.
+     */
+    public Stage getStage() {
+        return stage;
     }
 
     /** Starts thread by setting {@link #timeToWork} to true and calling {@link Thread#start()}. */
@@ -48,44 +102,263 @@ public class Worker implements Runnable {
     }
 
     /**
-     * Stops thread from working by setting {@link #timeToWork} to false,
-     * but doesn't stop thread from running. (To stop thread from running, call {@link #waitToStop()})
+     * Stops the worker right away by setting {@link #timeToWork} to false and interrupting it. Oranges the worker
+     * is holding are lost, and counted as {@link Stage#getOrangesDropped() dropped} by the stage they were taken
+     * from. To stop a worker once its queue is empty instead, give it an
+     * {@link Orange#POISON_PILL poison pill}. (To wait for the thread to finish, call {@link #waitToStop()})
      */
-    public void stop() {
+    public void halt() {
         timeToWork = false;
+        thread.interrupt();
     }
 
     /**
-     * Runs this thread. While {@link #timeToWork} is true, the thread will repeatedly take oranges from it's {@link #takeQueue},
-     * process the {@link Orange} until the threads given {@link #job} is done, and then pass the orange off to it's {@link #giveQueue}.
+     * Runs this thread. While {@link #timeToWork} is true, the thread will repeatedly take oranges from it's stage's take queue,
+     * process the {@link Orange} until the stage's job is done, and then pass the orange off to the stage's give queue.
+     * The thread finishes once it takes an {@link Orange#POISON_PILL poison pill} from its own take queue, after
+     * handing off the oranges it is holding.
      */
     @Override
     public void run() {
         while (timeToWork) {
+            // Read the stage once per orange, so a reassignment never splits an orange across two stages
+            final Stage current = stage;
+            final boolean stealing = current.getPeers().length > 0;
+            batch.clear();
             try {
-                // Attempt to get an orange from the takeQueue, waits up to 100 milliseconds if none available
-                final Orange o = takeQueue.poll(MAX_TIMEOUT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+                // Attempt to get an orange from the takeQueue, waits up to 100 milliseconds if none available.
+                // Don't wait as long if there may be oranges to steal from other plants.
+                final QueueTakeEvent take = QueueTakeEvent.isRecorded() ? new QueueTakeEvent() : null;
+                if (take != null) {
+                    take.begin();
+                }
+                final Orange o = current.getTakeQueue().poll(stealing ? STEAL_TIMEOUT_TIME_MILLIS : MAX_TIMEOUT_TIME_MILLIS,
+                        TimeUnit.MILLISECONDS);
+                if (take != null && take.shouldCommit()) {
+                    take.plant = plantName;
+                    take.stage = current.getName();
+                    take.tookOrange = o != null;
+                    take.commit();
+                }
+                if (o == Orange.POISON_PILL) {
+                    return;
+                }
                 if (o != null) {
-                    processOrange(o);
-
-                    // Put an orange in the giveQueue, waits if queue is full
-                    giveQueue.put(o);
+                    if (work(current, current, o)) {
+                        return;
+                    }
+                } else if (stealing) {
+                    // The victim can't start draining while the steal is out, so a stolen batch never has a pill
+                    final Stage victim = current.getMostBackedUpPeer();
+                    if (victim != null && victim.tryBeginSteal()) {
+                        try {
+                            final Orange stolen = victim.getTakeQueue().poll();
+                            if (stolen != null) {
+                                work(current, victim, stolen);
+                            }
+                        } finally {
+                            victim.endSteal();
+                        }
+                    }
                 }
             } catch (InterruptedException e) {
-                System.err.println(Thread.currentThread().getName() + " interrupted when waiting to get orange from queue.");
+                if (timeToWork) {
+                    System.err.println(Thread.currentThread().getName() + " interrupted when waiting to get orange from queue.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills a batch starting with an orange, does the owner stage's job on every orange and hands the batch to the
+     * owner's give queue.
+     *
+     * @param current Stage the worker works in.
+     * @param owner   Stage the orange was taken from, the current one or a peer it was stolen from.
+     * @param first   First orange of the batch.
+     * @return {@code true} if the batch had a {@link Orange#POISON_PILL poison pill} in it, and the worker should stop.
+     * @throws InterruptedException If interrupted while waiting on a queue or processing an orange.
+     */
+    private boolean work(Stage current, Stage owner, Orange first) throws InterruptedException {
+        batch.add(first);
+        try {
+            return workBatch(current, owner);
+        } finally {
+            // Halted part way, whatever is still held never reaches the give queue
+            removePills();
+            if (!batch.isEmpty()) {
+                owner.addOrangesDropped(batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Does the work of {@link #work(Stage, Stage, Orange)} on the {@link #batch}, which holds the first orange.
+     *
+     * @param current Stage the worker works in.
+     * @param owner   Stage the orange was taken from.
+     * @return {@code true} if the batch had a {@link Orange#POISON_PILL poison pill} in it.
+     * @throws InterruptedException If interrupted while waiting on a queue or processing an orange.
+     */
+    private boolean workBatch(Stage current, Stage owner) throws InterruptedException {
+        if (owner.getBatchSize() > 1) {
+            fillBatch(owner);
+        }
+        final int pills = removePills();
+        if (owner.isDropExpired()) {
+            owner.addOrangesExpired(removeExpired());
+        }
+        long busyNanos = 0;
+        // Indexed, so no iterator is allocated per orange
+        for (int i = 0; i < batch.size(); i++) {
+            // Only create events while they are recorded, so the loop doesn't allocate per orange
+            final OrangeStageEvent event = OrangeStageEvent.isRecorded() ? new OrangeStageEvent() : null;
+            if (event != null) {
+                event.begin();
+            }
+            busyNanos += processOrange(batch.get(i), owner.getJob());
+            if (event != null && event.shouldCommit()) {
+                event.plant = plantName;
+                event.stage = owner.getName();
+                event.state = owner.getJob().name();
+                event.stolen = owner != current;
+                event.commit();
+            }
+        }
+        current.addBusyNanos(busyNanos);
+        if (owner != current) {
+            current.addOrangesStolen(batch.size());
+        }
+
+        // Put the oranges in the giveQueue, waits up to 100 milliseconds at a time if queue is full.
+        // Don't block forever, the worker may be halted. A stolen orange goes back to the plant it came from.
+        final StageChannel giveQueue = owner.getGiveQueue();
+        final int completed = batch.size();
+        owner.addOrangesCompleted(completed);
+        final QueuePutEvent put = QueuePutEvent.isRecorded() ? new QueuePutEvent() : null;
+        if (put != null) {
+            put.begin();
+        }
+        try {
+            while (timeToWork && !batch.isEmpty()) {
+                giveQueue.offerAll(batch, MAX_TIMEOUT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            // Halted or interrupted part way, the oranges still held were never handed off
+            if (!batch.isEmpty()) {
+                owner.addOrangesCompleted(-batch.size());
+            }
+        }
+        if (put != null && put.shouldCommit()) {
+            put.plant = plantName;
+            put.stage = owner.getName();
+            put.oranges = completed - batch.size();
+            put.commit();
+        }
+
+        // One pill is this worker's, the others belong to other workers of the stage
+        for (int i = 1; i < pills && timeToWork; ) {
+            if (owner.getTakeQueue().offer(Orange.POISON_PILL, MAX_TIMEOUT_TIME_MILLIS, TimeUnit.MILLISECONDS)) {
+                i++;
             }
         }
+        return pills > 0;
     }
 
     /**
-     * Runs {@link Orange#runProcess()} on given orange until this thread has done it's {@link #job}.
+     * Takes the {@link Orange#POISON_PILL poison pills} out of the {@link #batch}, keeping the order of the oranges.
      *
-     * @param o Orange to run process on.
+     * @return Number of pills taken out.
      */
-    private void processOrange(Orange o) {
+    private int removePills() {
+        int kept = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            final Orange o = batch.get(i);
+            if (o != Orange.POISON_PILL) {
+                batch.set(kept++, o);
+            }
+        }
+        final int pills = batch.size() - kept;
+        while (batch.size() > kept) {
+            batch.remove(batch.size() - 1);
+        }
+        return pills;
+    }
+
+    /**
+     * Takes the oranges that have gone off out of the {@link #batch}, keeping the order of the others. They are left
+     * to the garbage collector.
+     *
+     * @return Number of oranges taken out.
+     */
+    private int removeExpired() {
+        final long now = System.nanoTime();
+        int kept = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            final Orange o = batch.get(i);
+            if (!o.isExpired(now)) {
+                batch.set(kept++, o);
+            }
+        }
+        final int expired = batch.size() - kept;
+        while (batch.size() > kept) {
+            batch.remove(batch.size() - 1);
+        }
+        return expired;
+    }
+
+    /**
+     * Adds more oranges from a stage's take queue to the {@link #batch}, until it holds the stage's batch size or
+     * the stage's linger time has passed.
+     *
+     * @param owner Stage whose take queue the batch came from.
+     * @throws InterruptedException If interrupted while waiting for oranges.
+     */
+    private void fillBatch(Stage owner) throws InterruptedException {
+        final StageChannel takeQueue = owner.getTakeQueue();
+        final int batchSize = owner.getBatchSize();
+        takeQueue.drainTo(batch, batchSize - batch.size());
+        final long deadline = System.nanoTime() + owner.getBatchLingerNanos();
+        while (timeToWork && batch.size() < batchSize) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            final Orange o = takeQueue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (o == null) {
+                break;
+            }
+            batch.add(o);
+            takeQueue.drainTo(batch, batchSize - batch.size());
+        }
+    }
+
+    /**
+     * Runs {@link Orange#runProcess()} on given orange until this thread has done it's job.
+     *
+     * @param o   Orange to run process on.
+     * @param job State the orange should be in once the work is done.
+     * @return Time spent processing the orange, in nanoseconds.
+     * @throws InterruptedException If the worker was halted while processing the orange.
+     */
+    private long processOrange(Orange o, Orange.State job) throws InterruptedException {
+        final long start = System.nanoTime();
+        long stateStart = start;
         while (o.getState() != job) {
             o.runProcess();
+            final long now = System.nanoTime();
+            metrics.getStateTime(o.getState()).record(now - stateStart);
+            stateStart = now;
+            if (Thread.interrupted()) {
+                // Being halted is how a hard stop works, any other interrupt cut the work short by mistake
+                if (!timeToWork) {
+                    throw new InterruptedException();
+                }
+                System.err.println("Incomplete orange processing, juice may be bad");
+            }
         }
+        return stateStart - start;
     }
 
     /** Waits for thread to stop by calling {@link Thread#join()}. */
@@ -96,4 +369,19 @@ public class Worker implements Runnable {
             System.err.println(thread.getName() + " stop malfunction");
         }
     }
+
+    /**
+     * Waits for thread to stop, but no longer than a timeout.
+     *
+     * @param timeoutNanos Longest time to wait, in nanoseconds. If not positive, the thread isn't waited for.
+     * @return {@code true} if the thread has stopped.
+     */
+    public boolean waitToStop(long timeoutNanos) {
+        try {
+            TimeUnit.NANOSECONDS.timedJoin(thread, timeoutNanos);
+        } catch (InterruptedException e) {
+            System.err.println(thread.getName() + " stop malfunction");
+        }
+        return !thread.isAlive();
+    }
 }
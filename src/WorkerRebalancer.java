@@ -0,0 +1,158 @@
+/**
+ * The {@code WorkerRebalancer} class moves {@link Worker workers} between the {@link Stage stages} of a {@link Plant}
+ * while it is running. It is meant to be called periodically from the plant thread with {@link #rebalance()}.
+ *
+ * <p>Each call samples how backed up each stage's take queue is and how many oranges left the last stage since the
+ * previous call. If one stage is backed up (and not just blocked by a full give queue) while another is starving,
+ * one worker is moved from the starving stage to the backed up one, as long as the starving stage would still keep
+ * up without it. If the last move made the plant slower, it is undone, and the same move isn't tried again for
+ * {@link #REVERT_COOLDOWN_INTERVALS} calls, so a worker doesn't bounce between two stages. The total number of
+ * workers never changes, and a moved worker finishes the orange it is working on first, so no oranges are lost.</p>
+ */
+public class WorkerRebalancer {
+    /** A stage whose take queue is at least this full is considered backed up. */
+    private static final double HIGH_BACKLOG = 0.8;
+
+    /** A stage whose take queue is at most this full is considered starving. */
+    private static final double LOW_BACKLOG = 0.2;
+
+    /** A move is undone if throughput drops below this fraction of the throughput before the move. */
+    private static final double REVERT_THRESHOLD = 0.8;
+
+    /** Number of calls after a move is undone before the same move may be made again. */
+    private static final int REVERT_COOLDOWN_INTERVALS = 8;
+
+    /** Minimum number of workers kept in every stage. */
+    private static final int MIN_WORKERS_PER_STAGE = 1;
+
+    /** Stages workers can be moved between. */
+    private final Stage[] stages;
+
+    /** Workers that can be moved. */
+    private final Worker[] workers;
+
+    /** Oranges completed by the last stage at the previous sample. */
+    private long lastCompleted;
+
+    /** Time of the previous sample, in nanoseconds. */
+    private long lastSampleNanos;
+
+    /** Oranges per second completed by the last stage before the last move, or -1 if there is no move to judge. */
+    private double throughputBeforeMove;
+
+    /** Stage a worker was taken from in the last move. */
+    private Stage lastFrom;
+
+    /** Stage a worker was moved to in the last move. */
+    private Stage lastTo;
+
+    /** Stage a worker was taken from in the last move that was undone. */
+    private Stage revertedFrom;
+
+    /** Stage a worker was moved to in the last move that was undone. */
+    private Stage revertedTo;
+
+    /** Number of calls left before the undone move may be made again. */
+    private int cooldown;
+
+    /**
+     * Creates a new WorkerRebalancer object.
+     *
+     * @param stages  Stages of the plant, in pipeline order.
+     * @param workers Workers of the plant.
+     */
+    public WorkerRebalancer(Stage[] stages, Worker[] workers) {
+        this.stages = stages;
+        this.workers = workers;
+        this.lastCompleted = stages[stages.length - 1].getOrangesCompleted();
+        this.lastSampleNanos = System.nanoTime();
+        this.throughputBeforeMove = -1;
+    }
+
+    /**
+     * Samples the stages and moves at most one worker. Should only be called from one thread.
+     */
+    public void rebalance() {
+        final long now = System.nanoTime();
+        final long completed = stages[stages.length - 1].getOrangesCompleted();
+        final double throughput = (completed - lastCompleted) * 1e9 / Math.max(1, now - lastSampleNanos);
+        lastCompleted = completed;
+        lastSampleNanos = now;
+        if (cooldown > 0) {
+            cooldown--;
+        }
+
+        // Judge the last move, undo it if the plant got slower
+        if (throughputBeforeMove >= 0) {
+            final boolean worse = throughput < throughputBeforeMove * REVERT_THRESHOLD;
+            throughputBeforeMove = -1;
+            if (worse && move(lastTo, lastFrom)) {
+                revertedFrom = lastFrom;
+                revertedTo = lastTo;
+                cooldown = REVERT_COOLDOWN_INTERVALS;
+                return;
+            }
+        }
+
+        // Find the most backed up stage that isn't just waiting on the next stage
+        Stage busiest = null;
+        for (Stage s : stages) {
+            final double backlog = s.getBacklog();
+            if (backlog >= HIGH_BACKLOG && s.getOutputBacklog() < HIGH_BACKLOG
+                    && (busiest == null || backlog > busiest.getBacklog())) {
+                busiest = s;
+            }
+        }
+        if (busiest == null) {
+            return;
+        }
+
+        // Find the starving stage with the most capacity to spare. Don't just move the bottleneck,
+        // the donor has to keep up with the busy stage after giving a worker away
+        final double busiestCapacity = busiest.getCapacity(busiest.getWorkerCount());
+        Stage idlest = null;
+        double idlestCapacity = busiestCapacity;
+        for (Stage s : stages) {
+            if (s == busiest || s.getBacklog() > LOW_BACKLOG || s.getWorkerCount() <= MIN_WORKERS_PER_STAGE) {
+                continue;
+            }
+            // Don't make a move that was just undone, the queues that led to it usually haven't changed
+            if (cooldown > 0 && s == revertedFrom && busiest == revertedTo) {
+                continue;
+            }
+            final double capacityAfterMove = s.getCapacity(s.getWorkerCount() - 1);
+            if (capacityAfterMove >= idlestCapacity) {
+                idlest = s;
+                idlestCapacity = capacityAfterMove;
+            }
+        }
+        if (idlest == null) {
+            return;
+        }
+        if (move(idlest, busiest)) {
+            throughputBeforeMove = throughput;
+            lastFrom = idlest;
+            lastTo = busiest;
+        }
+    }
+
+    /**
+     * Moves one worker from one stage to another.
+     *
+     * @param from Stage to take a worker from.
+     * @param to   Stage to give the worker to.
+     * @return {@code true} if a worker was moved, {@code false} if from couldn't spare a worker.
+     */
+    private boolean move(Stage from, Stage to) {
+        if (from.getWorkerCount() <= MIN_WORKERS_PER_STAGE) {
+            return false;
+        }
+        for (Worker w : workers) {
+            if (w.getStage() == from) {
+                w.assign(to);
+                return true;
+            }
+        }
+        return false;
+    }
+}
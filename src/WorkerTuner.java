@@ -0,0 +1,423 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The {@code WorkerTuner} class looks for the split of a fixed number of workers between peeling, squeezing and
+ * bottling that makes the most bottles per second, or wastes the fewest oranges.
+ *
+ * <p>The first split gives each step workers in proportion to how long it takes, from
+ * {@link PlantConfig#getStateMillis(Orange.State)}. The tuner then climbs from there: it tries every split that moves
+ * one worker from one step to another, runs each a few times as short trial plants, and moves to the best one if it
+ * beats the current split. It stops once no move helps. Each split is reported with the mean of its trials and a 95%
+ * confidence interval, so a win that is within the noise can be told apart from a real one.</p>
+ *
+ * <p>Trials are {@link Simulation simulated} by default, in parallel on every core, which makes a whole search take
+ * seconds. With {@code --mode=threads} trials run real plants one at a time instead. Workers aren't
+ * {@link PlantConfig#isRebalanceWorkers() rebalanced} during trials, since that would change the split being
+ * measured.</p>
+ *
+ * <p>Usage: {@code java WorkerTuner [--budget=<workers>] [--objective=bottles|waste] [--mode=sim|threads]
+ * [--runs=<n>] [--parallel=<n>] [--jitterMillis=<millis>] [settings]}, where the budget is the number of workers per
+ * plant (by default the config's total), the runs are the trials per split (default 5), and the settings are those
+ * of {@link PlantConfig#fromArgs(String[])}. {@link PlantConfig#getProcessingTimeMillis()} is the length of each
+ * trial.</p>
+ */
+public class WorkerTuner {
+    /** What the tuner tries to improve. */
+    public enum Objective {
+        /** Make the most bottles per second. */
+        BOTTLES,
+
+        /** Waste the fewest oranges. */
+        WASTE
+    }
+
+    /** Steps workers are split between, in pipeline order. */
+    private static final Orange.State[] STEPS = {Orange.State.Peeled, Orange.State.Squeezed, Orange.State.Bottled};
+
+    /** Two-sided 95% quantiles of Student's t distribution, for 1 to 30 degrees of freedom. */
+    private static final double[] T_95 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+    };
+
+    /** Quantile used for more than 30 degrees of freedom, that of the normal distribution. */
+    private static final double Z_95 = 1.96;
+
+    /**
+     * A split of the workers and the results of its trials.
+     */
+    public static final class Candidate {
+        /** Number of workers of each of the {@link #STEPS}. */
+        private final int[] workers;
+
+        /** Bottles per second of each trial. */
+        private final double[] bottlesPerSecond;
+
+        /** Oranges wasted in each trial. */
+        private final double[] wasted;
+
+        /**
+         * Creates a new Candidate object.
+         *
+         * @param workers Number of workers of each step.
+         * @param trials  Results of the trials.
+         */
+        private Candidate(int[] workers, List<RunResult> trials) {
+            this.workers = workers;
+            this.bottlesPerSecond = new double[trials.size()];
+            this.wasted = new double[trials.size()];
+            for (int i = 0; i < trials.size(); i++) {
+                bottlesPerSecond[i] = trials.get(i).getBottlesPerSecond();
+                wasted[i] = trials.get(i).getWasted();
+            }
+        }
+
+        /**
+         * Gets the number of workers doing a step.
+         *
+         * @param step {@link Orange.State#Peeled}, {@link Orange.State#Squeezed} or {@link Orange.State#Bottled}.
+         * @return Number of workers.
+         */
+        public int getWorkers(Orange.State step) {
+            return workers[step.ordinal() - Orange.State.Peeled.ordinal()];
+        }
+
+        /**
+         * Gets the mean bottles per second of the trials.
+         *
+         * @return Bottles per second.
+         */
+        public double getBottlesPerSecond() {
+            return mean(bottlesPerSecond);
+        }
+
+        /**
+         * Gets the half width of the 95% confidence interval of the bottles per second.
+         *
+         * @return Half width of the interval, 0 if there was only one trial.
+         */
+        public double getBottlesPerSecondError() {
+            return halfWidth(bottlesPerSecond);
+        }
+
+        /**
+         * Gets the mean number of oranges wasted by the trials.
+         *
+         * @return Oranges wasted.
+         */
+        public double getWasted() {
+            return mean(wasted);
+        }
+
+        /**
+         * Gets the half width of the 95% confidence interval of the oranges wasted.
+         *
+         * @return Half width of the interval, 0 if there was only one trial.
+         */
+        public double getWastedError() {
+            return halfWidth(wasted);
+        }
+
+        /**
+         * Gets how good the split is for an objective, higher is better.
+         *
+         * @param objective What the tuner tries to improve.
+         * @return Score of the split.
+         */
+        private double score(Objective objective) {
+            return objective == Objective.BOTTLES ? getBottlesPerSecond() : -getWasted();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "peel=%d squeeze=%d bottle=%d: %.1f +- %.1f bottles/s, wasted %.1f +- %.1f",
+                    workers[0], workers[1], workers[2], getBottlesPerSecond(), getBottlesPerSecondError(),
+                    getWasted(), getWastedError());
+        }
+    }
+
+    /** Settings every trial starts from. */
+    private final PlantConfig base;
+
+    /** Number of workers split between the steps. */
+    private final int budget;
+
+    /** What to improve. */
+    private final Objective objective;
+
+    /** If true, trials are simulated, otherwise real plants are run. */
+    private final boolean simulate;
+
+    /** Number of trials per split. */
+    private final int runs;
+
+    /** Jitter of simulated trials, in milliseconds. */
+    private final double jitterMillis;
+
+    /** Runs the trials. */
+    private final ExecutorService executor;
+
+    /** Every split tried so far, by {@link #key(int[])}. */
+    private final Map<String, Candidate> tried;
+
+    /**
+     * Main method, parses the options, tunes the split and prints the best one.
+     *
+     * @param args Options and settings, see the class description.
+     * @throws Exception If a trial fails.
+     */
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        options.put("budget", "0");
+        options.put("objective", "bottles");
+        options.put("mode", "sim");
+        options.put("runs", "5");
+        options.put("parallel", "0");
+        options.put("jitterMillis", Double.toString(Simulation.DEFAULT_JITTER_MILLIS));
+
+        final WorkerTuner tuner;
+        try {
+            final PlantConfig base = PlantConfig.fromArgs(args, options);
+            final int budget = Integer.parseInt(options.get("budget"));
+            final Objective objective = Objective.valueOf(options.get("objective").toUpperCase());
+            final String mode = options.get("mode");
+            if (!mode.equals("sim") && !mode.equals("threads")) {
+                throw new IllegalArgumentException("mode must be sim or threads, got " + mode);
+            }
+            final boolean simulate = mode.equals("sim");
+            int parallel = Integer.parseInt(options.get("parallel"));
+            if (parallel <= 0) {
+                parallel = simulate ? Runtime.getRuntime().availableProcessors() : 1;
+            }
+            tuner = new WorkerTuner(base, budget > 0 ? budget : base.getTotalWorkers(), objective, simulate,
+                    Integer.parseInt(options.get("runs")), Double.parseDouble(options.get("jitterMillis")), parallel);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        final Candidate best;
+        try {
+            best = tuner.tune();
+        } finally {
+            tuner.shutdown();
+        }
+        System.out.println("=".repeat(10) + "Best split" + "=".repeat(10));
+        System.out.println(best);
+        System.out.printf("--numPeelers=%d --numSqueezers=%d --numBottlers=%d%n", best.getWorkers(Orange.State.Peeled),
+                best.getWorkers(Orange.State.Squeezed), best.getWorkers(Orange.State.Bottled));
+    }
+
+    /**
+     * Creates a new WorkerTuner object.
+     *
+     * @param base         Settings every trial starts from, the worker counts are replaced.
+     * @param budget       Number of workers per plant split between the steps, at least one per step.
+     * @param objective    What to improve.
+     * @param simulate     {@code true} to simulate the trials, {@code false} to run real plants.
+     * @param runs         Number of trials per split.
+     * @param jitterMillis Jitter of simulated trials, in milliseconds.
+     * @param parallel     Number of trials run at once.
+     */
+    public WorkerTuner(PlantConfig base, int budget, Objective objective, boolean simulate, int runs,
+                       double jitterMillis, int parallel) {
+        if (budget < STEPS.length) {
+            throw new IllegalArgumentException("budget must be at least " + STEPS.length + ", got " + budget);
+        }
+        if (runs < 1) {
+            throw new IllegalArgumentException("runs must be at least 1, got " + runs);
+        }
+        this.base = base.copy().setRebalanceWorkers(false).setJmxEnabled(false);
+        this.budget = budget;
+        this.objective = objective;
+        this.simulate = simulate;
+        this.runs = runs;
+        this.jitterMillis = jitterMillis;
+        this.executor = Executors.newFixedThreadPool(parallel);
+        this.tried = new HashMap<>();
+    }
+
+    /**
+     * Searches for the best split, printing every split tried.
+     *
+     * @return The best split found.
+     * @throws InterruptedException If interrupted while waiting for a trial.
+     * @throws ExecutionException   If a trial fails.
+     */
+    public Candidate tune() throws InterruptedException, ExecutionException {
+        if (!simulate) {
+            // The first real plants run before the JIT has compiled anything, which would make the first split look bad
+            RunResult.runThreads(base);
+        }
+        Candidate current = evaluate(List.of(initialSplit())).get(0);
+        System.out.println("Start " + current);
+        while (true) {
+            // Every split one worker away from the current one that hasn't been tried yet
+            final List<int[]> neighbours = new ArrayList<>();
+            for (int from = 0; from < STEPS.length; from++) {
+                for (int to = 0; to < STEPS.length; to++) {
+                    if (from != to && current.workers[from] > 1) {
+                        final int[] split = current.workers.clone();
+                        split[from]--;
+                        split[to]++;
+                        if (!tried.containsKey(key(split))) {
+                            neighbours.add(split);
+                        }
+                    }
+                }
+            }
+            Candidate best = current;
+            for (Candidate c : evaluate(neighbours)) {
+                System.out.println("Tried " + c);
+                if (c.score(objective) > best.score(objective)) {
+                    best = c;
+                }
+            }
+            if (best == current) {
+                return current;
+            }
+            current = best;
+            System.out.println("Move to " + current);
+        }
+    }
+
+    /** Stops the threads running the trials. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Gets the split that gives each step workers in proportion to how long the step takes, at least one each.
+     * Workers left over after rounding down go to the steps that lost the most by it.
+     *
+     * @return Number of workers of each step.
+     */
+    int[] initialSplit() {
+        double totalMillis = 0;
+        for (Orange.State step : STEPS) {
+            totalMillis += base.getStateMillis(step);
+        }
+        final int[] split = new int[STEPS.length];
+        final double[] remainder = new double[STEPS.length];
+        int assigned = 0;
+        for (int i = 0; i < STEPS.length; i++) {
+            final double share = budget * base.getStateMillis(STEPS[i]) / totalMillis;
+            split[i] = Math.max(1, (int) share);
+            remainder[i] = share - split[i];
+            assigned += split[i];
+        }
+        while (assigned < budget) {
+            int most = 0;
+            for (int i = 1; i < STEPS.length; i++) {
+                if (remainder[i] > remainder[most]) {
+                    most = i;
+                }
+            }
+            split[most]++;
+            remainder[most]--;
+            assigned++;
+        }
+        while (assigned > budget) {
+            int least = -1;
+            for (int i = 0; i < STEPS.length; i++) {
+                if (split[i] > 1 && (least < 0 || remainder[i] < remainder[least])) {
+                    least = i;
+                }
+            }
+            split[least]--;
+            remainder[least]++;
+            assigned--;
+        }
+        return split;
+    }
+
+    /**
+     * Runs the trials of several splits at once.
+     *
+     * @param splits Number of workers of each step, for each split.
+     * @return The splits with their results, in the same order.
+     * @throws InterruptedException If interrupted while waiting for a trial.
+     * @throws ExecutionException   If a trial fails.
+     */
+    private List<Candidate> evaluate(List<int[]> splits) throws InterruptedException, ExecutionException {
+        final List<List<Future<RunResult>>> futures = new ArrayList<>();
+        for (int[] split : splits) {
+            final PlantConfig config = base.copy();
+            for (int i = 0; i < STEPS.length; i++) {
+                config.setNumWorkers(STEPS[i], split[i]);
+            }
+            final List<Future<RunResult>> trials = new ArrayList<>();
+            for (int run = 0; run < runs; run++) {
+                final long seed = Simulation.DEFAULT_SEED + run;
+                trials.add(executor.submit(() -> RunResult.run(config, simulate, seed, jitterMillis)));
+            }
+            futures.add(trials);
+        }
+        final List<Candidate> candidates = new ArrayList<>();
+        for (int s = 0; s < splits.size(); s++) {
+            final List<RunResult> results = new ArrayList<>();
+            for (Future<RunResult> f : futures.get(s)) {
+                results.add(f.get());
+            }
+            final Candidate c = new Candidate(splits.get(s), results);
+            tried.put(key(c.workers), c);
+            candidates.add(c);
+        }
+        return candidates;
+    }
+
+    /**
+     * Gets a key identifying a split.
+     *
+     * @param split Number of workers of each step.
+     * @return The key.
+     */
+    private static String key(int[] split) {
+        return split[0] + "/" + split[1] + "/" + split[2];
+    }
+
+    /**
+     * Gets the mean of some values.
+     *
+     * @param values The values.
+     * @return The mean.
+     */
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v;
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * Gets the half width of the 95% confidence interval of the mean of some values, using Student's t distribution.
+     *
+     * @param values The values.
+     * @return Half width of the interval, 0 for a single value.
+     */
+    private static double halfWidth(double[] values) {
+        final int n = values.length;
+        if (n < 2) {
+            return 0;
+        }
+        final double mean = mean(values);
+        double squares = 0;
+        for (double v : values) {
+            squares += (v - mean) * (v - mean);
+        }
+        final double stdDev = Math.sqrt(squares / (n - 1));
+        final double t = n - 1 <= T_95.length ? T_95[n - 2] : Z_95;
+        return t * stdDev / Math.sqrt(n);
+    }
+}